@@ -0,0 +1,138 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int BATCH_SIZE = (16 * 1024);
+    private static final int DICTIONARY_SIZE = (32 * 1024);
+
+    @Param({"64", "256", "1400"})
+    public int packetSize;
+
+    @Param({"false", "true"})
+    public boolean dictionary;
+
+    private RetainableByteBufferPool m_pool;
+    private Random m_random;
+    private RetainableByteBuffer m_batch;
+    private CompressionDictionary m_dictionary;
+    private BatchCompressor m_compressor;
+    private BatchDecompressor m_decompressor;
+    private RetainableByteBuffer m_compressed;
+
+    /* Quote-like text packet, fields repeat from packet to packet, values change. */
+    private byte [] createPacket() {
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < packetSize) {
+            sb.append("8=FIX.4.4|35=W|55=SYM").append(m_random.nextInt(100))
+              .append("|268=2|269=0|270=").append(100 + m_random.nextInt(10)).append('.').append(m_random.nextInt(100))
+              .append("|271=").append(m_random.nextInt(10000))
+              .append("|269=1|270=").append(100 + m_random.nextInt(10)).append('.').append(m_random.nextInt(100))
+              .append("|271=").append(m_random.nextInt(10000)).append('|');
+        }
+        sb.setLength(packetSize);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private RetainableByteBuffer createMessage(byte [] header, long seq) {
+        final RetainableByteBuffer msg = Protocol.MulticastPacket.create(m_pool, header, ByteBuffer.wrap(createPacket()));
+        final RetainableByteBuffer sequenced = Protocol.SequencedPacket.create(m_pool, seq, 0, 0, msg);
+        msg.release();
+        return sequenced;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        m_pool = new RetainableByteBufferPool(1024 * 1024, true, Protocol.BYTE_ORDER);
+        m_random = new Random(1);
+        final byte [] header = Protocol.MulticastPacket.createHeader(new InetSocketAddress("239.1.1.1", 5000));
+
+        long seq = 0;
+        if (dictionary) {
+            final byte [] data = new byte[DICTIONARY_SIZE];
+            int size = 0;
+            while (size < data.length) {
+                final RetainableByteBuffer msg = createMessage(header, ++seq);
+                final int length = Math.min(msg.remaining(), data.length - size);
+                for (int idx=0; idx<length; idx++) {
+                    data[size + idx] = msg.get(idx);
+                }
+                size += length;
+                msg.release();
+            }
+            m_dictionary = new CompressionDictionary(0, data);
+        }
+
+        m_batch = m_pool.alloc(BATCH_SIZE);
+        m_batch.position(Protocol.HEADER_SIZE);
+        for (;;) {
+            final RetainableByteBuffer msg = createMessage(header, ++seq);
+            final boolean fits = (msg.remaining() <= m_batch.remaining());
+            if (fits) {
+                m_batch.put(msg.getNioByteBuffer());
+            }
+            msg.release();
+            if (!fits) {
+                break;
+            }
+        }
+        Protocol.Batch.close(m_batch);
+        m_batch.position(Protocol.HEADER_SIZE);
+
+        m_compressor = new BatchCompressor();
+        m_decompressor = new BatchDecompressor();
+        m_compressed = m_compressor.compress(m_batch, m_dictionary, m_pool);
+        if (m_compressed == null) {
+            throw new IOException("batch is not compressible");
+        }
+        if (m_dictionary != null) {
+            final RetainableByteBuffer msg = m_pool.alloc(Protocol.Dictionary.DATA_OFFSET + m_dictionary.data.length);
+            final ByteBuffer dictionary = Protocol.Dictionary.create(m_dictionary.id, m_dictionary.data);
+            msg.put(dictionary);
+            msg.flip();
+            Protocol.Message.release(dictionary);
+            m_decompressor.setDictionary(msg);
+            msg.release();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println("batch " + m_batch.remaining() + " bytes, compressed " + m_compressed.remaining()
+                + " bytes, ratio " + String.format("%.2f", (double) m_batch.remaining() / m_compressed.remaining()));
+        m_compressed.release();
+        m_batch.release();
+    }
+
+    @Benchmark
+    public int compress() {
+        final RetainableByteBuffer msg = m_compressor.compress(m_batch, m_dictionary, m_pool);
+        final int length = msg.remaining();
+        msg.release();
+        return length;
+    }
+
+    @Benchmark
+    public int decompress() throws IOException {
+        final RetainableByteBuffer batch = m_decompressor.decompress(m_compressed, m_pool);
+        final int length = batch.remaining();
+        batch.release();
+        return length;
+    }
+}
@@ -0,0 +1,83 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DefragBenchmark {
+    private static final int PACKETS = 1000;
+
+    @Param({"64", "256", "1400"})
+    public int packetSize;
+
+    @Param({"536", "1460", "16384"})
+    public int readSize;
+
+    private RetainableByteBufferPool m_pool;
+    private ArrayList<RetainableByteBuffer> m_reads;
+    private TunnelChannel m_channel;
+    private long m_messages;
+
+    @Setup
+    public void setup() {
+        m_pool = new RetainableByteBufferPool(1024 * 1024, true, Protocol.BYTE_ORDER);
+        final byte [] header = Protocol.MulticastPacket.createHeader(new InetSocketAddress("239.1.1.1", 5000));
+        final ByteBuffer packet = ByteBuffer.allocateDirect(packetSize);
+        final ByteBuffer stream = ByteBuffer.allocateDirect(PACKETS * (Protocol.HEADER_SIZE + header.length + packetSize));
+        for (int idx=0; idx<PACKETS; idx++) {
+            packet.clear();
+            final RetainableByteBuffer msg = Protocol.MulticastPacket.create(m_pool, header, packet);
+            stream.put(msg.getNioByteBuffer());
+            msg.release();
+        }
+        stream.flip();
+
+        /* Split the stream the same way TCP reads would do. */
+        m_reads = new ArrayList<>();
+        while (stream.hasRemaining()) {
+            final int size = Math.min(readSize, stream.remaining());
+            final ByteBuffer slice = stream.slice();
+            slice.limit(size);
+            final RetainableByteBuffer read = m_pool.alloc(size);
+            read.put(slice);
+            read.flip();
+            m_reads.add(read);
+            stream.position(stream.position() + size);
+        }
+
+        m_channel = new TunnelChannel(null, null, 0, 0, null) {
+            @Override
+            public void onMessageReceived(RetainableByteBuffer msg) {
+                m_messages += Protocol.Message.getLength(msg);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (RetainableByteBuffer read: m_reads) {
+            read.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long onDataReceived() {
+        for (RetainableByteBuffer read: m_reads) {
+            read.position(0);
+            m_channel.onDataReceived(read);
+        }
+        return m_messages;
+    }
+}
@@ -0,0 +1,180 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* End to end loopback benchmark: a datagram published to the group
+ * goes through the server and is received by all tunnel clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final int SERVER_PORT = 39001;
+    private static final InetSocketAddress GROUP_ADDR = new InetSocketAddress("239.255.1.1", 39002);
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({"1", "10", "100", "1000"})
+    public int clients;
+
+    @Param({"64", "1400"})
+    public int packetSize;
+
+    private Collider m_collider;
+    private Thread m_colliderThread;
+    private DatagramChannel m_publisher;
+    private ByteBuffer m_packet;
+    private AtomicLong m_received;
+    private long m_expected;
+    private long m_lost;
+
+    private static class SinkChannel extends TunnelChannel {
+        private final AtomicLong m_received;
+        private final CountDownLatch m_joined;
+        private long m_bytesReceived;
+        private long m_bytesAcked;
+
+        SinkChannel(Channel channel, ByteBuffer joinRequest, AtomicLong received, CountDownLatch joined) {
+            super(channel, null, 0, 0, null);
+            m_received = received;
+            m_joined = joined;
+            channel.sendData(joinRequest);
+        }
+
+        @Override
+        public void onDataReceived(RetainableByteBuffer data) {
+            super.onDataReceived(data);
+            if ((m_bytesReceived - m_bytesAcked) >= Protocol.Ack.INTERVAL) {
+                m_bytesAcked = m_bytesReceived;
+                sendMessage(Protocol.Ack.create(m_bytesReceived));
+            }
+        }
+
+        @Override
+        public void onMessageReceived(RetainableByteBuffer msg) {
+            final short messageId = Protocol.Message.getMessageId(msg);
+            if (messageId == Protocol.JoinResponse.ID) {
+                m_joined.countDown();
+            } else if ((messageId == Protocol.MulticastPacket.ID) || (messageId == Protocol.SequencedPacket.ID)) {
+                m_bytesReceived += Protocol.Message.getLength(msg);
+                m_received.incrementAndGet();
+            } else if (messageId == Protocol.Batch.ID) {
+                final int pos = msg.position();
+                final int end = (pos + Protocol.Message.getLength(msg));
+                int packets = 0;
+                for (int messagePos = (pos + Protocol.HEADER_SIZE); messagePos < end; packets++) {
+                    msg.position(messagePos);
+                    messagePos += Protocol.Message.getLength(msg);
+                }
+                msg.position(pos);
+                m_bytesReceived += (end - pos);
+                m_received.addAndGet(packets);
+            }
+        }
+    }
+
+    private static class SinkConnector extends Connector {
+        private final ByteBuffer m_joinRequest;
+        private final AtomicLong m_received;
+        private final CountDownLatch m_joined;
+
+        SinkConnector(InetSocketAddress addr, ByteBuffer joinRequest, AtomicLong received, CountDownLatch joined) {
+            super(addr);
+            m_joinRequest = joinRequest;
+            m_received = received;
+            m_joined = joined;
+        }
+
+        @Override
+        public Channel.Listener createSessionListener(Channel channel) {
+            return new SinkChannel(channel, m_joinRequest.duplicate(), m_received, m_joined);
+        }
+
+        @Override
+        public void onException(IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        final NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+        final Collider.Config colliderConfig = new Collider.Config();
+        colliderConfig.threadPoolThreads = 4;
+        colliderConfig.byteOrder = Protocol.BYTE_ORDER;
+        m_collider = Collider.create(colliderConfig);
+        final TimerQueue timerQueue = new TimerQueue(m_collider.getThreadPool());
+
+        final Server.Config serverConfig = new Server.Config();
+        serverConfig.portNumber = SERVER_PORT;
+        serverConfig.networkInterface = loopback;
+        serverConfig.pingInterval = 0;
+        new Server(m_collider, timerQueue, new MetricsRegistry(), serverConfig);
+
+        m_colliderThread = new Thread(() -> m_collider.run());
+        m_colliderThread.start();
+
+        final ArrayList<MulticastGroup> groups = new ArrayList<>();
+        groups.add(new MulticastGroup(GROUP_ADDR));
+        final ByteBuffer joinRequest = Protocol.JoinRequest.create(groups);
+        final InetSocketAddress serverAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), SERVER_PORT);
+        final CountDownLatch joined = new CountDownLatch(clients);
+        m_received = new AtomicLong();
+        for (int idx=0; idx<clients; idx++) {
+            m_collider.addConnector(new SinkConnector(serverAddr, joinRequest, m_received, joined));
+        }
+        if (!joined.await(30, TimeUnit.SECONDS)) {
+            throw new IOException("clients failed to join");
+        }
+
+        m_publisher = DatagramChannel.open(StandardProtocolFamily.INET);
+        m_publisher.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+        m_publisher.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        m_packet = ByteBuffer.allocateDirect(packetSize);
+        m_expected = 0;
+        m_lost = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (m_lost > 0) {
+            System.out.println("Lost " + m_lost + " packets");
+        }
+        m_publisher.close();
+        m_collider.stop();
+        m_colliderThread.join();
+    }
+
+    @Benchmark
+    public void fanOut() throws IOException {
+        m_packet.clear();
+        m_publisher.send(m_packet, GROUP_ADDR);
+        m_expected += clients;
+        final long deadline = (System.nanoTime() + TIMEOUT);
+        while (m_received.get() < m_expected) {
+            if (System.nanoTime() > deadline) {
+                m_lost += (m_expected - m_received.get());
+                m_expected = m_received.get();
+                break;
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final int GROUPS = 16;
+
+    @Param({"64", "256", "1400"})
+    public int packetSize;
+
+    private RetainableByteBufferPool m_pool;
+    private byte [] m_header;
+    private ByteBuffer m_packet;
+    private RetainableByteBuffer m_multicastPacket;
+    private RetainableByteBuffer m_channelPacket;
+    private RetainableByteBuffer m_joinRequest;
+    private MulticastPacketDecoder m_decoder;
+    private GroupTable m_groupTable;
+
+    @Setup
+    public void setup() throws Exception {
+        m_pool = new RetainableByteBufferPool(256 * 1024, true, Protocol.BYTE_ORDER);
+        m_header = Protocol.MulticastPacket.createHeader(new InetSocketAddress("239.1.1.1", 5000));
+        m_packet = ByteBuffer.allocateDirect(packetSize);
+        for (int idx=0; idx<packetSize; idx++) {
+            m_packet.put((byte) idx);
+        }
+        m_packet.flip();
+        m_multicastPacket = Protocol.MulticastPacket.create(m_pool, m_header, m_packet);
+        m_decoder = new MulticastPacketDecoder();
+        m_groupTable = new GroupTable();
+        m_groupTable.setChannel(1, new InetSocketAddress("239.1.1.1", 5000));
+        m_channelPacket = Protocol.ChannelPacket.create(m_pool, 1, 0, 1, m_multicastPacket, m_header.length);
+
+        final ArrayList<MulticastGroup> groups = new ArrayList<>();
+        for (int idx=0; idx<GROUPS; idx++) {
+            groups.add(new MulticastGroup(new InetSocketAddress("239.1.1." + (idx + 1), 5000 + idx)));
+        }
+        final ByteBuffer joinRequest = Protocol.JoinRequest.create(groups);
+        m_joinRequest = m_pool.alloc(joinRequest.remaining());
+        m_joinRequest.put(joinRequest);
+        m_joinRequest.flip();
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_multicastPacket.release();
+        m_channelPacket.release();
+        m_joinRequest.release();
+    }
+
+    @Benchmark
+    public int multicastPacketCreate() {
+        m_packet.rewind();
+        final RetainableByteBuffer msg = Protocol.MulticastPacket.create(m_pool, m_header, m_packet);
+        final int length = msg.remaining();
+        msg.release();
+        return length;
+    }
+
+    @Benchmark
+    public InetSocketAddress multicastPacketGetAddress() throws UnknownHostException {
+        return Protocol.MulticastPacket.getAddress(m_multicastPacket);
+    }
+
+    /* Flyweight decoding with the interned destination, allocation free after the first call. */
+    @Benchmark
+    public InetSocketAddress multicastPacketDecode() throws IOException {
+        m_decoder.wrap(m_multicastPacket);
+        return m_groupTable.get(m_decoder).addr;
+    }
+
+    /* Destination looked up by the group id, no header to compare. */
+    @Benchmark
+    public InetSocketAddress channelPacketDecode() throws IOException {
+        m_decoder.wrap(m_channelPacket);
+        return m_groupTable.get(m_decoder).addr;
+    }
+
+    @Benchmark
+    public MulticastGroup [] joinRequestGetGroups() throws UnknownHostException {
+        m_joinRequest.position(0);
+        return Protocol.JoinRequest.getGroups(m_joinRequest);
+    }
+}
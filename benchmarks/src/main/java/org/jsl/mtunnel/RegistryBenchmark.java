@@ -0,0 +1,98 @@
+package org.jsl.mtunnel;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Fan-out list read under concurrent subscribe/unsubscribe churn:
+ * copy-on-write SubscriberList against the former lock protected ArrayList.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+    @Param({"10", "100"})
+    public int subscribers;
+
+    private SubscriberList<Object> m_subscriberList;
+    private ReentrantLock m_lock;
+    private ArrayList<Object> m_lockedList;
+    private Object m_subscriber;
+
+    @Setup
+    public void setup() {
+        m_subscriberList = new SubscriberList<>(new Object[0]);
+        m_lock = new ReentrantLock();
+        m_lockedList = new ArrayList<>();
+        for (int idx=0; idx<subscribers; idx++) {
+            final Object subscriber = new Object();
+            m_subscriberList.add(subscriber);
+            m_lockedList.add(subscriber);
+        }
+        m_subscriber = new Object();
+    }
+
+    @Benchmark
+    @Group("copyOnWrite")
+    @GroupThreads(3)
+    public int copyOnWriteRead() {
+        int ret = 0;
+        for (Object subscriber: m_subscriberList.get()) {
+            ret += System.identityHashCode(subscriber);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    @Group("copyOnWrite")
+    @GroupThreads(1)
+    public void copyOnWriteChurn() {
+        m_subscriberList.add(m_subscriber);
+        m_subscriberList.remove(m_subscriber);
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(3)
+    public int lockedRead() {
+        final ArrayList<Object> list;
+        m_lock.lock();
+        try {
+            list = m_lockedList;
+        } finally {
+            m_lock.unlock();
+        }
+        int ret = 0;
+        for (Object subscriber: list) {
+            ret += System.identityHashCode(subscriber);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public void lockedChurn() {
+        m_lock.lock();
+        try {
+            final ArrayList<Object> list = new ArrayList<>(m_lockedList);
+            list.add(m_subscriber);
+            m_lockedList = list;
+        } finally {
+            m_lock.unlock();
+        }
+        m_lock.lock();
+        try {
+            final ArrayList<Object> list = new ArrayList<>(m_lockedList);
+            list.remove(m_subscriber);
+            m_lockedList = list;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+}
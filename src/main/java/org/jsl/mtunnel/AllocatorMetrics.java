@@ -0,0 +1,41 @@
+package org.jsl.mtunnel;
+
+public class AllocatorMetrics extends Metrics implements AllocatorMetricsMBean {
+    private final MessageAllocator m_allocator;
+
+    public AllocatorMetrics(String name, MessageAllocator allocator) {
+        super("Allocator", name);
+        m_allocator = allocator;
+    }
+
+    public long getSlabBytes() {
+        return m_allocator.getSlabBytes();
+    }
+
+    public long getBytesInUse() {
+        return m_allocator.getBytesInUse();
+    }
+
+    public long getAllocations() {
+        return m_allocator.getAllocations();
+    }
+
+    public long getUnpooledAllocations() {
+        return m_allocator.getUnpooledAllocations();
+    }
+
+    public long getLeaks() {
+        return m_allocator.getLeaks();
+    }
+
+    @Override
+    public void print(StringBuilder sb, long timestamp) {
+        sb.append("mtunnel_allocator,allocator=").append(getName());
+        sb.append(" slab_bytes=").append(m_allocator.getSlabBytes()).append('i');
+        sb.append(",bytes_in_use=").append(m_allocator.getBytesInUse()).append('i');
+        sb.append(",allocations=").append(m_allocator.getAllocations()).append('i');
+        sb.append(",unpooled_allocations=").append(m_allocator.getUnpooledAllocations()).append('i');
+        sb.append(",leaks=").append(m_allocator.getLeaks()).append('i');
+        sb.append(' ').append(timestamp).append('\n');
+    }
+}
@@ -0,0 +1,9 @@
+package org.jsl.mtunnel;
+
+public interface AllocatorMetricsMBean {
+    long getSlabBytes();
+    long getBytesInUse();
+    long getAllocations();
+    long getUnpooledAllocations();
+    long getLeaks();
+}
@@ -0,0 +1,85 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Not thread safe, buffers are reused for all batches of the channel. */
+public class BatchCompressor {
+    private static final int MIN_LENGTH = 64;
+
+    private final int [] m_hashTable;
+    private byte [] m_src;
+    private ByteBuffer m_srcBuffer;
+    private byte [] m_dst;
+    private ByteBuffer m_dstBuffer;
+    /* Dictionary at the beginning of the m_src. */
+    private CompressionDictionary m_dictionary;
+
+    public BatchCompressor() {
+        m_hashTable = new int[Lz4.HASH_TABLE_SIZE];
+        m_src = new byte[0];
+        m_srcBuffer = ByteBuffer.wrap(m_src);
+        m_dst = new byte[0];
+        m_dstBuffer = ByteBuffer.wrap(m_dst);
+    }
+
+    /* Compresses the batch payload data[position, limit) to the CompressedBatch message,
+     * returns null if the compressed message would not be shorter than the Batch.
+     */
+    public RetainableByteBuffer compress(RetainableByteBuffer data, CompressionDictionary dictionary, RetainableByteBufferPool pool) {
+        final int pos = data.position();
+        final int rawLength = data.remaining();
+        if (rawLength < MIN_LENGTH) {
+            return null;
+        }
+
+        final int dictionaryLength = (dictionary == null) ? 0 : dictionary.data.length;
+        if (m_src.length < (dictionaryLength + rawLength)) {
+            m_src = new byte[dictionaryLength + rawLength];
+            m_srcBuffer = ByteBuffer.wrap(m_src);
+            m_dictionary = null;
+        }
+        if (dictionary != m_dictionary) {
+            if (dictionary != null) {
+                System.arraycopy(dictionary.data, 0, m_src, 0, dictionaryLength);
+            }
+            m_dictionary = dictionary;
+        }
+
+        m_srcBuffer.clear();
+        m_srcBuffer.position(dictionaryLength);
+        m_srcBuffer.put(data.getNioByteBuffer());
+        data.position(pos);
+
+        if (dictionary == null) {
+            Arrays.fill(m_hashTable, -1);
+        } else {
+            System.arraycopy(dictionary.hashTable, 0, m_hashTable, 0, m_hashTable.length);
+        }
+
+        final int maxLength = Lz4.maxCompressedLength(rawLength);
+        if (m_dst.length < maxLength) {
+            m_dst = new byte[maxLength];
+            m_dstBuffer = ByteBuffer.wrap(m_dst);
+        }
+
+        final int length = Lz4.compress(m_src, dictionaryLength, dictionaryLength + rawLength, m_dst, 0, m_hashTable);
+        final int messageSize = (Protocol.CompressedBatch.DATA_OFFSET + length);
+        if (messageSize >= (Protocol.HEADER_SIZE + rawLength)) {
+            return null;
+        }
+
+        final RetainableByteBuffer msg = pool.alloc(messageSize);
+        final int dictionaryId = (dictionary == null) ? Protocol.CompressedBatch.NO_DICTIONARY : dictionary.id;
+        Protocol.CompressedBatch.setHeader(msg, 0, messageSize, dictionaryId, rawLength);
+        m_dstBuffer.clear();
+        m_dstBuffer.limit(length);
+        msg.position(Protocol.CompressedBatch.DATA_OFFSET);
+        msg.put(m_dstBuffer);
+        msg.flip();
+        return msg;
+    }
+}
@@ -0,0 +1,106 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Not thread safe, buffers are reused for all batches of the channel. */
+public class BatchDecompressor {
+    private byte [][] m_dictionaries;
+    private byte [] m_src;
+    private ByteBuffer m_srcBuffer;
+    private byte [] m_dst;
+    private ByteBuffer m_dstBuffer;
+    /* Dictionary at the beginning of the m_dst. */
+    private byte [] m_dictionary;
+
+    public BatchDecompressor() {
+        m_dictionaries = new byte[16][];
+        m_src = new byte[0];
+        m_srcBuffer = ByteBuffer.wrap(m_src);
+        m_dst = new byte[0];
+        m_dstBuffer = ByteBuffer.wrap(m_dst);
+    }
+
+    public void setDictionary(RetainableByteBuffer msg) throws IOException {
+        final int pos = msg.position();
+        final int messageLength = Protocol.Message.getLength(msg);
+        if (messageLength < Protocol.Dictionary.DATA_OFFSET) {
+            throw new IOException("invalid dictionary message length " + messageLength);
+        }
+        final int dictionaryId = Protocol.Dictionary.getDictionaryId(msg);
+        final byte [] data = new byte[messageLength - Protocol.Dictionary.DATA_OFFSET];
+        msg.position(pos + Protocol.Dictionary.DATA_OFFSET);
+        msg.get(data);
+        msg.position(pos);
+        if (dictionaryId >= m_dictionaries.length) {
+            m_dictionaries = Arrays.copyOf(m_dictionaries, Math.max(m_dictionaries.length * 2, dictionaryId + 1));
+        }
+        m_dictionaries[dictionaryId] = data;
+    }
+
+    /* Returns the Batch message with the uncompressed data. */
+    public RetainableByteBuffer decompress(RetainableByteBuffer msg, RetainableByteBufferPool pool) throws IOException {
+        final int pos = msg.position();
+        final int messageLength = Protocol.Message.getLength(msg);
+        if (messageLength < Protocol.CompressedBatch.DATA_OFFSET) {
+            throw new IOException("invalid compressed batch message length " + messageLength);
+        }
+        final int rawLength = Protocol.CompressedBatch.getRawLength(msg);
+        if ((rawLength <= 0) || (rawLength > (Protocol.MAX_MESSAGE_SIZE - Protocol.HEADER_SIZE))) {
+            throw new IOException("invalid uncompressed batch length " + rawLength);
+        }
+
+        final int dictionaryId = Protocol.CompressedBatch.getDictionaryId(msg);
+        byte [] dictionary = null;
+        if (dictionaryId != Protocol.CompressedBatch.NO_DICTIONARY) {
+            if ((dictionaryId >= m_dictionaries.length) || (m_dictionaries[dictionaryId] == null)) {
+                throw new IOException("unknown dictionary " + dictionaryId);
+            }
+            dictionary = m_dictionaries[dictionaryId];
+        }
+
+        final int length = (messageLength - Protocol.CompressedBatch.DATA_OFFSET);
+        if (m_src.length < length) {
+            m_src = new byte[length];
+            m_srcBuffer = ByteBuffer.wrap(m_src);
+        }
+        final int limit = msg.limit();
+        msg.position(pos + Protocol.CompressedBatch.DATA_OFFSET);
+        msg.limit(pos + messageLength);
+        m_srcBuffer.clear();
+        m_srcBuffer.put(msg.getNioByteBuffer());
+        msg.limit(limit);
+        msg.position(pos);
+
+        final int dictionaryLength = (dictionary == null) ? 0 : dictionary.length;
+        if (m_dst.length < (dictionaryLength + rawLength)) {
+            m_dst = new byte[dictionaryLength + rawLength];
+            m_dstBuffer = ByteBuffer.wrap(m_dst);
+            m_dictionary = null;
+        }
+        if (dictionary != m_dictionary) {
+            if (dictionary != null) {
+                System.arraycopy(dictionary, 0, m_dst, 0, dictionaryLength);
+            }
+            m_dictionary = dictionary;
+        }
+
+        final int end = Lz4.decompress(m_src, 0, length, m_dst, dictionaryLength, dictionaryLength + rawLength);
+        if (end != (dictionaryLength + rawLength)) {
+            throw new IOException("invalid compressed batch, " + (end - dictionaryLength) + " bytes instead of " + rawLength);
+        }
+
+        final RetainableByteBuffer batch = pool.alloc(Protocol.HEADER_SIZE + rawLength);
+        batch.position(Protocol.HEADER_SIZE);
+        m_dstBuffer.clear();
+        m_dstBuffer.limit(end);
+        m_dstBuffer.position(dictionaryLength);
+        batch.put(m_dstBuffer);
+        Protocol.Batch.close(batch);
+        return batch;
+    }
+}
@@ -0,0 +1,206 @@
+package org.jsl.mtunnel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChannelMetrics extends Metrics implements ChannelMetricsMBean {
+    public final LongAdder framesIn;
+    public final LongAdder framesOut;
+    public final LongAdder bytesIn;
+    public final LongAdder bytesOut;
+    public final Histogram pingRtt;
+    public final LongAdder missedPongs;
+    public final LongAdder datagramsIn;
+    public final LongAdder datagramsOut;
+    public final LongAdder packetsLost;
+    public final LongAdder retransmits;
+    public final LongAdder gaps;
+    public final LongAdder duplicates;
+    public final Histogram latency;
+    public final LongAdder rawBytes;
+    public final LongAdder compressedBytes;
+    /* Packets over the rate limit, delayed or dropped. */
+    public final LongAdder throttledBytes;
+    public final LongAdder throttledDrops;
+    private final TunnelChannel m_channel;
+    private volatile long m_lastPingRtt;
+    private volatile long m_pingJitter;
+
+    public ChannelMetrics(String name, TunnelChannel channel) {
+        super("Channel", name);
+        framesIn = new LongAdder();
+        framesOut = new LongAdder();
+        bytesIn = new LongAdder();
+        bytesOut = new LongAdder();
+        pingRtt = new Histogram();
+        missedPongs = new LongAdder();
+        datagramsIn = new LongAdder();
+        datagramsOut = new LongAdder();
+        packetsLost = new LongAdder();
+        retransmits = new LongAdder();
+        gaps = new LongAdder();
+        duplicates = new LongAdder();
+        latency = new Histogram();
+        rawBytes = new LongAdder();
+        compressedBytes = new LongAdder();
+        throttledBytes = new LongAdder();
+        throttledDrops = new LongAdder();
+        m_channel = channel;
+    }
+
+    /* Jitter is estimated the same way as the RTP interarrival jitter (RFC 3550). */
+    public void onPingRtt(long rtt) {
+        final long lastPingRtt = m_lastPingRtt;
+        if (lastPingRtt != 0) {
+            final long delta = Math.abs(rtt - lastPingRtt);
+            m_pingJitter += (delta - m_pingJitter) / 16;
+        }
+        m_lastPingRtt = rtt;
+        pingRtt.record(rtt);
+    }
+
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public int getQueueSize() {
+        return m_channel.getQueueSize();
+    }
+
+    public long getDroppedPackets() {
+        return m_channel.getDroppedPackets();
+    }
+
+    public long getPingRttP50() {
+        return pingRtt.getValueAtPercentile(50);
+    }
+
+    public long getPingRttP99() {
+        return pingRtt.getValueAtPercentile(99);
+    }
+
+    public long getPingRttMax() {
+        return pingRtt.getValueAtPercentile(100);
+    }
+
+    public long getLastPingRtt() {
+        return m_lastPingRtt;
+    }
+
+    public long getPingJitter() {
+        return m_pingJitter;
+    }
+
+    public long getMissedPongs() {
+        return missedPongs.sum();
+    }
+
+    public long getDatagramsIn() {
+        return datagramsIn.sum();
+    }
+
+    public long getDatagramsOut() {
+        return datagramsOut.sum();
+    }
+
+    public long getPacketsLost() {
+        return packetsLost.sum();
+    }
+
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    public long getGaps() {
+        return gaps.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getLatencyP50() {
+        return latency.getValueAtPercentile(50);
+    }
+
+    public long getLatencyP99() {
+        return latency.getValueAtPercentile(99);
+    }
+
+    public long getLatencyMax() {
+        return latency.getValueAtPercentile(100);
+    }
+
+    public long getRawBytes() {
+        return rawBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    public long getThrottledBytes() {
+        return throttledBytes.sum();
+    }
+
+    public long getThrottledDrops() {
+        return throttledDrops.sum();
+    }
+
+    public void reset() {
+        framesIn.reset();
+        framesOut.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        pingRtt.reset();
+        missedPongs.reset();
+        datagramsIn.reset();
+        datagramsOut.reset();
+        packetsLost.reset();
+        retransmits.reset();
+        gaps.reset();
+        duplicates.reset();
+        latency.reset();
+        rawBytes.reset();
+        compressedBytes.reset();
+        throttledBytes.reset();
+        throttledDrops.reset();
+    }
+
+    @Override
+    public void print(StringBuilder sb, long timestamp) {
+        sb.append("mtunnel_channel,peer=").append(getName());
+        sb.append(" frames_in=").append(framesIn.sum()).append('i');
+        sb.append(",frames_out=").append(framesOut.sum()).append('i');
+        sb.append(",bytes_in=").append(bytesIn.sum()).append('i');
+        sb.append(",bytes_out=").append(bytesOut.sum()).append('i');
+        sb.append(",queue_size=").append(m_channel.getQueueSize()).append('i');
+        sb.append(",dropped=").append(m_channel.getDroppedPackets()).append('i');
+        printHistogram(sb, "ping_rtt_ns", pingRtt);
+        sb.append(",ping_jitter_ns=").append(m_pingJitter).append('i');
+        sb.append(",missed_pongs=").append(missedPongs.sum()).append('i');
+        sb.append(",datagrams_in=").append(datagramsIn.sum()).append('i');
+        sb.append(",datagrams_out=").append(datagramsOut.sum()).append('i');
+        sb.append(",packets_lost=").append(packetsLost.sum()).append('i');
+        sb.append(",retransmits=").append(retransmits.sum()).append('i');
+        sb.append(",gaps=").append(gaps.sum()).append('i');
+        sb.append(",duplicates=").append(duplicates.sum()).append('i');
+        printHistogram(sb, "latency_ns", latency);
+        sb.append(",raw_bytes=").append(rawBytes.sum()).append('i');
+        sb.append(",compressed_bytes=").append(compressedBytes.sum()).append('i');
+        sb.append(",throttled_bytes=").append(throttledBytes.sum()).append('i');
+        sb.append(",throttled_drops=").append(throttledDrops.sum()).append('i');
+        sb.append(' ').append(timestamp).append('\n');
+    }
+}
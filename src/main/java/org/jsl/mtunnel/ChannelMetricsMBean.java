@@ -0,0 +1,30 @@
+package org.jsl.mtunnel;
+
+public interface ChannelMetricsMBean {
+    long getFramesIn();
+    long getFramesOut();
+    long getBytesIn();
+    long getBytesOut();
+    int getQueueSize();
+    long getDroppedPackets();
+    long getPingRttP50();
+    long getPingRttP99();
+    long getPingRttMax();
+    long getLastPingRtt();
+    long getPingJitter();
+    long getMissedPongs();
+    long getDatagramsIn();
+    long getDatagramsOut();
+    long getPacketsLost();
+    long getRetransmits();
+    long getGaps();
+    long getDuplicates();
+    long getLatencyP50();
+    long getLatencyP99();
+    long getLatencyMax();
+    long getRawBytes();
+    long getCompressedBytes();
+    long getThrottledBytes();
+    long getThrottledDrops();
+    void reset();
+}
@@ -3,36 +3,154 @@ package org.jsl.mtunnel;
 import org.jsl.collider.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class Client {
-    private static class TunnelConnector extends Connector {
-        private final Collider m_collider;
-        private final TimerQueue m_timerQueue;
-        private final int m_pingInterval;
+    public static class Config {
+        public int pingInterval;
+        public int maxMissedPongs;
+        public boolean udpTransport;
+        public boolean compression;
+        public boolean reconnect;
+        public int reconnectDelay;
+        public int reconnectMaxDelay;
+        public int dedupWindow;
+        /* Groups not listed get GroupPriority.DEFAULT. */
+        public HashMap<MulticastGroup, GroupPriority> groupPriority;
+
+        public Config() {
+            pingInterval = 5000;
+            maxMissedPongs = 3;
+            udpTransport = false;
+            compression = false;
+            reconnect = false;
+            reconnectDelay = 100;
+            reconnectMaxDelay = 10000;
+            dedupWindow = 4096;
+            groupPriority = new HashMap<>();
+        }
+    }
+
+    private static final int UDP_HELLO_INTERVAL = 1000;
+    private static final int BUFFER_POOL_CHUNK_SIZE = (256 * 1024);
+
+    /* Connection to one of the servers, connects again with jittered exponential backoff
+     * after the connection is lost and resumes the groups the previous connection was subscribed to.
+     */
+    private static class Link implements TimerQueue.Task {
+        final int index;
+        final InetSocketAddress addr;
+        final Collider collider;
+        final TimerQueue timerQueue;
+        final MetricsRegistry metricsRegistry;
+        final MulticastSender.Config senderConfig;
+        final Config config;
+        final Deduplicator deduplicator;
+        final Link [] links;
         private final ByteBuffer m_joinRequest;
+        private final ByteBuffer m_rejoinRequest;
+        volatile ClientChannel clientChannel;
+        private volatile boolean m_lost;
+        private int m_attempt;
+        private int m_serverVersion;
+        /* Groups to resume with the next sequence number expected, null until the first connection is lost. */
+        private Map<MulticastGroup, Long> m_resume;
 
-        public TunnelConnector(InetSocketAddress addr, Collider collider, TimerQueue timerQueue, int pingInterval, ByteBuffer joinRequest) {
-            super(addr);
-            m_collider = collider;
-            m_timerQueue = timerQueue;
-            m_pingInterval = pingInterval;
+        Link(int index, InetSocketAddress addr, Collider collider, TimerQueue timerQueue, MetricsRegistry metricsRegistry,
+             ByteBuffer joinRequest, ByteBuffer rejoinRequest, MulticastSender.Config senderConfig, Config config,
+             Deduplicator deduplicator, Link [] links) {
+            this.index = index;
+            this.addr = addr;
+            this.collider = collider;
+            this.timerQueue = timerQueue;
+            this.metricsRegistry = metricsRegistry;
+            this.senderConfig = senderConfig;
+            this.config = config;
+            this.deduplicator = deduplicator;
+            this.links = links;
             m_joinRequest = joinRequest;
+            m_rejoinRequest = rejoinRequest;
+        }
+
+        void connect() {
+            collider.addConnector(new TunnelConnector(this));
+        }
+
+        public long run() {
+            connect();
+            return 0;
+        }
+
+        /* Groups are resubscribed one by one when the server can do it,
+         * otherwise the initial join request is repeated.
+         */
+        synchronized ByteBuffer getJoinRequest() {
+            final boolean rejoin = ((m_resume != null) && (m_serverVersion >= Protocol.VERSION_SUBSCRIBE));
+            return Protocol.Message.copy(rejoin ? m_rejoinRequest : m_joinRequest);
+        }
+
+        /* Returns the groups to resubscribe. */
+        synchronized Map<MulticastGroup, Long> onJoined(int version) {
+            final boolean rejoin = ((m_resume != null) && (m_serverVersion >= Protocol.VERSION_SUBSCRIBE));
+            m_attempt = 0;
+            m_serverVersion = version;
+            return rejoin ? m_resume : Collections.emptyMap();
+        }
+
+        /* resume is null if the connection was lost before the server accepted the join request. */
+        synchronized void onConnectionLost(Map<MulticastGroup, Long> resume) {
+            clientChannel = null;
+            if (resume != null) {
+                m_resume = resume;
+            }
+            if (config.reconnect) {
+                final long maxDelay = Math.min(config.reconnectMaxDelay, ((long) config.reconnectDelay << Math.min(m_attempt, 30)));
+                final long delay = ThreadLocalRandom.current().nextLong(config.reconnectDelay, Math.max(maxDelay, config.reconnectDelay) + 1);
+                m_attempt++;
+                System.out.println("Reconnect to " + addr + " in " + delay + " ms");
+                timerQueue.schedule(this, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            m_lost = true;
+            for (Link link: links) {
+                if (!link.m_lost) {
+                    System.out.println("Continue with server " + link.addr);
+                    return;
+                }
+            }
+            collider.stop();
+        }
+    }
+
+    private static class TunnelConnector extends Connector {
+        private final Link m_link;
+
+        public TunnelConnector(Link link) {
+            super(link.addr);
+            m_link = link;
         }
 
         @Override
         public Channel.Listener createSessionListener(Channel channel) {
             System.out.println("Connected to server @ " + channel.getRemoteAddress());
             try {
-                return new ClientChannel(channel, m_timerQueue, m_pingInterval, m_joinRequest);
-            } catch (SocketException ex) {
+                final ClientChannel clientChannel = new ClientChannel(channel, m_link);
+                m_link.clientChannel = clientChannel;
+                return clientChannel;
+            } catch (IOException ex) {
                 System.out.println(ex.getMessage());
-                m_collider.stop();
+                m_link.onConnectionLost(null);
                 return null;
             }
         }
@@ -40,24 +158,390 @@ public class Client {
         @Override
         public void onException(IOException ex) {
             System.out.println(ex.getMessage());
-            m_collider.stop();
+            m_link.onConnectionLost(null);
         }
     }
 
     private static class ClientChannel extends TunnelChannel {
-        private final DatagramSocket m_dataframSocket;
+        /* Receives multicast packets sent by the server over UDP,
+         * requests retransmission of the packets missed.
+         */
+        private class UdpReceiver implements MulticastReceiver.Listener, TimerQueue.Task {
+            private final InetSocketAddress m_serverAddr;
+            private final ByteBuffer m_hello;
+            private final DatagramChannel m_datagramChannel;
+            private final MulticastReceiver m_receiver;
+            private final MulticastSender m_sender;
+            private final RetainableByteBufferPool m_bufferPool;
+            private final MulticastPacketDecoder m_decoder;
+
+            UdpReceiver(InetSocketAddress serverAddr, long token) throws IOException {
+                m_serverAddr = serverAddr;
+                m_hello = Protocol.UdpHello.create(token);
+                m_sender = new MulticastSender(m_senderConfig);
+                m_bufferPool = new RetainableByteBufferPool(BUFFER_POOL_CHUNK_SIZE, true, Protocol.BYTE_ORDER);
+                m_decoder = new MulticastPacketDecoder();
+                m_datagramChannel = DatagramChannel.open();
+                try {
+                    m_datagramChannel.bind(null);
+                    m_datagramChannel.configureBlocking(false);
+                } catch (IOException ex) {
+                    m_datagramChannel.close();
+                    m_sender.close();
+                    Protocol.Message.release(m_hello);
+                    throw ex;
+                }
+                m_receiver = new MulticastReceiver("mtunnel-udp");
+                m_receiver.register(m_datagramChannel, this);
+                m_receiver.start();
+            }
+
+            public long run() {
+                try {
+                    m_datagramChannel.send(m_hello.duplicate(), m_serverAddr);
+                } catch (IOException ex) {
+                    System.out.println("Failed to send datagram to " + m_serverAddr + ": " + ex.getMessage());
+                }
+                return UDP_HELLO_INTERVAL;
+            }
+
+            @Override
+            public void onDataReceived(ByteBuffer data, SocketAddress sourceAddr) {
+                final int size = data.remaining();
+                if (!m_serverAddr.getAddress().equals(((InetSocketAddress) sourceAddr).getAddress())
+                        || (size < (Protocol.SequencedPacket.PREFIX_SIZE + Protocol.HEADER_SIZE))
+                        || (Protocol.Message.getLength(data) != size)
+                        || (Protocol.Message.getMessageId(data) != Protocol.UdpData.ID)) {
+                    return;
+                }
+                m_metrics.datagramsIn.increment();
+                m_metrics.bytesIn.add(size);
+
+                final RetainableByteBuffer frame = m_bufferPool.alloc(size);
+                frame.put(data);
+                frame.flip();
+                try {
+                    if (!m_decoder.wrap(frame) || !checkSequence(m_decoder, true)) {
+                        return;
+                    }
+                    final GroupTable.Destination destination = m_sender.getDestination(m_decoder);
+                    if (!checkDuplicate(destination, m_decoder)) {
+                        return;
+                    }
+                    m_sender.add(destination, m_decoder);
+                    m_sender.flush();
+                } catch (IOException ex) {
+                    System.out.println("Invalid datagram received from " + sourceAddr + ": " + ex.getMessage());
+                } finally {
+                    frame.release();
+                }
+            }
+
+            long getPacketsDropped() {
+                return m_sender.getPacketsDropped();
+            }
+
+            void close() throws InterruptedException {
+                try {
+                    m_timerQueue.cancel(this);
+                } finally {
+                    m_receiver.stop();
+                    m_sender.close();
+                    /* Hello is not sent any more. */
+                    Protocol.Message.release(m_hello);
+                }
+            }
+        }
+
+        private final Link m_link;
+        private final TimerQueue m_timerQueue;
+        private final MulticastSender.Config m_senderConfig;
+        private final Deduplicator m_deduplicator;
+        private final boolean m_udpTransport;
+        private final MulticastSender m_multicastSender;
+        private final SequenceTable m_sequences;
+        private final MulticastPacketDecoder m_decoder;
+        private final BatchDecompressor m_decompressor;
+        private final RetainableByteBufferPool m_bufferPool;
+        private volatile UdpReceiver m_udpReceiver;
+        private volatile int m_serverVersion;
+        /* Groups subscribed indexed by the server group id. */
+        private MulticastGroup [] m_groups;
+        private boolean m_joined;
+        private long m_bytesReceived;
+        private long m_bytesAcked;
+
+        public ClientChannel(Channel channel, Link link) throws IOException {
+            super(channel, link.timerQueue, link.config.pingInterval, link.config.maxMissedPongs, link.metricsRegistry);
+            final Config config = link.config;
+            m_link = link;
+            m_timerQueue = link.timerQueue;
+            m_senderConfig = link.senderConfig;
+            m_deduplicator = link.deduplicator;
+            m_udpTransport = config.udpTransport;
+            m_groups = new MulticastGroup[16];
+            m_multicastSender = new MulticastSender(m_senderConfig);
+            m_sequences = new SequenceTable();
+            m_decoder = new MulticastPacketDecoder();
+            if (config.compression) {
+                m_decompressor = new BatchDecompressor();
+                m_bufferPool = new RetainableByteBufferPool(BUFFER_POOL_CHUNK_SIZE, true, Protocol.BYTE_ORDER);
+            } else {
+                m_decompressor = null;
+                m_bufferPool = null;
+            }
+            sendMessage(link.getJoinRequest());
+        }
+
+        @Override
+        public long getDroppedPackets() {
+            final UdpReceiver udpReceiver = m_udpReceiver;
+            final long dropped = (udpReceiver == null) ? 0 : udpReceiver.getPacketsDropped();
+            return m_multicastSender.getPacketsDropped() + dropped;
+        }
+
+        /* Accounts the packet in the group receive window shared by TCP and UDP,
+         * so the packet received over either of them closes the gap.
+         * Returns false if the packet is a duplicate and should be dropped.
+         */
+        private boolean checkSequence(MulticastPacketDecoder decoder, boolean nack) {
+            final int groupId = decoder.getGroupId();
+            final long seq = decoder.getSeq();
+            final long lost = m_sequences.accept(groupId, seq);
+            if (lost < 0) {
+                m_metrics.duplicates.increment();
+                return false;
+            }
+            if (lost > 0) {
+                m_metrics.gaps.increment();
+                m_metrics.packetsLost.add(lost);
+                if (nack) {
+                    final int count = (int) Math.min(lost, SequenceWindow.SIZE - 1);
+                    sendMessage(Protocol.Nack.create(groupId, seq - count, count));
+                }
+            }
+            m_metrics.latency.record(WallClock.nanoTime() - decoder.getTimestamp());
+            return true;
+        }
+
+        /* Returns false if the packet was already received from the other server. */
+        private boolean checkDuplicate(GroupTable.Destination destination, MulticastPacketDecoder decoder) {
+            if ((m_deduplicator == null) || m_deduplicator.accept(Deduplicator.digest(destination, decoder), m_link.index)) {
+                return true;
+            }
+            m_metrics.duplicates.increment();
+            return false;
+        }
+
+        private boolean checkServerVersion(MulticastGroup group) {
+            if (m_serverVersion < Protocol.VERSION_SUBSCRIBE) {
+                System.out.println("Server does not support subscription changes");
+                return false;
+            }
+            if (group.isSourceSpecific() && (m_serverVersion < Protocol.VERSION_SSM)) {
+                System.out.println("Server does not support source-specific groups");
+                return false;
+            }
+            return true;
+        }
+
+        private GroupPriority getPriority(MulticastGroup group) {
+            return m_link.config.groupPriority.getOrDefault(group, GroupPriority.DEFAULT);
+        }
 
-        public ClientChannel(Channel channel, TimerQueue timerQueue, int pingInterval, ByteBuffer joinRequest) throws SocketException {
-            super(channel, timerQueue, pingInterval);
-            m_dataframSocket = new DatagramSocket();
-            channel.sendData(joinRequest);
+        boolean subscribe(MulticastGroup group) {
+            if (!checkServerVersion(group)) {
+                return false;
+            }
+            sendMessage(Protocol.Subscribe.create(group, getPriority(group)));
+            return true;
+        }
+
+        boolean resume(MulticastGroup group, long seq) {
+            if (!checkServerVersion(group)) {
+                return false;
+            }
+            if (m_serverVersion < Protocol.VERSION_REPLAY) {
+                System.out.println("Server does not support replay");
+                return false;
+            }
+            sendMessage(Protocol.Resume.create(group, seq, getPriority(group)));
+            return true;
+        }
+
+        boolean unsubscribe(MulticastGroup group) {
+            if (!checkServerVersion(group)) {
+                return false;
+            }
+            sendMessage(Protocol.Unsubscribe.create(group));
+            return true;
+        }
+
+        private void onGroupStatus(RetainableByteBuffer msg) throws IOException {
+            final short requestId = Protocol.GroupStatus.getRequestId(msg);
+            final MulticastGroup group = Protocol.GroupStatus.getGroup(msg);
+            final String statusText = Protocol.GroupStatus.getStatusText(msg);
+            final boolean subscribe = (requestId == Protocol.Subscribe.ID);
+            if (statusText != null) {
+                System.out.println((subscribe ? "Failed to subscribe to " : "Failed to unsubscribe from ")
+                        + group + ": " + statusText);
+            } else if (subscribe) {
+                final int groupId = Protocol.GroupStatus.getGroupId(msg);
+                if (groupId >= m_groups.length) {
+                    m_groups = Arrays.copyOf(m_groups, Math.max(m_groups.length * 2, groupId + 1));
+                }
+                m_groups[groupId] = group;
+                /* ChannelPacket of the group come after the status. */
+                m_multicastSender.setChannel(groupId, group.addr);
+                System.out.println("Subscribed to " + group);
+            } else {
+                /* Group sequence moves on while unsubscribed, next subscription starts over. */
+                final int groupId = Protocol.GroupStatus.getGroupId(msg);
+                if (groupId < m_groups.length) {
+                    m_groups[groupId] = null;
+                }
+                m_multicastSender.setChannel(groupId, null);
+                m_sequences.reset(groupId);
+                System.out.println("Unsubscribed from " + group);
+            }
+        }
+
+        private void onUdpSession(long token, int portNumber) {
+            if (m_udpReceiver != null) {
+                return;
+            }
+            final InetSocketAddress tcpAddr = (InetSocketAddress) m_channel.getRemoteAddress();
+            final InetSocketAddress serverAddr = new InetSocketAddress(tcpAddr.getAddress(), portNumber);
+            try {
+                final UdpReceiver udpReceiver = new UdpReceiver(serverAddr, token);
+                m_udpReceiver = udpReceiver;
+                udpReceiver.run();
+                m_timerQueue.schedule(udpReceiver, UDP_HELLO_INTERVAL, TimeUnit.MILLISECONDS);
+                System.out.println("Receive packets over UDP from " + serverAddr);
+            } catch (IOException ex) {
+                System.out.println("Failed to open UDP transport: " + ex.getMessage() + ", keep using TCP");
+            }
+        }
+
+        @Override
+        public void onDataReceived(RetainableByteBuffer data) {
+            super.onDataReceived(data);
+            m_multicastSender.flush();
+            if ((m_bytesReceived - m_bytesAcked) >= Protocol.Ack.INTERVAL) {
+                m_bytesAcked = m_bytesReceived;
+                sendMessage(Protocol.Ack.create(m_bytesReceived));
+            }
+        }
+
+        private void onBatch(RetainableByteBuffer msg) {
+            final int pos = msg.position();
+            final int limit = msg.limit();
+            final int end = (pos + Protocol.Message.getLength(msg));
+            int messagePos = (pos + Protocol.HEADER_SIZE);
+            while (messagePos < end) {
+                msg.limit(end);
+                msg.position(messagePos);
+                final int messageLength = Protocol.Message.getLength(msg);
+                final short id = Protocol.Message.getMessageId(msg);
+                if ((messageLength < Protocol.HEADER_SIZE) || (messagePos + messageLength > end)
+                        || ((id != Protocol.MulticastPacket.ID) && (id != Protocol.SequencedPacket.ID)
+                            && (id != Protocol.ChannelPacket.ID))) {
+                    System.out.println("Invalid batch received from "
+                            + m_channel.getRemoteAddress() + ", close connection");
+                    m_channel.closeConnection();
+                    break;
+                }
+                msg.limit(messagePos + messageLength);
+                onMulticastPacket(msg);
+                messagePos += messageLength;
+            }
+            msg.limit(limit);
+            msg.position(pos);
+        }
+
+        private void onCompressedBatch(RetainableByteBuffer msg) {
+            if (m_decompressor == null) {
+                System.out.println("Unexpected compressed batch received from "
+                        + m_channel.getRemoteAddress() + ", close connection");
+                m_channel.closeConnection();
+                return;
+            }
+            final RetainableByteBuffer batch;
+            try {
+                batch = m_decompressor.decompress(msg, m_bufferPool);
+            } catch (final IOException ex) {
+                System.out.println("Invalid compressed batch received from "
+                        + m_channel.getRemoteAddress() + ": " + ex.getMessage() + ", close connection");
+                m_channel.closeConnection();
+                return;
+            }
+            m_metrics.rawBytes.add(batch.remaining());
+            m_metrics.compressedBytes.add(Protocol.Message.getLength(msg));
+            onBatch(batch);
+            batch.release();
+        }
+
+        /* Handles MulticastPacket, SequencedPacket and ChannelPacket. */
+        private void onMulticastPacket(RetainableByteBuffer msg) {
+            if (!m_decoder.wrap(msg)) {
+                System.out.println("Invalid multicast packet received from "
+                        + m_channel.getRemoteAddress() + ", close connection");
+                m_channel.closeConnection();
+                return;
+            }
+            if (m_decoder.isSequenced() && !checkSequence(m_decoder, false)) {
+                return;
+            }
+            try {
+                final GroupTable.Destination destination = m_multicastSender.getDestination(m_decoder);
+                if (checkDuplicate(destination, m_decoder)) {
+                    m_multicastSender.add(destination, m_decoder);
+                }
+            } catch (final IOException ex) {
+                System.out.println("Invalid multicast packet received from "
+                        + m_channel.getRemoteAddress() + ": " + ex.getMessage() + ", close connection");
+                m_channel.closeConnection();
+            }
         }
 
         @Override
         public void onConnectionClosed() {
             super.onConnectionClosed();
+            final UdpReceiver udpReceiver = m_udpReceiver;
+            if (udpReceiver != null) {
+                m_udpReceiver = null;
+                try {
+                    udpReceiver.close();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            m_multicastSender.close();
             System.out.println("Connection to server " + m_channel.getRemoteAddress() + " lost.");
-            m_channel.getCollider().stop();
+
+            Map<MulticastGroup, Long> resume = null;
+            if (m_joined) {
+                resume = new HashMap<>();
+                for (int groupId=0; groupId<m_groups.length; groupId++) {
+                    if (m_groups[groupId] != null) {
+                        resume.put(m_groups[groupId], m_sequences.getNext(groupId));
+                    }
+                }
+            }
+            m_link.onConnectionLost(resume);
+        }
+
+        private void resubscribe(Map<MulticastGroup, Long> groups) {
+            for (Map.Entry<MulticastGroup, Long> entry: groups.entrySet()) {
+                final MulticastGroup group = entry.getKey();
+                if (group.isSourceSpecific() && (m_serverVersion < Protocol.VERSION_SSM)) {
+                    System.out.println("Server does not support source-specific groups, " + group + " is not resubscribed");
+                } else if (m_serverVersion >= Protocol.VERSION_REPLAY) {
+                    sendMessage(Protocol.Resume.create(group, entry.getValue(), getPriority(group)));
+                } else {
+                    sendMessage(Protocol.Subscribe.create(group, getPriority(group)));
+                }
+            }
         }
 
         @Override
@@ -65,17 +549,75 @@ public class Client {
             final short messageId = Protocol.Message.getMessageId(msg);
             if (messageId == Protocol.JoinResponse.ID) {
                 try {
+                    final int version = Protocol.JoinResponse.getVersion(msg);
                     final String statusText = Protocol.JoinResponse.getStatusText(msg);
+                    m_serverVersion = version;
                     if (statusText != null) {
-                        System.out.println(statusText);
-                        m_channel.getCollider().stop();
+                        /* Link decides on reconnect, the other servers keep going. */
+                        System.out.println("Server " + m_channel.getRemoteAddress() + " rejected join: " + statusText);
+                        m_channel.closeConnection();
+                    } else {
+                        System.out.println("Joined, protocol version " + version);
+                        m_joined = true;
+                        resubscribe(m_link.onJoined(version));
+                        if (m_udpTransport) {
+                            if (version >= Protocol.VERSION_UDP) {
+                                sendMessage(Protocol.UdpRequest.create());
+                            } else {
+                                System.out.println("Server does not support UDP transport, keep using TCP");
+                            }
+                        }
+                        if (m_decompressor != null) {
+                            if (version >= Protocol.VERSION_COMPRESSION) {
+                                sendMessage(Protocol.CompressionRequest.create());
+                            } else {
+                                System.out.println("Server does not support compression");
+                            }
+                        }
                     }
                 } catch (final CharacterCodingException ex) {
-                    System.out.println("Can't decode server response: " + ex.getMessage());
-                    m_channel.getCollider().stop();
+                    System.out.println("Can't decode response of server " + m_channel.getRemoteAddress() + ": " + ex.getMessage());
+                    m_channel.closeConnection();
                 }
             }
+            else if (messageId == Protocol.GroupStatus.ID) {
+                try {
+                    onGroupStatus(msg);
+                } catch (IOException ex) {
+                    System.out.println("Invalid message received from "
+                            + m_channel.getRemoteAddress() + ", close connection");
+                    m_channel.closeConnection();
+                }
+            }
+            else if (messageId == Protocol.UdpSession.ID) {
+                onUdpSession(Protocol.UdpSession.getToken(msg), Protocol.UdpSession.getPortNumber(msg));
+            }
             else if (messageId == Protocol.MulticastPacket.ID) {
+                m_bytesReceived += Protocol.Message.getLength(msg);
+                onMulticastPacket(msg);
+            }
+            else if ((messageId == Protocol.SequencedPacket.ID) || (messageId == Protocol.ChannelPacket.ID)) {
+                m_bytesReceived += Protocol.Message.getLength(msg);
+                onMulticastPacket(msg);
+            }
+            else if (messageId == Protocol.Batch.ID) {
+                m_bytesReceived += Protocol.Message.getLength(msg);
+                onBatch(msg);
+            }
+            else if (messageId == Protocol.CompressedBatch.ID) {
+                m_bytesReceived += Protocol.Message.getLength(msg);
+                onCompressedBatch(msg);
+            }
+            else if (messageId == Protocol.Dictionary.ID) {
+                if (m_decompressor != null) {
+                    try {
+                        m_decompressor.setDictionary(msg);
+                    } catch (final IOException ex) {
+                        System.out.println("Invalid dictionary received from "
+                                + m_channel.getRemoteAddress() + ": " + ex.getMessage() + ", close connection");
+                        m_channel.closeConnection();
+                    }
+                }
             }
             else {
                 super.onMessageReceived(msg);
@@ -83,8 +625,55 @@ public class Client {
         }
     }
 
-    public Client(Collider collider, InetSocketAddress address, TimerQueue timerQueue, int pingInterval, ByteBuffer joinRequest) {
-        final Connector connector = new TunnelConnector(address, collider, timerQueue, pingInterval, joinRequest);
-        collider.addConnector(connector);
+    private final Link [] m_links;
+
+    /* Every server gets its own join request, groups received from more than one server
+     * are merged, every packet is forwarded once whichever server delivers it first.
+     */
+    public Client(Collider collider, InetSocketAddress [] addrs, TimerQueue timerQueue, MetricsRegistry metricsRegistry,
+                  ByteBuffer [] joinRequests, MulticastSender.Config senderConfig, Config config) throws Exception {
+        final ByteBuffer rejoinRequest = Protocol.JoinRequest.create(new ArrayList<>());
+        final Deduplicator deduplicator = (addrs.length > 1) ? new Deduplicator(config.dedupWindow, addrs.length) : null;
+        m_links = new Link[addrs.length];
+        for (int idx=0; idx<m_links.length; idx++) {
+            m_links[idx] = new Link(idx, addrs[idx], collider, timerQueue, metricsRegistry,
+                    joinRequests[idx], rejoinRequest, senderConfig, config, deduplicator, m_links);
+        }
+        for (Link link: m_links) {
+            link.connect();
+        }
+    }
+
+    /* Returns false if the client is not connected or the server can not change subscriptions,
+     * the result of the request is reported when the server responds.
+     */
+    public boolean subscribe(MulticastGroup group) {
+        boolean ret = false;
+        for (Link link: m_links) {
+            final ClientChannel clientChannel = link.clientChannel;
+            ret |= ((clientChannel != null) && clientChannel.subscribe(group));
+        }
+        return ret;
+    }
+
+    /* Subscribes the group starting from the packet with the given sequence number,
+     * server replays the packets it still has.
+     */
+    public boolean resume(MulticastGroup group, long seq) {
+        boolean ret = false;
+        for (Link link: m_links) {
+            final ClientChannel clientChannel = link.clientChannel;
+            ret |= ((clientChannel != null) && clientChannel.resume(group, seq));
+        }
+        return ret;
+    }
+
+    public boolean unsubscribe(MulticastGroup group) {
+        boolean ret = false;
+        for (Link link: m_links) {
+            final ClientChannel clientChannel = link.clientChannel;
+            ret |= ((clientChannel != null) && clientChannel.unsubscribe(group));
+        }
+        return ret;
     }
 }
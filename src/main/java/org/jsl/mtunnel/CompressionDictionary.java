@@ -0,0 +1,17 @@
+package org.jsl.mtunnel;
+
+/* Sample of the group packets used as a compression history,
+ * hash table for the sample is built once and copied for every batch.
+ */
+public class CompressionDictionary {
+    public final int id;
+    public final byte [] data;
+    final int [] hashTable;
+
+    public CompressionDictionary(int id, byte [] data) {
+        this.id = id;
+        this.data = data;
+        hashTable = new int[Lz4.HASH_TABLE_SIZE];
+        Lz4.initHashTable(hashTable, data, data.length);
+    }
+}
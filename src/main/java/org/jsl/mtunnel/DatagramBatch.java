@@ -0,0 +1,78 @@
+package org.jsl.mtunnel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/* Datagrams drained from the socket in one go, preallocated and reused by the receiver thread.
+ * Datagrams are stored back to back in one direct buffer, get() returns a view of the datagram
+ * valid until the next get() or receive().
+ */
+public class DatagramBatch {
+    public static final int MAX_DATAGRAMS = 64;
+    public static final int BUFFER_SIZE = (256 * 1024);
+
+    private final ByteBuffer m_buffer;
+    private final ByteBuffer m_view;
+    private final int [] m_position;
+    private final int [] m_length;
+    private final SocketAddress [] m_source;
+    private int m_size;
+    private int m_end;
+
+    public DatagramBatch() {
+        m_buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(Protocol.BYTE_ORDER);
+        m_view = m_buffer.duplicate().order(Protocol.BYTE_ORDER);
+        m_position = new int[MAX_DATAGRAMS];
+        m_length = new int[MAX_DATAGRAMS];
+        m_source = new SocketAddress[MAX_DATAGRAMS];
+    }
+
+    /* Batch is full if the next datagram of the maximum size may not fit. */
+    public boolean isFull() {
+        return (m_size == MAX_DATAGRAMS) || ((BUFFER_SIZE - m_end) < MulticastReceiver.MAX_DATAGRAM_SIZE);
+    }
+
+    /* Receives the datagrams pending on the socket until the batch is full,
+     * returns false if the socket was drained.
+     */
+    boolean receive(DatagramChannel channel) throws IOException {
+        while (!isFull()) {
+            m_buffer.limit(BUFFER_SIZE);
+            m_buffer.position(m_end);
+            final SocketAddress sourceAddr = channel.receive(m_buffer);
+            if (sourceAddr == null) {
+                return false;
+            }
+            m_position[m_size] = m_end;
+            m_length[m_size] = (m_buffer.position() - m_end);
+            m_source[m_size] = sourceAddr;
+            m_size++;
+            m_end = m_buffer.position();
+        }
+        return true;
+    }
+
+    void clear() {
+        for (int idx=0; idx<m_size; idx++) {
+            m_source[idx] = null;
+        }
+        m_size = 0;
+        m_end = 0;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public ByteBuffer get(int idx) {
+        m_view.limit(m_position[idx] + m_length[idx]);
+        m_view.position(m_position[idx]);
+        return m_view;
+    }
+
+    public SocketAddress getSource(int idx) {
+        return m_source[idx];
+    }
+}
@@ -0,0 +1,101 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Merges the packet streams received from the redundant server connections (sides),
+ * the first copy of the packet is forwarded, copies from the other sides are dropped.
+ * Servers number the packets on their own, so the packet is identified by the digest
+ * of the group header and the payload.
+ * Lock-free set associative table, every slot keeps the upper bits of the digest
+ * and the mask of the sides the copy is still expected from, so the packet repeated
+ * by the publisher is not taken for a copy. New digest takes the first slot of the bucket
+ * not expecting anything, so concurrent copies of the same packet race for the same slot.
+ */
+public class Deduplicator {
+    public static final int MAX_SIDES = 8;
+
+    private static final long SIDES_MASK = ((1L << MAX_SIDES) - 1);
+    private static final int WAYS = 4;
+
+    private final long m_allSides;
+    private final AtomicLongArray m_slots;
+    private final int m_mask;
+
+    public Deduplicator(int window, int sides) {
+        if (sides > MAX_SIDES) {
+            throw new IllegalArgumentException("maximum number of sides exceeded: " + sides);
+        }
+        m_allSides = ((1L << sides) - 1);
+        final int buckets = Integer.highestOneBit(Math.max(window / WAYS, 1) * 2 - 1) * 2;
+        m_slots = new AtomicLongArray(buckets * WAYS);
+        m_mask = (buckets - 1);
+    }
+
+    /* Any thread, returns true if the packet is the first copy and should be forwarded. */
+    public boolean accept(long digest, int side) {
+        final long sideBit = (1L << side);
+        final long key = (digest & ~SIDES_MASK);
+        final int bucket = (((int) (digest >>> 32) & m_mask) * WAYS);
+        /* Bucket full of the pending packets evicts the one chosen by the digest. */
+        final int evictIdx = (bucket + ((int) (digest >>> MAX_SIDES) & (WAYS - 1)));
+        retry: for (;;) {
+            int idx = evictIdx;
+            long expected = 0;
+            boolean free = false;
+            for (int slot=bucket; slot<(bucket + WAYS); slot++) {
+                final long value = m_slots.get(slot);
+                if (((value & ~SIDES_MASK) == key) && ((value & sideBit) != 0)) {
+                    if (m_slots.compareAndSet(slot, value, (value & ~sideBit))) {
+                        return false;
+                    }
+                    continue retry;
+                }
+                if (!free && (((value & SIDES_MASK) == 0) || (slot == evictIdx))) {
+                    idx = slot;
+                    expected = value;
+                    free = ((value & SIDES_MASK) == 0);
+                }
+            }
+            /* Fails if the bucket changed since it was scanned. */
+            if (m_slots.compareAndSet(idx, expected, (key | (m_allSides & ~sideBit)))) {
+                return true;
+            }
+        }
+    }
+
+    private static long mix(long value) {
+        value ^= (value >>> 33);
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= (value >>> 33);
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= (value >>> 33);
+        return value;
+    }
+
+    /* Digest of the group header and the payload of the decoded packet,
+     * header is taken from the destination as the ChannelPacket has none.
+     */
+    public static long digest(GroupTable.Destination destination, MulticastPacketDecoder decoder) {
+        final RetainableByteBuffer msg = decoder.getMessage();
+        long digest = destination.header.length;
+        for (byte b: destination.header) {
+            digest = ((digest * 31) + b);
+        }
+        digest = update(mix(digest), msg, decoder.getPayloadPosition(), decoder.getPayloadLength());
+        return mix(digest ^ decoder.getPayloadLength());
+    }
+
+    private static long update(long digest, RetainableByteBuffer msg, int pos, int length) {
+        final int end = (pos + length);
+        for (; (pos + Long.BYTES) <= end; pos += Long.BYTES) {
+            digest = (Long.rotateLeft(digest ^ mix(msg.getLong(pos)), 27) * 5 + 0x52DCE729);
+        }
+        long tail = 0;
+        for (int shift=0; pos<end; pos++, shift+=Byte.SIZE) {
+            tail |= ((msg.get(pos) & 0xFFL) << shift);
+        }
+        return (Long.rotateLeft(digest ^ mix(tail), 27) * 5 + 0x52DCE729);
+    }
+}
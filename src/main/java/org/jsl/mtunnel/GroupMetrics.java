@@ -0,0 +1,101 @@
+package org.jsl.mtunnel;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+public class GroupMetrics extends Metrics implements GroupMetricsMBean {
+    public final LongAdder datagramsIn;
+    public final LongAdder bytesIn;
+    public final LongAdder datagramsFiltered;
+    public final LongAdder packetsReplayed;
+    public final LongAdder receiveBatches;
+    /* Bytes of the packets over the group rate limit of any subscriber. */
+    public final LongAdder bytesThrottled;
+    public final Histogram fanOutTime;
+    private final IntSupplier m_subscribers;
+    private final LongSupplier m_kernelDrops;
+
+    public GroupMetrics(String name, IntSupplier subscribers, LongSupplier kernelDrops) {
+        super("Group", name);
+        datagramsIn = new LongAdder();
+        bytesIn = new LongAdder();
+        datagramsFiltered = new LongAdder();
+        packetsReplayed = new LongAdder();
+        receiveBatches = new LongAdder();
+        bytesThrottled = new LongAdder();
+        fanOutTime = new Histogram();
+        m_subscribers = subscribers;
+        m_kernelDrops = kernelDrops;
+    }
+
+    public long getDatagramsIn() {
+        return datagramsIn.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getDatagramsFiltered() {
+        return datagramsFiltered.sum();
+    }
+
+    public long getPacketsReplayed() {
+        return packetsReplayed.sum();
+    }
+
+    public long getReceiveBatches() {
+        return receiveBatches.sum();
+    }
+
+    public long getBytesThrottled() {
+        return bytesThrottled.sum();
+    }
+
+    /* Datagrams dropped by the kernel on the group socket, -1 if not available. */
+    public long getKernelDrops() {
+        return m_kernelDrops.getAsLong();
+    }
+
+    public int getSubscribers() {
+        return m_subscribers.getAsInt();
+    }
+
+    public long getFanOutTimeP50() {
+        return fanOutTime.getValueAtPercentile(50);
+    }
+
+    public long getFanOutTimeP99() {
+        return fanOutTime.getValueAtPercentile(99);
+    }
+
+    public long getFanOutTimeMax() {
+        return fanOutTime.getValueAtPercentile(100);
+    }
+
+    public void reset() {
+        datagramsIn.reset();
+        bytesIn.reset();
+        datagramsFiltered.reset();
+        packetsReplayed.reset();
+        receiveBatches.reset();
+        bytesThrottled.reset();
+        fanOutTime.reset();
+    }
+
+    @Override
+    public void print(StringBuilder sb, long timestamp) {
+        sb.append("mtunnel_group,group=").append(getName());
+        sb.append(" datagrams_in=").append(datagramsIn.sum()).append('i');
+        sb.append(",bytes_in=").append(bytesIn.sum()).append('i');
+        sb.append(",datagrams_filtered=").append(datagramsFiltered.sum()).append('i');
+        sb.append(",packets_replayed=").append(packetsReplayed.sum()).append('i');
+        sb.append(",receive_batches=").append(receiveBatches.sum()).append('i');
+        sb.append(",bytes_throttled=").append(bytesThrottled.sum()).append('i');
+        sb.append(",kernel_drops=").append(m_kernelDrops.getAsLong()).append('i');
+        sb.append(",subscribers=").append(m_subscribers.getAsInt()).append('i');
+        printHistogram(sb, "fanout_ns", fanOutTime);
+        sb.append(' ').append(timestamp).append('\n');
+    }
+}
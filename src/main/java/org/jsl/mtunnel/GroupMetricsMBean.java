@@ -0,0 +1,16 @@
+package org.jsl.mtunnel;
+
+public interface GroupMetricsMBean {
+    long getDatagramsIn();
+    long getBytesIn();
+    long getDatagramsFiltered();
+    long getPacketsReplayed();
+    long getReceiveBatches();
+    long getBytesThrottled();
+    long getKernelDrops();
+    int getSubscribers();
+    long getFanOutTimeP50();
+    long getFanOutTimeP99();
+    long getFanOutTimeMax();
+    void reset();
+}
@@ -0,0 +1,30 @@
+package org.jsl.mtunnel;
+
+/* Scheduling class of the group on the congested client connection:
+ * queued packets of the higher priority groups are sent first,
+ * groups of the same priority share the connection in proportion to the weight.
+ */
+public class GroupPriority {
+    public static final int MAX_PRIORITY = 7;
+    public static final int MAX_WEIGHT = 0xFFFF;
+    public static final GroupPriority DEFAULT = new GroupPriority(0, 1);
+
+    public final int priority;
+    public final int weight;
+
+    public GroupPriority(int priority, int weight) {
+        if ((priority < 0) || (priority > MAX_PRIORITY)) {
+            throw new IllegalArgumentException("priority should be 0.." + MAX_PRIORITY + ": " + priority);
+        }
+        if ((weight < 1) || (weight > MAX_WEIGHT)) {
+            throw new IllegalArgumentException("weight should be 1.." + MAX_WEIGHT + ": " + weight);
+        }
+        this.priority = priority;
+        this.weight = weight;
+    }
+
+    @Override
+    public String toString() {
+        return priority + "/" + weight;
+    }
+}
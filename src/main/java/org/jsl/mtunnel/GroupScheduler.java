@@ -0,0 +1,285 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.util.Arrays;
+
+/* Outbound queue of the client connection with a queue per group,
+ * decides which group's packet goes to the connection next when the window opens.
+ * Strict priority between the priority levels, deficit round robin between
+ * the groups of the same level: every turn the group gets QUANTUM * weight bytes of credit
+ * and sends packets while the credit covers them. Overflow policy applies per group,
+ * so a bulk group overflowing its queue does not drop packets of the other groups.
+ * Group over its rate limit is passed over until its token bucket refills.
+ * Not thread safe.
+ */
+public class GroupScheduler {
+    private static final int QUANTUM = 1500;
+
+    private static class Group {
+        final int id;
+        OutboundQueue queue;
+        GroupPriority priority;
+        TokenBucket bucket;
+        long deficit;
+        boolean turn;
+        boolean active;
+        Group next;
+
+        Group(int id) {
+            this.id = id;
+            priority = GroupPriority.DEFAULT;
+        }
+
+        boolean isThrottled(long now) {
+            return (bucket != null) && !bucket.hasTokens(now);
+        }
+    }
+
+    private final int m_queueSize;
+    private final OutboundQueue.OverflowPolicy m_policy;
+    private Group [] m_groups;
+    /* Active groups of every priority level, served from the head. */
+    private final Group [] m_head;
+    private final Group [] m_tail;
+    private final int [] m_active;
+    /* Group chosen by peekGroupId(), served by the following poll(). */
+    private Group m_next;
+    private int m_size;
+    private long m_dropped;
+
+    public GroupScheduler(int queueSize, OutboundQueue.OverflowPolicy policy) {
+        m_queueSize = queueSize;
+        m_policy = policy;
+        m_groups = new Group[16];
+        m_head = new Group[GroupPriority.MAX_PRIORITY + 1];
+        m_tail = new Group[GroupPriority.MAX_PRIORITY + 1];
+        m_active = new int[GroupPriority.MAX_PRIORITY + 1];
+    }
+
+    private Group getGroup(int groupId) {
+        if (groupId >= m_groups.length) {
+            m_groups = Arrays.copyOf(m_groups, Math.max(m_groups.length * 2, groupId + 1));
+        }
+        Group group = m_groups[groupId];
+        if (group == null) {
+            group = new Group(groupId);
+            m_groups[groupId] = group;
+        }
+        return group;
+    }
+
+    private void activate(Group group) {
+        final int level = group.priority.priority;
+        if (m_tail[level] == null) {
+            m_head[level] = group;
+        } else {
+            m_tail[level].next = group;
+        }
+        m_tail[level] = group;
+        m_active[level]++;
+        group.active = true;
+    }
+
+    private void deactivate(Group group) {
+        final int level = group.priority.priority;
+        Group prev = null;
+        for (Group g = m_head[level]; g != group; g = g.next) {
+            prev = g;
+        }
+        if (prev == null) {
+            m_head[level] = group.next;
+        } else {
+            prev.next = group.next;
+        }
+        if (m_tail[level] == group) {
+            m_tail[level] = prev;
+        }
+        group.next = null;
+        m_active[level]--;
+        group.active = false;
+        group.deficit = 0;
+        group.turn = false;
+        m_next = null;
+    }
+
+    public void setPriority(int groupId, GroupPriority priority) {
+        final Group group = getGroup(groupId);
+        if (group.active) {
+            deactivate(group);
+            group.priority = priority;
+            activate(group);
+        } else {
+            group.priority = priority;
+        }
+    }
+
+    /* Null bucket removes the limit. */
+    public void setRateLimit(int groupId, TokenBucket bucket) {
+        getGroup(groupId).bucket = bucket;
+        m_next = null;
+    }
+
+    public boolean isThrottled(int groupId, long now) {
+        return (groupId < m_groups.length) && (m_groups[groupId] != null) && m_groups[groupId].isThrottled(now);
+    }
+
+    /* Charges the packet sent bypassing the queue. */
+    public void consume(int groupId, int bytes) {
+        final TokenBucket bucket = (groupId < m_groups.length) && (m_groups[groupId] != null) ? m_groups[groupId].bucket : null;
+        if (bucket != null) {
+            bucket.consume(bytes);
+        }
+    }
+
+    /* Nanoseconds until any of the queued groups passed over for the rate limit has tokens again,
+     * Long.MAX_VALUE if there are no such groups.
+     */
+    public long getThrottleDelay(long now) {
+        long delay = Long.MAX_VALUE;
+        for (Group group: m_groups) {
+            if ((group != null) && group.active && (group.bucket != null)) {
+                delay = Math.min(delay, group.bucket.getDelay(now));
+            }
+        }
+        return delay;
+    }
+
+    /* Drops the queued packets of the group and forgets the group. */
+    public void removeGroup(int groupId) {
+        if (groupId < m_groups.length) {
+            final Group group = m_groups[groupId];
+            if (group != null) {
+                if (group.active) {
+                    deactivate(group);
+                }
+                if (group.queue != null) {
+                    m_size -= group.queue.size();
+                    m_dropped += group.queue.getDropped();
+                    group.queue.clear();
+                }
+                m_groups[groupId] = null;
+            }
+        }
+    }
+
+    /* Conflated message replaces the newest queued message of the group if there is one.
+     * Returns false if the message can not be queued and the connection should be closed.
+     */
+    public boolean offer(RetainableByteBuffer msg, int groupId, boolean conflate) {
+        final Group group = getGroup(groupId);
+        if (group.queue == null) {
+            group.queue = new OutboundQueue(m_queueSize, m_policy);
+        }
+        if (conflate && group.queue.replaceLast(msg)) {
+            return true;
+        }
+        final int size = group.queue.size();
+        if (!group.queue.offer(msg, groupId)) {
+            return false;
+        }
+        m_size += (group.queue.size() - size);
+        if (!group.active && !group.queue.isEmpty()) {
+            activate(group);
+        }
+        m_next = null;
+        return true;
+    }
+
+    private void rotate(int level) {
+        final Group group = m_head[level];
+        if (group.next != null) {
+            m_head[level] = group.next;
+            group.next = null;
+            m_tail[level].next = group;
+            m_tail[level] = group;
+        }
+    }
+
+    private Group select(long now) {
+        if (m_next == null) {
+            for (int level=GroupPriority.MAX_PRIORITY; level>=0; level--) {
+                /* Level is done when all its groups are passed over in a row. */
+                int throttled = 0;
+                Group group;
+                while ((throttled < m_active[level]) && ((group = m_head[level]) != null)) {
+                    if (group.isThrottled(now)) {
+                        group.turn = false;
+                        rotate(level);
+                        throttled++;
+                        continue;
+                    }
+                    throttled = 0;
+                    if (!group.turn) {
+                        group.deficit += ((long) QUANTUM * group.priority.weight);
+                        group.turn = true;
+                    }
+                    if (group.deficit >= group.queue.peekSize()) {
+                        m_next = group;
+                        return group;
+                    }
+                    /* Turn is over, the rest of the credit is kept for the next one. */
+                    group.turn = false;
+                    rotate(level);
+                }
+            }
+        }
+        return m_next;
+    }
+
+    /* Group of the message to be polled next, -1 if the queue is empty
+     * or all the queued groups are over the rate limit.
+     */
+    public int peekGroupId(long now) {
+        final Group group = select(now);
+        return (group == null) ? -1 : group.id;
+    }
+
+    public RetainableByteBuffer poll(long now) {
+        final Group group = select(now);
+        if (group == null) {
+            return null;
+        }
+        final RetainableByteBuffer msg = group.queue.poll();
+        m_size--;
+        group.deficit -= msg.remaining();
+        if (group.bucket != null) {
+            group.bucket.consume(msg.remaining());
+        }
+        if (group.queue.isEmpty()) {
+            deactivate(group);
+        }
+        m_next = null;
+        return msg;
+    }
+
+    public boolean isEmpty() {
+        return (m_size == 0);
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public long getDropped() {
+        long dropped = m_dropped;
+        for (Group group: m_groups) {
+            if ((group != null) && (group.queue != null)) {
+                dropped += group.queue.getDropped();
+            }
+        }
+        return dropped;
+    }
+
+    public void clear() {
+        for (Group group: m_groups) {
+            if ((group != null) && (group.queue != null)) {
+                if (group.active) {
+                    deactivate(group);
+                }
+                group.queue.clear();
+            }
+        }
+        m_size = 0;
+    }
+}
@@ -0,0 +1,187 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/* Interned destinations of the multicast packets keyed by the raw packet header,
+ * lookup of a group seen before allocates nothing. Not thread safe.
+ * Destinations of the ChannelPacket are set by the group id on subscription.
+ */
+public class GroupTable {
+    private static final int INITIAL_TABLE_SIZE = 64;
+
+    public static class Destination {
+        final byte [] header;
+        final int hash;
+        public final InetSocketAddress addr;
+
+        Destination(byte [] header, int hash, InetSocketAddress addr) {
+            this.header = header;
+            this.hash = hash;
+            this.addr = addr;
+        }
+    }
+
+    private Destination [] m_table;
+    private int m_count;
+    /* Last destination seen for the server group id, ids are reused by the server,
+     * so the header is still compared.
+     */
+    private Destination [] m_groups;
+    private Destination [] m_channels;
+
+    public GroupTable() {
+        m_table = new Destination[INITIAL_TABLE_SIZE];
+        m_groups = new Destination[16];
+        m_channels = new Destination[16];
+    }
+
+    /* Null address clears the group id. */
+    public void setChannel(int groupId, InetSocketAddress addr) throws IOException {
+        if (groupId >= m_channels.length) {
+            m_channels = Arrays.copyOf(m_channels, Math.max(m_channels.length * 2, groupId + 1));
+        }
+        m_channels[groupId] = (addr == null) ? null : intern(addr);
+    }
+
+    private Destination intern(InetSocketAddress addr) throws IOException {
+        if (!addr.getAddress().isMulticastAddress()) {
+            throw new IOException(addr + " is not a multicast address");
+        }
+        final byte [] header = Protocol.MulticastPacket.createHeader(addr);
+        int hash = header.length;
+        for (byte b: header) {
+            hash = (hash * 31) + b;
+        }
+        hash ^= (hash >>> 16);
+        final int mask = (m_table.length - 1);
+        int idx = (hash & mask);
+        for (;;) {
+            final Destination destination = m_table[idx];
+            if (destination == null) {
+                break;
+            }
+            if ((destination.hash == hash) && Arrays.equals(destination.header, header)) {
+                return destination;
+            }
+            idx = ((idx + 1) & mask);
+        }
+        final Destination destination = new Destination(header, hash, addr);
+        m_table[idx] = destination;
+        if (++m_count * 2 > m_table.length) {
+            grow();
+        }
+        return destination;
+    }
+
+    private static int hash(RetainableByteBuffer buf, int pos, int length) {
+        int hash = length;
+        for (int idx=0; idx<length; idx++) {
+            hash = (hash * 31) + buf.get(pos + idx);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte [] header, RetainableByteBuffer buf, int pos, int length) {
+        if (header.length != length) {
+            return false;
+        }
+        for (int idx=0; idx<length; idx++) {
+            if (header[idx] != buf.get(pos + idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        final Destination [] table = new Destination[m_table.length * 2];
+        final int mask = (table.length - 1);
+        for (Destination destination: m_table) {
+            if (destination != null) {
+                int idx = (destination.hash & mask);
+                while (table[idx] != null) {
+                    idx = ((idx + 1) & mask);
+                }
+                table[idx] = destination;
+            }
+        }
+        m_table = table;
+    }
+
+    public int size() {
+        return m_count;
+    }
+
+    public Destination get(MulticastPacketDecoder decoder) throws IOException {
+        if (decoder.isChannelPacket()) {
+            final int groupId = decoder.getGroupId();
+            final Destination destination = (groupId < m_channels.length) ? m_channels[groupId] : null;
+            if (destination == null) {
+                throw new IOException("packet of the unknown group " + groupId);
+            }
+            return destination;
+        }
+
+        final RetainableByteBuffer msg = decoder.getMessage();
+        final int pos = decoder.getHeaderPosition();
+        final int length = decoder.getHeaderLength();
+        final int groupId = decoder.getGroupId();
+
+        if ((groupId >= 0) && (groupId < m_groups.length)) {
+            final Destination destination = m_groups[groupId];
+            if ((destination != null) && equals(destination.header, msg, pos, length)) {
+                return destination;
+            }
+        }
+
+        final Destination destination = lookup(decoder, msg, pos, length);
+        if (groupId >= 0) {
+            if (groupId >= m_groups.length) {
+                m_groups = Arrays.copyOf(m_groups, Math.max(m_groups.length * 2, groupId + 1));
+            }
+            m_groups[groupId] = destination;
+        }
+        return destination;
+    }
+
+    private Destination lookup(MulticastPacketDecoder decoder, RetainableByteBuffer msg, int pos, int length) throws IOException {
+        final int hash = hash(msg, pos, length);
+        final int mask = (m_table.length - 1);
+        int idx = (hash & mask);
+        for (;;) {
+            final Destination destination = m_table[idx];
+            if (destination == null) {
+                break;
+            }
+            if ((destination.hash == hash) && equals(destination.header, msg, pos, length)) {
+                return destination;
+            }
+            idx = ((idx + 1) & mask);
+        }
+
+        final byte [] header = new byte[length];
+        for (int i=0; i<length; i++) {
+            header[i] = msg.get(pos + i);
+        }
+        final byte [] rawAddr = new byte[decoder.getAddressLength()];
+        for (int i=0; i<rawAddr.length; i++) {
+            rawAddr[i] = decoder.getAddressByte(i);
+        }
+        final InetSocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(rawAddr), decoder.getPort());
+        if (!addr.getAddress().isMulticastAddress()) {
+            throw new IOException(addr + " is not a multicast address");
+        }
+
+        final Destination destination = new Destination(header, hash, addr);
+        m_table[idx] = destination;
+        if (++m_count * 2 > m_table.length) {
+            grow();
+        }
+        return destination;
+    }
+}
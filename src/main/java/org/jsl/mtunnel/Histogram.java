@@ -0,0 +1,80 @@
+package org.jsl.mtunnel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Log-linear histogram of non-negative values (HdrHistogram like),
+ * every power of 2 range is split into 16 sub-buckets, so the value
+ * is reported with ~6% precision. Recording does not allocate.
+ */
+public class Histogram {
+    private static final int LINEAR_BITS = 5;
+    private static final int LINEAR_BUCKETS = (1 << LINEAR_BITS);
+    private static final int SUB_BUCKET_BITS = (LINEAR_BITS - 1);
+    private static final int SUB_BUCKETS = (1 << SUB_BUCKET_BITS);
+    private static final int BUCKETS = LINEAR_BUCKETS + (Long.SIZE - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_counts;
+
+    public Histogram() {
+        m_counts = new AtomicLongArray(BUCKETS);
+    }
+
+    private static int getIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        final int exponent = (63 - Long.numberOfLeadingZeros(value));
+        final int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        final int exponent = ((index - LINEAR_BUCKETS) / SUB_BUCKETS) + LINEAR_BITS;
+        final long subBucket = ((index - LINEAR_BUCKETS) % SUB_BUCKETS);
+        final long lowerBound = ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        m_counts.incrementAndGet(getIndex(value));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int idx=0; idx<BUCKETS; idx++) {
+            count += m_counts.get(idx);
+        }
+        return count;
+    }
+
+    /* Returns the value at the percentile (0..100), 0 if nothing was recorded. */
+    public long getValueAtPercentile(double percentile) {
+        final long [] counts = new long[BUCKETS];
+        long total = 0;
+        for (int idx=0; idx<BUCKETS; idx++) {
+            counts[idx] = m_counts.get(idx);
+            total += counts[idx];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long count = 0;
+        for (int idx=0; idx<BUCKETS; idx++) {
+            count += counts[idx];
+            if (count >= rank) {
+                return getUpperBound(idx);
+            }
+        }
+        return getUpperBound(BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int idx=0; idx<BUCKETS; idx++) {
+            m_counts.set(idx, 0);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.jsl.mtunnel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* Journal of the tunneled multicast streams: directory with a stream per receiver thread,
+ * every stream is a directory of the fixed size segments written one after another,
+ * <seq>.journal with the records and <seq>.index with the sparse time index of the segment.
+ * Segment: [magic:32][segment size:32] then records
+ * [length:32][timestamp:64][source length:8][source address][MulticastPacket message],
+ * length includes the record header, zero length means no more records in the segment.
+ * Timestamp is the receive time in nanoseconds since the epoch, ascending within the stream.
+ * Index: [timestamp:64][record offset:64] for the first record of the segment
+ * and then every INDEX_INTERVAL bytes, zero timestamp means no more entries.
+ */
+public class Journal {
+    public static final int MAGIC = 0x4D544A32;
+    public static final int SEGMENT_HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int INDEX_INTERVAL = (64 * 1024);
+    public static final int PAGE_SIZE = 4096;
+    public static final int DEFAULT_SEGMENT_SIZE = (256 * 1024 * 1024);
+
+    private static final String DATA_SUFFIX = ".journal";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            System.out.println("Journal segments are unmapped by GC: " + ex);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    static class Segment {
+        final int seq;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+
+        Segment(int seq, MappedByteBuffer data, MappedByteBuffer index) {
+            this.seq = seq;
+            this.data = data;
+            this.index = index;
+        }
+    }
+
+    static int getIndexSize(int segmentSize) {
+        return ((segmentSize / INDEX_INTERVAL) + 2) * INDEX_ENTRY_SIZE;
+    }
+
+    static Path getDataPath(Path dir, int seq) {
+        return dir.resolve(String.format("%08d", seq) + DATA_SUFFIX);
+    }
+
+    static Path getIndexPath(Path dir, int seq) {
+        return dir.resolve(String.format("%08d", seq) + INDEX_SUFFIX);
+    }
+
+    static Path getStreamPath(Path dir, int receiver) {
+        return dir.resolve("receiver-" + receiver);
+    }
+
+    /* Java 11 has no public unmap, the mapping would stay until GC otherwise.
+     * The buffer should not be used after.
+     */
+    static void unmap(MappedByteBuffer buf) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            } catch (ReflectiveOperationException ex) {
+                System.out.println("Failed to unmap journal segment: " + ex);
+            }
+        }
+    }
+
+    /* Sequence numbers of the segments in the directory, ascending. */
+    static int [] listSegments(Path dir) throws IOException {
+        int [] segments = new int[16];
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + DATA_SUFFIX)) {
+            for (Path path: stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    final int seq = Integer.parseInt(name.substring(0, name.length() - DATA_SUFFIX.length()));
+                    if (count == segments.length) {
+                        segments = Arrays.copyOf(segments, count * 2);
+                    }
+                    segments[count++] = seq;
+                } catch (final NumberFormatException ex) {
+                    /* not a segment */
+                }
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /* Directories of the journal with the segments, the journal directory itself included. */
+    static Path [] listStreams(Path dir) throws IOException {
+        final ArrayList<Path> streams = new ArrayList<>();
+        if (listSegments(dir).length > 0) {
+            streams.add(dir);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path path: stream) {
+                if (listSegments(path).length > 0) {
+                    streams.add(path);
+                }
+            }
+        }
+        return streams.toArray(new Path[0]);
+    }
+}
@@ -0,0 +1,36 @@
+package org.jsl.mtunnel;
+
+public class JournalMetrics extends Metrics implements JournalMetricsMBean {
+    private final JournalWriter m_writer;
+
+    public JournalMetrics(String name, JournalWriter writer) {
+        super("Journal", name);
+        m_writer = writer;
+    }
+
+    public long getRecords() {
+        return m_writer.getRecords();
+    }
+
+    public long getBytes() {
+        return m_writer.getBytes();
+    }
+
+    public long getDropped() {
+        return m_writer.getDropped();
+    }
+
+    public long getStalls() {
+        return m_writer.getStalls();
+    }
+
+    @Override
+    public void print(StringBuilder sb, long timestamp) {
+        sb.append("mtunnel_journal,journal=").append(getName());
+        sb.append(" records=").append(m_writer.getRecords()).append('i');
+        sb.append(",bytes=").append(m_writer.getBytes()).append('i');
+        sb.append(",dropped=").append(m_writer.getDropped()).append('i');
+        sb.append(",stalls=").append(m_writer.getStalls()).append('i');
+        sb.append(' ').append(timestamp).append('\n');
+    }
+}
@@ -0,0 +1,8 @@
+package org.jsl.mtunnel;
+
+public interface JournalMetricsMBean {
+    long getRecords();
+    long getBytes();
+    long getDropped();
+    long getStalls();
+}
@@ -0,0 +1,154 @@
+package org.jsl.mtunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Reads the journal stream written by the JournalWriter record by record,
+ * the packet is a view of the mapped segment valid until the next call to next().
+ * Not thread safe.
+ */
+public class JournalReader {
+    private final Path m_dir;
+    private final int [] m_segments;
+    private int m_segmentIdx;
+    private MappedByteBuffer m_data;
+    private ByteBuffer m_packet;
+    private long m_timestamp;
+    private int m_sourcePos;
+    private int m_sourceLength;
+
+    public JournalReader(Path dir) throws IOException {
+        m_dir = dir;
+        m_segments = Journal.listSegments(dir);
+        if (m_segments.length == 0) {
+            throw new IOException("no journal segments in " + dir);
+        }
+        m_segmentIdx = -1;
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(Protocol.BYTE_ORDER);
+            return buf;
+        }
+    }
+
+    private void openSegment(int segmentIdx) throws IOException {
+        final int seq = m_segments[segmentIdx];
+        final MappedByteBuffer data = map(Journal.getDataPath(m_dir, seq));
+        if ((data.capacity() < Journal.SEGMENT_HEADER_SIZE) || (data.getInt(0) != Journal.MAGIC)) {
+            throw new IOException("invalid journal segment " + Journal.getDataPath(m_dir, seq));
+        }
+        data.position(Journal.SEGMENT_HEADER_SIZE);
+        m_segmentIdx = segmentIdx;
+        m_data = data;
+        m_packet = data.duplicate();
+        m_packet.order(Protocol.BYTE_ORDER);
+        m_packet.limit(0);
+    }
+
+    /* Offset of the last indexed record of the segment not later than the timestamp,
+     * -1 if the first record of the segment is later.
+     */
+    private long findOffset(int segmentIdx, long timestamp) throws IOException {
+        final MappedByteBuffer index = map(Journal.getIndexPath(m_dir, m_segments[segmentIdx]));
+        long offset = -1;
+        for (int pos=0; pos+Journal.INDEX_ENTRY_SIZE<=index.capacity(); pos+=Journal.INDEX_ENTRY_SIZE) {
+            final long ts = index.getLong(pos);
+            if ((ts == 0) || (ts > timestamp)) {
+                break;
+            }
+            offset = index.getLong(pos + (Long.SIZE / Byte.SIZE));
+        }
+        return offset;
+    }
+
+    /* Positions the reader before the first record not earlier than the timestamp. */
+    public void seek(long timestamp) throws IOException {
+        int segmentIdx = 0;
+        long offset = Journal.SEGMENT_HEADER_SIZE;
+        for (int idx=m_segments.length-1; idx>=0; idx--) {
+            final long off = findOffset(idx, timestamp);
+            if (off >= 0) {
+                segmentIdx = idx;
+                offset = off;
+                break;
+            }
+        }
+        openSegment(segmentIdx);
+        m_data.position((int) offset);
+        /* Index is sparse, skip the earlier records after the indexed one. */
+        for (;;) {
+            final int pos = m_data.position();
+            if (!next()) {
+                break;
+            }
+            if (m_timestamp >= timestamp) {
+                if (m_segmentIdx == segmentIdx) {
+                    m_data.position(pos);
+                } else {
+                    openSegment(m_segmentIdx);
+                }
+                break;
+            }
+        }
+    }
+
+    /* Moves to the next record, returns false at the end of the journal. */
+    public boolean next() throws IOException {
+        if (m_data == null) {
+            openSegment(0);
+        }
+        for (;;) {
+            final int pos = m_data.position();
+            final int length = (m_data.remaining() >= Journal.RECORD_HEADER_SIZE) ? m_data.getInt(pos) : 0;
+            if (length > 0) {
+                final int sourceLength = (length > Journal.RECORD_HEADER_SIZE)
+                        ? Byte.toUnsignedInt(m_data.get(pos + Journal.RECORD_HEADER_SIZE)) : 0;
+                if ((length < (Journal.RECORD_HEADER_SIZE + 1 + sourceLength)) || (length > m_data.remaining())) {
+                    throw new IOException("corrupted journal segment "
+                            + Journal.getDataPath(m_dir, m_segments[m_segmentIdx]) + " at " + pos);
+                }
+                m_timestamp = m_data.getLong(pos + (Integer.SIZE / Byte.SIZE));
+                m_sourcePos = (pos + Journal.RECORD_HEADER_SIZE + 1);
+                m_sourceLength = sourceLength;
+                m_data.position(pos + length);
+                m_packet.limit(pos + length);
+                m_packet.position(m_sourcePos + sourceLength);
+                return true;
+            }
+            if ((m_segmentIdx + 1) == m_segments.length) {
+                return false;
+            }
+            openSegment(m_segmentIdx + 1);
+        }
+    }
+
+    /* Receive time of the current record, nanoseconds since the epoch. */
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    /* Checks the raw address of the current record sender. */
+    public boolean isSource(byte [] addr) {
+        if (addr.length != m_sourceLength) {
+            return false;
+        }
+        for (int idx=0; idx<addr.length; idx++) {
+            if (m_data.get(m_sourcePos + idx) != addr[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* MulticastPacket message of the current record, the view is reused by the following records. */
+    public ByteBuffer getPacket() {
+        return m_packet;
+    }
+}
@@ -0,0 +1,238 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Appends the received MulticastPacket messages to the journal stream, see Journal for the format.
+ * Writer belongs to one receiver thread, so the append takes no lock and allocates nothing,
+ * record is copied to the memory mapped segment.
+ * Mapping the file and faulting its pages in takes milliseconds, so the next segment
+ * is prepared by the background thread while the current one is being filled,
+ * if it is not ready yet the receiver waits and the background thread stops faulting the pages in.
+ * Full segment is flushed to the disk and unmapped by the background thread too.
+ * Record larger than the segment is dropped.
+ */
+public class JournalWriter implements Runnable {
+    private final Path m_dir;
+    private final int m_segmentSize;
+    private final Thread m_thread;
+    private final AtomicLong m_records;
+    private final AtomicLong m_bytes;
+    private final AtomicLong m_dropped;
+    private final AtomicLong m_stalls;
+    private Journal.Segment m_segment;
+    private int m_lastIndexPos;
+    /* Segments prepared and retired by the background thread, guarded by m_lock. */
+    private final Object m_lock;
+    private final ArrayDeque<Journal.Segment> m_retired;
+    private Journal.Segment m_next;
+    private boolean m_failed;
+    private boolean m_stop;
+    private volatile boolean m_waiting;
+    private int m_nextSeq;
+
+    public JournalWriter(Path dir, int segmentSize, String name) throws IOException {
+        if (segmentSize <= (Journal.SEGMENT_HEADER_SIZE + Journal.RECORD_HEADER_SIZE)) {
+            throw new IOException("invalid journal segment size " + segmentSize);
+        }
+        Files.createDirectories(dir);
+        m_dir = dir;
+        m_segmentSize = segmentSize;
+        m_records = new AtomicLong();
+        m_bytes = new AtomicLong();
+        m_dropped = new AtomicLong();
+        m_stalls = new AtomicLong();
+        m_lock = new Object();
+        m_retired = new ArrayDeque<>();
+        final int [] segments = Journal.listSegments(dir);
+        m_nextSeq = (segments.length == 0) ? 0 : (segments[segments.length - 1] + 1);
+        m_segment = map(m_nextSeq++);
+        m_thread = new Thread(this, name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    public Path getDirectory() {
+        return m_dir;
+    }
+
+    private Journal.Segment map(int seq) throws IOException {
+        final int indexSize = Journal.getIndexSize(m_segmentSize);
+        try (FileChannel data = FileChannel.open(Journal.getDataPath(m_dir, seq),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel index = FileChannel.open(Journal.getIndexPath(m_dir, seq),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer dataBuf = data.map(FileChannel.MapMode.READ_WRITE, 0, m_segmentSize);
+            final MappedByteBuffer indexBuf = index.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+            dataBuf.order(Protocol.BYTE_ORDER);
+            indexBuf.order(Protocol.BYTE_ORDER);
+            dataBuf.putInt(0, Journal.MAGIC);
+            dataBuf.putInt(4, m_segmentSize);
+            dataBuf.position(Journal.SEGMENT_HEADER_SIZE);
+            return new Journal.Segment(seq, dataBuf, indexBuf);
+        }
+    }
+
+    private static void retire(Journal.Segment segment) {
+        segment.data.force();
+        segment.index.force();
+        Journal.unmap(segment.data);
+        Journal.unmap(segment.index);
+    }
+
+    /* Writes into every page, so the receiver does not take the page faults. */
+    private void prefault(MappedByteBuffer buf) {
+        for (int pos=Journal.SEGMENT_HEADER_SIZE; (pos<buf.capacity()) && !m_waiting; pos+=Journal.PAGE_SIZE) {
+            buf.put(pos, (byte) 0);
+        }
+    }
+
+    public void run() {
+        for (;;) {
+            final Journal.Segment retired;
+            final boolean prepare;
+            synchronized (m_lock) {
+                while (!m_stop && ((m_next != null) || m_failed) && m_retired.isEmpty()) {
+                    try {
+                        m_lock.wait();
+                    } catch (final InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (m_stop && m_retired.isEmpty()) {
+                    return;
+                }
+                prepare = (!m_stop && (m_next == null) && !m_failed);
+                retired = prepare ? null : m_retired.poll();
+            }
+
+            if (retired != null) {
+                retire(retired);
+                continue;
+            }
+
+            /* Receiver may be waiting for the next segment, the full one can wait. */
+            final int seq = m_nextSeq++;
+            try {
+                final Journal.Segment segment = map(seq);
+                prefault(segment.data);
+                synchronized (m_lock) {
+                    m_next = segment;
+                    m_lock.notifyAll();
+                }
+            } catch (final IOException ex) {
+                System.out.println("Failed to create journal segment " + seq + ": " + ex.getMessage());
+                synchronized (m_lock) {
+                    m_failed = true;
+                    m_lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean roll() {
+        final Journal.Segment next;
+        synchronized (m_lock) {
+            if (m_next == null) {
+                m_stalls.incrementAndGet();
+                m_waiting = true;
+                try {
+                    while ((m_next == null) && !m_failed) {
+                        m_lock.wait();
+                    }
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    m_waiting = false;
+                }
+            }
+            next = m_next;
+            m_next = null;
+            m_retired.add(m_segment);
+            m_lock.notifyAll();
+        }
+        m_segment = next;
+        m_lastIndexPos = 0;
+        return (next != null);
+    }
+
+    /* Receiver thread only, msg is the MulticastPacket message, its position is kept.
+     * Source is the raw address of the packet sender.
+     */
+    public void append(long timestamp, byte [] source, RetainableByteBuffer msg) {
+        final int size = (Journal.RECORD_HEADER_SIZE + 1 + source.length + msg.remaining());
+        if ((size > (m_segmentSize - Journal.SEGMENT_HEADER_SIZE)) || (m_segment == null)) {
+            m_dropped.incrementAndGet();
+            return;
+        }
+        if ((m_segment.data.remaining() < size) && !roll()) {
+            m_dropped.incrementAndGet();
+            return;
+        }
+
+        final MappedByteBuffer data = m_segment.data;
+        final int recordPos = data.position();
+        data.position(recordPos + Journal.RECORD_HEADER_SIZE);
+        data.put((byte) source.length);
+        data.put(source);
+        final int pos = msg.position();
+        data.put(msg.getNioByteBuffer());
+        msg.position(pos);
+        data.putLong(recordPos + (Integer.SIZE / Byte.SIZE), timestamp);
+        /* Length goes last, zero length is the end of the segment. */
+        data.putInt(recordPos, size);
+
+        if ((m_lastIndexPos == 0) || ((recordPos - m_lastIndexPos) >= Journal.INDEX_INTERVAL)) {
+            final MappedByteBuffer index = m_segment.index;
+            if (index.remaining() >= Journal.INDEX_ENTRY_SIZE) {
+                index.putLong(timestamp);
+                index.putLong(recordPos);
+            }
+            m_lastIndexPos = recordPos;
+        }
+        m_records.incrementAndGet();
+        m_bytes.addAndGet(size);
+    }
+
+    public long getRecords() {
+        return m_records.get();
+    }
+
+    public long getBytes() {
+        return m_bytes.get();
+    }
+
+    public long getDropped() {
+        return m_dropped.get();
+    }
+
+    /* Receiver waited for the next segment. */
+    public long getStalls() {
+        return m_stalls.get();
+    }
+
+    /* Receiver thread should not append any more. */
+    public void close() throws InterruptedException {
+        synchronized (m_lock) {
+            m_stop = true;
+            m_lock.notifyAll();
+        }
+        m_thread.join();
+        if (m_segment != null) {
+            retire(m_segment);
+            m_segment = null;
+        }
+        if (m_next != null) {
+            retire(m_next);
+            m_next = null;
+        }
+    }
+}
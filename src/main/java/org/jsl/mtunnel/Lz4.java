@@ -0,0 +1,182 @@
+package org.jsl.mtunnel;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/* LZ4 block format codec working on byte arrays, no allocation.
+ * Data is compressed with the bytes in front of it (dictionary) as a history,
+ * so the same dictionary bytes should precede the data on decompression.
+ */
+public class Lz4 {
+    public static final int HASH_LOG = 12;
+    public static final int HASH_TABLE_SIZE = (1 << HASH_LOG);
+    public static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    public static int maxCompressedLength(int length) {
+        return length + (length / 255) + 16;
+    }
+
+    private static int readInt(byte [] buf, int pos) {
+        return (buf[pos] & 0xFF) | ((buf[pos+1] & 0xFF) << 8) | ((buf[pos+2] & 0xFF) << 16) | (buf[pos+3] << 24);
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (Integer.SIZE - HASH_LOG);
+    }
+
+    /* Fills the hash table with positions of the dictionary src[0, length). */
+    public static void initHashTable(int [] table, byte [] src, int length) {
+        Arrays.fill(table, -1);
+        for (int pos=0; pos<=(length-MIN_MATCH); pos++) {
+            table[hash(readInt(src, pos))] = pos;
+        }
+    }
+
+    private static int writeLength(byte [] dst, int pos, int length) {
+        while (length >= 255) {
+            dst[pos++] = (byte) 255;
+            length -= 255;
+        }
+        dst[pos++] = (byte) length;
+        return pos;
+    }
+
+    private static int writeLiterals(byte [] src, int anchor, int length, byte [] dst, int pos, int matchToken) {
+        final int tokenPos = pos++;
+        if (length >= 15) {
+            dst[tokenPos] = (byte) ((15 << 4) | matchToken);
+            pos = writeLength(dst, pos, length - 15);
+        } else {
+            dst[tokenPos] = (byte) ((length << 4) | matchToken);
+        }
+        System.arraycopy(src, anchor, dst, pos, length);
+        return pos + length;
+    }
+
+    /* Compresses src[start, end) to dst starting at dstPos, src[0, start) is a dictionary
+     * and the table should be initialized for it (initHashTable) or filled with -1.
+     * Returns the end position in dst, dst should have maxCompressedLength() bytes available.
+     */
+    public static int compress(byte [] src, int start, int end, byte [] dst, int dstPos, int [] table) {
+        int anchor = start;
+        int ip = start;
+        final int mfLimit = (end - MF_LIMIT);
+        final int matchLimit = (end - LAST_LITERALS);
+
+        int searchCount = (1 << SKIP_TRIGGER);
+        while (ip < mfLimit) {
+            final int sequence = readInt(src, ip);
+            final int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+
+            if ((ref < 0) || ((ip - ref) > MAX_OFFSET) || (readInt(src, ref) != sequence)) {
+                ip += (searchCount++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            searchCount = (1 << SKIP_TRIGGER);
+
+            while ((ip > anchor) && (ref > 0) && (src[ip-1] == src[ref-1])) {
+                ip--;
+                ref--;
+            }
+
+            int matchLength = MIN_MATCH;
+            while ((ip + matchLength < matchLimit) && (src[ip+matchLength] == src[ref+matchLength])) {
+                matchLength++;
+            }
+
+            final int matchToken = Math.min(matchLength - MIN_MATCH, 15);
+            dstPos = writeLiterals(src, anchor, ip - anchor, dst, dstPos, matchToken);
+            final int offset = (ip - ref);
+            dst[dstPos++] = (byte) offset;
+            dst[dstPos++] = (byte) (offset >>> 8);
+            if (matchToken == 15) {
+                dstPos = writeLength(dst, dstPos, matchLength - MIN_MATCH - 15);
+            }
+
+            ip += matchLength;
+            anchor = ip;
+            if (ip < mfLimit) {
+                table[hash(readInt(src, ip - 2))] = (ip - 2);
+            }
+        }
+
+        return writeLiterals(src, anchor, end - anchor, dst, dstPos, 0);
+    }
+
+    /* Decompresses src[pos, end) to dst starting at dstStart, dst[0, dstStart) should contain
+     * the dictionary used on compression. Returns the end position in dst.
+     */
+    public static int decompress(byte [] src, int pos, int end, byte [] dst, int dstStart, int dstEnd) throws IOException {
+        int op = dstStart;
+        for (;;) {
+            if (pos >= end) {
+                throw new IOException("truncated compressed data");
+            }
+            final int token = (src[pos++] & 0xFF);
+
+            int literalLength = (token >>> 4);
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (pos >= end) {
+                        throw new IOException("truncated compressed data");
+                    }
+                    b = (src[pos++] & 0xFF);
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if ((literalLength > (end - pos)) || (literalLength > (dstEnd - op))) {
+                throw new IOException("invalid literal length " + literalLength);
+            }
+            System.arraycopy(src, pos, dst, op, literalLength);
+            pos += literalLength;
+            op += literalLength;
+
+            if (pos == end) {
+                return op;
+            }
+
+            if ((end - pos) < 2) {
+                throw new IOException("truncated compressed data");
+            }
+            final int offset = (src[pos] & 0xFF) | ((src[pos+1] & 0xFF) << 8);
+            pos += 2;
+            if ((offset == 0) || (offset > op)) {
+                throw new IOException("invalid match offset " + offset);
+            }
+
+            int matchLength = (token & 0x0F);
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (pos >= end) {
+                        throw new IOException("truncated compressed data");
+                    }
+                    b = (src[pos++] & 0xFF);
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > (dstEnd - op)) {
+                throw new IOException("invalid match length " + matchLength);
+            }
+
+            int ref = (op - offset);
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int idx=0; idx<matchLength; idx++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+    }
+}
@@ -4,17 +4,39 @@ import org.jsl.collider.Collider;
 import org.jsl.collider.TimerQueue;
 import org.jsl.collider.Util;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 
 public class Main {
     private static void printUsage() {
-        System.out.println("Usage: mtunnel -s <server address|server port>");
+        System.out.println("Usage: mtunnel -s <server address|server port> [-metrics <seconds>] [-ping <msec>] [-ping-timeout <pings>] [-udp] [-compress]");
+        System.out.println("        [-message-memory <bytes>] [-leak-detect]");
+        System.out.println("        -ping 0 sends no pings, -ping-timeout 0 never closes the connection without pongs");
+        System.out.println("  server: -s <port> -i <interface> [-threads <n>] [-receivers <n>] [-batch <bytes>] [-batch-delay <usec>]");
+        System.out.println("          [-window <bytes>] [-queue <packets>] [-overflow drop-oldest|drop-newest|conflate|disconnect]");
+        System.out.println("          [-retransmit <packets>] [-dictionary <bytes>] [-replay <packets>] [-replay-buffer <bytes>] [-replay-time <msec>]");
+        System.out.println("          [-receive-batch] [-rcvbuf [<group:port>=]<bytes>] [-rcvbuf ...]");
+        System.out.println("          [-rate <bytes/sec>[/<burst bytes>]] [-group-rate <group:port>=<bytes/sec>[/<burst bytes>]] [-group-rate ...]");
+        System.out.println("          [-rate-policy queue|drop|conflate] [-record <directory>] [-record-segment <bytes>]");
+        System.out.println("          [-playback <directory>] [-playback-speed <x>] [-playback-delay <msec>] [-playback-from <epoch msec>]");
+        System.out.println("          -record journals the received packets, -playback sends the journal instead of joining the groups,");
+        System.out.println("          -playback-speed 1 keeps the original pacing, 0 plays as fast as possible");
+        System.out.println("  client: -s <address:port> -g <[source@]group:port> [-g ...] [-i <interface>] [-threads <n>] [-ttl <ttl>] [-loop] [-snapshot <packets>]");
+        System.out.println("          [-reconnect] [-reconnect-delay <msec>] [-reconnect-max-delay <msec>] [-dedup <packets>]");
+        System.out.println("          [-priority <[source@]group:port>=<priority 0-7>[/<weight>]] [-priority ...]");
+        System.out.println("          -s can be repeated to receive the groups through redundant servers, -g after -s applies to that server only,");
+        System.out.println("          -g before the first -s applies to all servers, packets received from more than one server are forwarded once");
+        System.out.println("          when the connection is congested higher priority groups are sent first, groups of the same priority share it by weight");
+        System.out.println("          groups can be changed with 'subscribe <[source@]group:port>', 'unsubscribe ...' and 'resume ... <seq>' on stdin");
     }
 
     private static void printErrorAndUsage(String err) {
@@ -42,12 +64,106 @@ public class Main {
         }
     }
 
+    /* Group is specified as [source@]group:port. */
+    private static MulticastGroup parseGroup(String str) throws Exception {
+        InetAddress source = null;
+        final int idx = str.indexOf('@');
+        if (idx >= 0) {
+            try {
+                source = InetAddress.getByName(str.substring(0, idx));
+            } catch (UnknownHostException ex) {
+                throw new Exception("failed to resolve source '" + str.substring(0, idx) + "': " + ex.toString());
+            }
+            str = str.substring(idx + 1);
+        }
+        final InetSocketAddress addr = parseAddress(str);
+        if (addr == null) {
+            throw new Exception("invalid group address '" + str + "'");
+        }
+        return new MulticastGroup(addr, source);
+    }
+
+    /* Rate limit is specified as <bytes/sec>[/<burst bytes>]. */
+    private static RateLimit parseRateLimit(String str) throws NumberFormatException {
+        final String [] parts = str.split("/");
+        if (parts.length > 2) {
+            throw new NumberFormatException("expected <bytes/sec>[/<burst bytes>]");
+        }
+        try {
+            final long rate = Long.parseLong(parts[0]);
+            return (parts.length == 2) ? new RateLimit(rate, Long.parseLong(parts[1])) : new RateLimit(rate);
+        } catch (IllegalArgumentException ex) {
+            throw new NumberFormatException(ex.getMessage());
+        }
+    }
+
+    private static NetworkInterface getNetworkInterface(String name) throws SocketException {
+        InetAddress networkInterfaceAddr = null;
+        try {
+            networkInterfaceAddr = InetAddress.getByName(name);
+        } catch (UnknownHostException ignored){
+        }
+        return (networkInterfaceAddr == null)
+                ? NetworkInterface.getByName(name)
+                : NetworkInterface.getByInetAddress(networkInterfaceAddr);
+    }
+
+    /* Reads 'subscribe <[source@]group:port>' and 'unsubscribe <[source@]group:port>' commands from the standard input. */
+    private static void startConsole(Client client) {
+        final Thread thread = new Thread(() -> {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String [] parts = line.trim().split("\\s+");
+                    final boolean resume = parts[0].equals("resume");
+                    if ((parts.length != (resume ? 3 : 2))
+                            || !(resume || parts[0].equals("subscribe") || parts[0].equals("unsubscribe"))) {
+                        if (!line.trim().isEmpty()) {
+                            System.out.println("Usage: subscribe|unsubscribe <[source@]group:port>, resume <[source@]group:port> <seq>");
+                        }
+                        continue;
+                    }
+                    try {
+                        final MulticastGroup group = parseGroup(parts[1]);
+                        final boolean sent;
+                        if (resume) {
+                            sent = client.resume(group, Long.parseLong(parts[2]));
+                        } else {
+                            sent = parts[0].equals("subscribe") ? client.subscribe(group) : client.unsubscribe(group);
+                        }
+                        if (!sent) {
+                            System.out.println("Request not sent");
+                        }
+                    } catch (Exception ex) {
+                        System.out.println(ex.getMessage());
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }, "mtunnel-console");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public static void main(String [] args) {
         int idx = 0;
-        InetAddress serverAddress = null;
-        final ArrayList<InetSocketAddress> groups = new ArrayList<InetSocketAddress>();
+        final ArrayList<InetSocketAddress> serverAddrs = new ArrayList<InetSocketAddress>();
+        final ArrayList<ArrayList<MulticastGroup>> serverGroups = new ArrayList<ArrayList<MulticastGroup>>();
+        final ArrayList<MulticastGroup> groups = new ArrayList<MulticastGroup>();
         int serverPort = 0;
         String networkInterfaceName = null;
+        int threads = 2;
+        int metricsInterval = 0;
+        int pingInterval = 5000;
+        int maxMissedPongs = 3;
+        boolean udpTransport = false;
+        boolean compression = false;
+        int snapshot = 0;
+        final Client.Config clientConfig = new Client.Config();
+        final MulticastSender.Config senderConfig = new MulticastSender.Config();
+        final Server.Config serverConfig = new Server.Config();
 
         while (idx < args.length) {
             final String opt = args[idx];
@@ -73,8 +189,8 @@ public class Main {
                         return;
                     }
                 } else {
-                    serverAddress = addr.getAddress();
-                    serverPort = addr.getPort();
+                    serverAddrs.add(addr);
+                    serverGroups.add(new ArrayList<MulticastGroup>());
                 }
             } else if (opt.equals("-g")) {
                 if (++idx == args.length) {
@@ -83,7 +199,12 @@ public class Main {
                 }
 
                 try {
-                    groups.add(parseAddress(args[idx]));
+                    final MulticastGroup group = parseGroup(args[idx]);
+                    if (serverGroups.isEmpty()) {
+                        groups.add(group);
+                    } else {
+                        serverGroups.get(serverGroups.size() - 1).add(group);
+                    }
                 } catch (Exception ex) {
                     printErrorAndUsage(ex.getMessage());
                     return;
@@ -94,6 +215,422 @@ public class Main {
                     return;
                 }
                 networkInterfaceName = args[idx];
+            } else if (opt.equals("-ttl")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing multicast TTL");
+                    return;
+                }
+                try {
+                    senderConfig.ttl = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid multicast TTL: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+                if ((senderConfig.ttl < 0) || (senderConfig.ttl > 255)) {
+                    printErrorAndUsage("invalid multicast TTL: '" + args[idx] + "'");
+                    return;
+                }
+            } else if (opt.equals("-loop")) {
+                senderConfig.loopback = true;
+            } else if (opt.equals("-ping")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing ping interval");
+                    return;
+                }
+                try {
+                    pingInterval = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid ping interval: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+                if (pingInterval < 0) {
+                    printErrorAndUsage("invalid ping interval: '" + args[idx] + "'");
+                    return;
+                }
+            } else if (opt.equals("-ping-timeout")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing number of missed pongs");
+                    return;
+                }
+                try {
+                    maxMissedPongs = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid number of missed pongs: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+                if (maxMissedPongs < 0) {
+                    printErrorAndUsage("invalid number of missed pongs: '" + args[idx] + "'");
+                    return;
+                }
+            } else if (opt.equals("-metrics")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing metrics interval");
+                    return;
+                }
+                try {
+                    metricsInterval = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid metrics interval: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-threads")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing number of threads");
+                    return;
+                }
+                try {
+                    threads = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid number of threads: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+                if (threads <= 0) {
+                    printErrorAndUsage("invalid number of threads: '" + args[idx] + "'");
+                    return;
+                }
+            } else if (opt.equals("-receivers")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing number of receiver threads");
+                    return;
+                }
+                try {
+                    serverConfig.receiverThreads = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid number of receiver threads: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-batch")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing batch size");
+                    return;
+                }
+                try {
+                    serverConfig.batchSize = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid batch size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-window")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing window size");
+                    return;
+                }
+                try {
+                    serverConfig.windowSize = Long.parseLong(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid window size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-queue")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing send queue size");
+                    return;
+                }
+                try {
+                    serverConfig.queueSize = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid send queue size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-overflow")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing overflow policy");
+                    return;
+                }
+                try {
+                    serverConfig.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(args[idx].toUpperCase().replace('-', '_'));
+                } catch (IllegalArgumentException ex) {
+                    printErrorAndUsage("invalid overflow policy: '" + args[idx] + "'");
+                    return;
+                }
+            } else if (opt.equals("-udp")) {
+                udpTransport = true;
+            } else if (opt.equals("-retransmit")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing retransmit buffer size");
+                    return;
+                }
+                try {
+                    serverConfig.retransmitBufferSize = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid retransmit buffer size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-compress")) {
+                compression = true;
+            } else if (opt.equals("-dictionary")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing dictionary size");
+                    return;
+                }
+                try {
+                    serverConfig.dictionarySize = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid dictionary size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-replay")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing replay buffer packets");
+                    return;
+                }
+                try {
+                    serverConfig.replayPackets = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid replay buffer packets: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-replay-buffer")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing replay buffer size");
+                    return;
+                }
+                try {
+                    serverConfig.replayBufferSize = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid replay buffer size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-replay-time")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing replay time");
+                    return;
+                }
+                try {
+                    serverConfig.replayTime = Long.parseLong(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid replay time: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-snapshot")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing snapshot packets");
+                    return;
+                }
+                try {
+                    snapshot = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid snapshot packets: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-message-memory")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing message memory size");
+                    return;
+                }
+                try {
+                    Protocol.ALLOCATOR.setMaxBytes(Long.parseLong(args[idx]));
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid message memory size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-leak-detect")) {
+                Protocol.ALLOCATOR.setLeakDetection(true);
+            } else if (opt.equals("-reconnect")) {
+                clientConfig.reconnect = true;
+            } else if (opt.equals("-reconnect-delay")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing reconnect delay");
+                    return;
+                }
+                try {
+                    clientConfig.reconnectDelay = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid reconnect delay: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-reconnect-max-delay")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing reconnect max delay");
+                    return;
+                }
+                try {
+                    clientConfig.reconnectMaxDelay = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid reconnect max delay: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-dedup")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing dedup window");
+                    return;
+                }
+                try {
+                    clientConfig.dedupWindow = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid dedup window: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-receive-batch")) {
+                serverConfig.receiveBatch = true;
+            } else if (opt.equals("-rcvbuf")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing receive buffer size");
+                    return;
+                }
+                final int sep = args[idx].lastIndexOf('=');
+                try {
+                    final int size = Integer.parseInt(args[idx].substring(sep + 1));
+                    if (size <= 0) {
+                        throw new NumberFormatException("size should be positive");
+                    }
+                    if (sep < 0) {
+                        serverConfig.receiveBufferSize = size;
+                    } else {
+                        final InetSocketAddress addr = parseAddress(args[idx].substring(0, sep));
+                        if (addr == null) {
+                            printErrorAndUsage("invalid group address '" + args[idx].substring(0, sep) + "'");
+                            return;
+                        }
+                        serverConfig.groupReceiveBufferSize.put(addr, size);
+                    }
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid receive buffer size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                } catch (Exception ex) {
+                    printErrorAndUsage(ex.getMessage());
+                    return;
+                }
+            } else if (opt.equals("-rate")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing rate limit");
+                    return;
+                }
+                try {
+                    serverConfig.clientRateLimit = parseRateLimit(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid rate limit: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-group-rate")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing group rate limit");
+                    return;
+                }
+                final int sep = args[idx].lastIndexOf('=');
+                if (sep < 0) {
+                    printErrorAndUsage("invalid group rate limit: '" + args[idx] + "'");
+                    return;
+                }
+                try {
+                    final RateLimit rateLimit = parseRateLimit(args[idx].substring(sep + 1));
+                    final InetSocketAddress addr = parseAddress(args[idx].substring(0, sep));
+                    if (addr == null) {
+                        printErrorAndUsage("invalid group address '" + args[idx].substring(0, sep) + "'");
+                        return;
+                    }
+                    serverConfig.groupRateLimit.put(addr, rateLimit);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid group rate limit: '" + args[idx] + "': " + ex.toString());
+                    return;
+                } catch (Exception ex) {
+                    printErrorAndUsage(ex.getMessage());
+                    return;
+                }
+            } else if (opt.equals("-rate-policy")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing rate limit policy");
+                    return;
+                }
+                try {
+                    serverConfig.rateLimitPolicy = RateLimit.Policy.valueOf(args[idx].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    printErrorAndUsage("invalid rate limit policy: '" + args[idx] + "'");
+                    return;
+                }
+            } else if (opt.equals("-priority")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing group priority");
+                    return;
+                }
+                final int sep = args[idx].lastIndexOf('=');
+                if (sep < 0) {
+                    printErrorAndUsage("invalid group priority: '" + args[idx] + "'");
+                    return;
+                }
+                try {
+                    final MulticastGroup group = parseGroup(args[idx].substring(0, sep));
+                    final String [] parts = args[idx].substring(sep + 1).split("/");
+                    if (parts.length > 2) {
+                        throw new NumberFormatException("expected <priority>[/<weight>]");
+                    }
+                    final int priority = Integer.parseInt(parts[0]);
+                    final int weight = (parts.length == 2) ? Integer.parseInt(parts[1]) : 1;
+                    clientConfig.groupPriority.put(group, new GroupPriority(priority, weight));
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid group priority: '" + args[idx] + "': " + ex.toString());
+                    return;
+                } catch (Exception ex) {
+                    printErrorAndUsage(ex.getMessage());
+                    return;
+                }
+            } else if (opt.equals("-record")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing journal directory");
+                    return;
+                }
+                serverConfig.recordDirectory = Paths.get(args[idx]);
+            } else if (opt.equals("-record-segment")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing journal segment size");
+                    return;
+                }
+                try {
+                    serverConfig.recordSegmentSize = Integer.parseInt(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid journal segment size: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-playback")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing journal directory");
+                    return;
+                }
+                serverConfig.playbackDirectory = Paths.get(args[idx]);
+            } else if (opt.equals("-playback-speed")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing playback speed");
+                    return;
+                }
+                try {
+                    serverConfig.playbackSpeed = Double.parseDouble(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid playback speed: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-playback-delay")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing playback delay");
+                    return;
+                }
+                try {
+                    serverConfig.playbackDelay = Long.parseLong(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid playback delay: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-playback-from")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing playback start time");
+                    return;
+                }
+                try {
+                    serverConfig.playbackFrom = Long.parseLong(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid playback start time: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
+            } else if (opt.equals("-batch-delay")) {
+                if (++idx == args.length) {
+                    printErrorAndUsage("missing batch delay");
+                    return;
+                }
+                try {
+                    serverConfig.batchDelay = Long.parseLong(args[idx]);
+                } catch (NumberFormatException ex) {
+                    printErrorAndUsage("invalid batch delay: '" + args[idx] + "': " + ex.toString());
+                    return;
+                }
             } else {
                 printErrorAndUsage("invalid command line option '" + opt + "'");
                 return;
@@ -101,48 +638,84 @@ public class Main {
             idx++;
         }
 
-        if (serverPort == 0) {
+        if ((serverPort == 0) && serverAddrs.isEmpty()) {
             printErrorAndUsage("missing server port or address.");
             return;
         }
 
+        if ((serverPort != 0) && !serverAddrs.isEmpty()) {
+            printErrorAndUsage("server port and server addresses can not be used together.");
+            return;
+        }
+
+        if (serverAddrs.size() > Deduplicator.MAX_SIDES) {
+            printErrorAndUsage("maximum number of servers is " + Deduplicator.MAX_SIDES);
+            return;
+        }
+
         try {
             final Collider.Config colliderConfig = new Collider.Config();
-            colliderConfig.threadPoolThreads = 2;
+            colliderConfig.threadPoolThreads = threads;
             colliderConfig.byteOrder = Protocol.BYTE_ORDER;
 
             final Collider collider = Collider.create(colliderConfig);
             final TimerQueue timerQueue = new TimerQueue(collider.getThreadPool());
-            final int pingInterval = 5;
+            final MetricsRegistry metricsRegistry = new MetricsRegistry();
+            metricsRegistry.register(new AllocatorMetrics("messages", Protocol.ALLOCATOR));
+            if (metricsInterval > 0) {
+                metricsRegistry.startReporter(timerQueue, metricsInterval);
+            }
 
-            if (serverAddress == null) {
+            if (serverAddrs.isEmpty()) {
                 if (networkInterfaceName == null) {
                     System.out.println("Missing network interface name");
                     printUsage();
                     return;
                 } else {
-                    InetAddress networkInterfaceAddr = null;
-                    try {
-                        networkInterfaceAddr = InetAddress.getByName(networkInterfaceName);
-                    } catch (UnknownHostException ignored){
-                    }
-                    final NetworkInterface networkInterface = (networkInterfaceAddr == null)
-                            ? NetworkInterface.getByName(networkInterfaceName)
-                            : NetworkInterface.getByInetAddress(networkInterfaceAddr);
-                    new Server(collider, networkInterface, serverPort, timerQueue, pingInterval);
+                    serverConfig.portNumber = serverPort;
+                    serverConfig.pingInterval = pingInterval;
+                    serverConfig.maxMissedPongs = maxMissedPongs;
+                    serverConfig.udpTransport = udpTransport;
+                    serverConfig.compression = compression;
+                    serverConfig.networkInterface = getNetworkInterface(networkInterfaceName);
+                    new Server(collider, timerQueue, metricsRegistry, serverConfig);
                 }
             }  else {
-                if (groups.isEmpty()) {
-                    System.out.println("No one multicast group configured, stop.");
-                    printUsage();
-                    return;
+                for (ArrayList<MulticastGroup> serverGroup: serverGroups) {
+                    for (MulticastGroup group: groups) {
+                        if (!serverGroup.contains(group)) {
+                            serverGroup.add(group);
+                        }
+                    }
+                    if (serverGroup.isEmpty()) {
+                        System.out.println("No one multicast group configured, stop.");
+                        printUsage();
+                        return;
+                    }
+                }
+
+                if (networkInterfaceName != null) {
+                    senderConfig.networkInterface = getNetworkInterface(networkInterfaceName);
+                    if (senderConfig.networkInterface == null) {
+                        System.out.println("Network interface '" + networkInterfaceName + "' not found");
+                        return;
+                    }
                 }
 
                 try {
-                    final InetSocketAddress addr = new InetSocketAddress(serverAddress, serverPort);
-                    final ByteBuffer joinRequest = Protocol.JoinRequest.create(groups);
-                    System.out.println(Util.hexDump(joinRequest));
-                    new Client(collider, addr, timerQueue, pingInterval, joinRequest);
+                    final InetSocketAddress [] addrs = serverAddrs.toArray(new InetSocketAddress[0]);
+                    final ByteBuffer [] joinRequests = new ByteBuffer[addrs.length];
+                    for (int serverIdx=0; serverIdx<addrs.length; serverIdx++) {
+                        joinRequests[serverIdx] = Protocol.JoinRequest.create(
+                                serverGroups.get(serverIdx), snapshot, clientConfig.groupPriority);
+                        System.out.println(Util.hexDump(joinRequests[serverIdx]));
+                    }
+                    clientConfig.pingInterval = pingInterval;
+                    clientConfig.maxMissedPongs = maxMissedPongs;
+                    clientConfig.udpTransport = udpTransport;
+                    clientConfig.compression = compression;
+                    final Client client = new Client(collider, addrs, timerQueue, metricsRegistry, joinRequests, senderConfig, clientConfig);
+                    startConsole(client);
                 }
                 catch (Exception ex) {
                     System.out.println(ex.getMessage());
@@ -0,0 +1,283 @@
+package org.jsl.mtunnel;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Off-heap slab allocator for the protocol messages built by Protocol.Message.create().
+ * Blocks of power of two size classes are carved from the direct slabs and reused,
+ * slabs are never freed, so the memory footprint stays at the peak usage.
+ * Every thread keeps a small cache of free blocks per size class,
+ * the shared free lists are touched only to move half of the cache at once.
+ * Messages larger than the largest class or above the memory limit are allocated
+ * with ByteBuffer.allocateDirect() and left to the garbage collector.
+ *
+ * The block is owned by the single holder, it is released once sent:
+ * collider copies the ByteBuffer passed to Channel.sendData() to its output queue.
+ * In leak detection mode the holder gets a duplicate of the block, the block is recovered
+ * and the allocation stack trace printed if the duplicate is collected without release.
+ */
+public class MessageAllocator {
+    public static final int MIN_BLOCK_SIZE = 64;
+    public static final int MAX_BLOCK_SIZE = (64 * 1024);
+
+    private static final int MIN_BLOCK_SHIFT = Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+    private static final int MIN_SLAB_SIZE = (64 * 1024);
+    private static final int MAX_SLAB_SIZE = (1024 * 1024);
+    private static final int CACHE_SIZE = 32;
+
+    private class SizeClass {
+        final int blockSize;
+        final int slabSize;
+        private final ArrayDeque<ByteBuffer> m_free;
+
+        SizeClass(int blockSize) {
+            this.blockSize = blockSize;
+            slabSize = Math.min(MAX_SLAB_SIZE, Math.max(MIN_SLAB_SIZE, blockSize * 16));
+            m_free = new ArrayDeque<>();
+        }
+
+        /* Moves up to count free blocks to the cache, carves a new slab if there are no one,
+         * returns the number of blocks moved, 0 if the memory limit is reached.
+         */
+        synchronized int take(ByteBuffer [] cache, int count) {
+            if (m_free.isEmpty()) {
+                if (m_slabBytes.addAndGet(slabSize) > m_maxBytes) {
+                    m_slabBytes.addAndGet(-slabSize);
+                    return 0;
+                }
+                final ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+                for (int pos=0; pos<slabSize; pos+=blockSize) {
+                    slab.limit(pos + blockSize);
+                    slab.position(pos);
+                    m_free.add(slab.slice());
+                }
+            }
+            int idx = 0;
+            for (; (idx < count) && !m_free.isEmpty(); idx++) {
+                cache[idx] = m_free.poll();
+            }
+            return idx;
+        }
+
+        synchronized void put(ByteBuffer [] cache, int from, int to) {
+            for (int idx=from; idx<to; idx++) {
+                m_free.add(cache[idx]);
+                cache[idx] = null;
+            }
+        }
+
+        synchronized void put(ByteBuffer block) {
+            m_free.add(block);
+        }
+    }
+
+    private static class ThreadCache {
+        final ByteBuffer [][] blocks;
+        final int [] size;
+
+        ThreadCache(int classes) {
+            blocks = new ByteBuffer[classes][CACHE_SIZE];
+            size = new int[classes];
+        }
+    }
+
+    /* Leak detection record, referent is the buffer handed out. */
+    private static class Tracked extends WeakReference<ByteBuffer> {
+        final ByteBuffer block;
+        final Throwable allocatedAt;
+
+        Tracked(ByteBuffer buffer, ByteBuffer block, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.block = block;
+            allocatedAt = new Throwable("Message buffer allocated at");
+        }
+    }
+
+    private final SizeClass [] m_classes;
+    private final ThreadLocal<ThreadCache> m_cache;
+    private final AtomicLong m_slabBytes;
+    private final LongAdder m_bytesInUse;
+    private final LongAdder m_allocations;
+    private final LongAdder m_unpooledAllocations;
+    private final LongAdder m_leaks;
+    private volatile long m_maxBytes;
+    private volatile boolean m_leakDetection;
+    /* Leak detection records by the identity hash code of the buffer handed out. */
+    private final HashMap<Integer, ArrayList<Tracked>> m_tracked;
+    private final ReferenceQueue<ByteBuffer> m_collected;
+
+    public MessageAllocator(long maxBytes) {
+        final int classes = (Integer.numberOfTrailingZeros(MAX_BLOCK_SIZE) - MIN_BLOCK_SHIFT + 1);
+        m_classes = new SizeClass[classes];
+        for (int idx=0; idx<classes; idx++) {
+            m_classes[idx] = new SizeClass(MIN_BLOCK_SIZE << idx);
+        }
+        m_cache = ThreadLocal.withInitial(() -> new ThreadCache(classes));
+        m_slabBytes = new AtomicLong();
+        m_bytesInUse = new LongAdder();
+        m_allocations = new LongAdder();
+        m_unpooledAllocations = new LongAdder();
+        m_leaks = new LongAdder();
+        m_maxBytes = maxBytes;
+        m_tracked = new HashMap<>();
+        m_collected = new ReferenceQueue<>();
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        m_maxBytes = maxBytes;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        m_leakDetection = leakDetection;
+    }
+
+    private static int getClassIndex(int size) {
+        if (size <= MIN_BLOCK_SIZE) {
+            return 0;
+        }
+        return (Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - MIN_BLOCK_SHIFT);
+    }
+
+    /* Pooled blocks are recognized on release by the power of two capacity. */
+    private ByteBuffer allocateUnpooled(int size) {
+        m_unpooledAllocations.increment();
+        final int capacity = (Integer.bitCount(size) == 1) ? (size + 1) : size;
+        return ByteBuffer.allocateDirect(capacity).limit(size);
+    }
+
+    /* Returns the buffer with position 0 and limit set to the size. */
+    public ByteBuffer alloc(int size) {
+        m_allocations.increment();
+        if (size > MAX_BLOCK_SIZE) {
+            return allocateUnpooled(size);
+        }
+
+        final int classIdx = getClassIndex(size);
+        final SizeClass sizeClass = m_classes[classIdx];
+        final ThreadCache cache = m_cache.get();
+        if (cache.size[classIdx] == 0) {
+            cache.size[classIdx] = sizeClass.take(cache.blocks[classIdx], CACHE_SIZE / 2);
+            if (cache.size[classIdx] == 0) {
+                return allocateUnpooled(size);
+            }
+        }
+        final ByteBuffer block = cache.blocks[classIdx][--cache.size[classIdx]];
+        cache.blocks[classIdx][cache.size[classIdx]] = null;
+        m_bytesInUse.add(sizeClass.blockSize);
+        block.clear().limit(size);
+
+        if (m_leakDetection) {
+            return track(block);
+        }
+        return block;
+    }
+
+    /* Returns the block to the allocator, the buffer should not be used after that. */
+    public void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if ((capacity < MIN_BLOCK_SIZE) || (capacity > MAX_BLOCK_SIZE) || (Integer.bitCount(capacity) != 1)
+                || !buffer.isDirect()) {
+            return;
+        }
+
+        ByteBuffer block = buffer;
+        if (m_leakDetection) {
+            block = untrack(buffer);
+            if (block == null) {
+                return;
+            }
+        }
+
+        final int classIdx = getClassIndex(capacity);
+        m_bytesInUse.add(-capacity);
+        final ThreadCache cache = m_cache.get();
+        final ByteBuffer [] blocks = cache.blocks[classIdx];
+        if (cache.size[classIdx] == CACHE_SIZE) {
+            m_classes[classIdx].put(blocks, CACHE_SIZE / 2, CACHE_SIZE);
+            cache.size[classIdx] = (CACHE_SIZE / 2);
+        }
+        blocks[cache.size[classIdx]++] = block;
+    }
+
+    private ByteBuffer track(ByteBuffer block) {
+        final ByteBuffer buffer = block.duplicate();
+        synchronized (m_tracked) {
+            pollCollected();
+            m_tracked.computeIfAbsent(System.identityHashCode(buffer), k -> new ArrayList<>())
+                    .add(new Tracked(buffer, block, m_collected));
+        }
+        return buffer;
+    }
+
+    private ByteBuffer untrack(ByteBuffer buffer) {
+        synchronized (m_tracked) {
+            final Integer key = System.identityHashCode(buffer);
+            final ArrayList<Tracked> list = m_tracked.get(key);
+            if (list != null) {
+                for (int idx=0; idx<list.size(); idx++) {
+                    final Tracked tracked = list.get(idx);
+                    if (tracked.get() == buffer) {
+                        list.remove(idx);
+                        if (list.isEmpty()) {
+                            m_tracked.remove(key);
+                        }
+                        tracked.clear();
+                        return tracked.block;
+                    }
+                }
+            }
+        }
+        /* Blocks are tracked only while the leak detection is on. */
+        System.out.println("Message buffer " + buffer + " released twice or not allocated by the allocator");
+        return null;
+    }
+
+    /* Recovers the blocks of the buffers collected without release. */
+    private void pollCollected() {
+        Tracked tracked;
+        while ((tracked = (Tracked) m_collected.poll()) != null) {
+            boolean found = false;
+            for (ArrayList<Tracked> list: m_tracked.values()) {
+                if (list.remove(tracked)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                continue;
+            }
+            m_tracked.values().removeIf(ArrayList::isEmpty);
+            m_leaks.increment();
+            System.out.println("Message buffer leak detected, " + tracked.block.capacity() + " bytes block recovered");
+            tracked.allocatedAt.printStackTrace(System.out);
+            m_bytesInUse.add(-tracked.block.capacity());
+            m_classes[getClassIndex(tracked.block.capacity())].put(tracked.block);
+        }
+    }
+
+    public long getSlabBytes() {
+        return m_slabBytes.get();
+    }
+
+    public long getBytesInUse() {
+        return m_bytesInUse.sum();
+    }
+
+    public long getAllocations() {
+        return m_allocations.sum();
+    }
+
+    public long getUnpooledAllocations() {
+        return m_unpooledAllocations.sum();
+    }
+
+    public long getLeaks() {
+        return m_leaks.sum();
+    }
+}
@@ -0,0 +1,28 @@
+package org.jsl.mtunnel;
+
+public abstract class Metrics {
+    private final String m_type;
+    private final String m_name;
+
+    protected Metrics(String type, String name) {
+        m_type = type;
+        m_name = name;
+    }
+
+    public String getType() {
+        return m_type;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /* Appends the metrics as an InfluxDB line protocol record. */
+    public abstract void print(StringBuilder sb, long timestamp);
+
+    protected static void printHistogram(StringBuilder sb, String name, Histogram histogram) {
+        sb.append(',').append(name).append("_p50=").append(histogram.getValueAtPercentile(50)).append('i');
+        sb.append(',').append(name).append("_p99=").append(histogram.getValueAtPercentile(99)).append('i');
+        sb.append(',').append(name).append("_max=").append(histogram.getValueAtPercentile(100)).append('i');
+    }
+}
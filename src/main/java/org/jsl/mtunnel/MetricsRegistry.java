@@ -0,0 +1,71 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.TimerQueue;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsRegistry {
+    private class Reporter implements TimerQueue.Task {
+        private final long m_interval;
+
+        Reporter(long interval) {
+            m_interval = interval;
+        }
+
+        public long run() {
+            final StringBuilder sb = new StringBuilder();
+            print(sb);
+            System.out.print(sb);
+            return m_interval;
+        }
+    }
+
+    private final MBeanServer m_mbeanServer;
+    private final ConcurrentHashMap<Metrics, ObjectName> m_metrics;
+
+    public MetricsRegistry() {
+        m_mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        m_metrics = new ConcurrentHashMap<>();
+    }
+
+    public void register(Metrics metrics) {
+        ObjectName objectName = null;
+        try {
+            objectName = new ObjectName("org.jsl.mtunnel:type=" + metrics.getType()
+                    + ",name=" + ObjectName.quote(metrics.getName()));
+            m_mbeanServer.registerMBean(metrics, objectName);
+        } catch (JMException ex) {
+            System.out.println("Failed to register MBean " + objectName + ": " + ex);
+            objectName = null;
+        }
+        m_metrics.put(metrics, (objectName == null) ? ObjectName.WILDCARD : objectName);
+    }
+
+    public void unregister(Metrics metrics) {
+        final ObjectName objectName = m_metrics.remove(metrics);
+        if ((objectName != null) && (objectName != ObjectName.WILDCARD)) {
+            try {
+                m_mbeanServer.unregisterMBean(objectName);
+            } catch (JMException ex) {
+                System.out.println("Failed to unregister MBean " + objectName + ": " + ex);
+            }
+        }
+    }
+
+    public void print(StringBuilder sb) {
+        final long timestamp = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        for (Metrics metrics: m_metrics.keySet()) {
+            metrics.print(sb, timestamp);
+        }
+    }
+
+    public void startReporter(TimerQueue timerQueue, int interval) {
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(interval);
+        timerQueue.schedule(new Reporter(intervalMillis), interval, TimeUnit.SECONDS);
+    }
+}
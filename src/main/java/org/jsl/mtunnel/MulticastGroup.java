@@ -0,0 +1,46 @@
+package org.jsl.mtunnel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/* Multicast group address and port, optionally limited to a single source (SSM). */
+public class MulticastGroup {
+    public final InetSocketAddress addr;
+    public final InetAddress source;
+
+    public MulticastGroup(InetSocketAddress addr, InetAddress source) {
+        this.addr = addr;
+        this.source = source;
+    }
+
+    public MulticastGroup(InetSocketAddress addr) {
+        this(addr, null);
+    }
+
+    public boolean isSourceSpecific() {
+        return (source != null);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MulticastGroup)) {
+            return false;
+        }
+        final MulticastGroup group = (MulticastGroup) obj;
+        return addr.equals(group.addr) && ((source == null) ? (group.source == null) : source.equals(group.source));
+    }
+
+    @Override
+    public int hashCode() {
+        return (addr.hashCode() * 31) + ((source == null) ? 0 : source.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        final String str = addr.getAddress().getHostAddress() + ":" + addr.getPort();
+        return (source == null) ? str : (source.getHostAddress() + "@" + str);
+    }
+}
@@ -0,0 +1,152 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+/* Flyweight view of the MulticastPacket, SequencedPacket, UdpData or ChannelPacket message,
+ * fields are read in place, only a payload slice is created on request.
+ * MulticastPacket is [header][address length:16][address][port:16][payload],
+ * ChannelPacket has no group header, the group is known by the id.
+ */
+public class MulticastPacketDecoder {
+    private RetainableByteBuffer m_msg;
+    private int m_prefixPos;
+    private int m_groupId;
+    private boolean m_channel;
+    private int m_headerPos;
+    private int m_addressLength;
+    private int m_payloadPos;
+    private int m_end;
+
+    /* Message position should be at the beginning of the message,
+     * returns false if the message is malformed.
+     */
+    public boolean wrap(RetainableByteBuffer msg) {
+        final int pos = msg.position();
+        final int limit = msg.limit();
+        if ((limit - pos) < Protocol.HEADER_SIZE) {
+            return false;
+        }
+        final int end = (pos + Protocol.Message.getLength(msg));
+        if (end > limit) {
+            return false;
+        }
+
+        final short messageId = Protocol.Message.getMessageId(msg);
+        int packetPos = pos;
+        if ((messageId == Protocol.SequencedPacket.ID) || (messageId == Protocol.UdpData.ID)) {
+            packetPos += Protocol.SequencedPacket.PREFIX_SIZE;
+            if ((end - packetPos) < Protocol.HEADER_SIZE) {
+                return false;
+            }
+            if ((packetPos + Short.toUnsignedInt(msg.getShort(packetPos)) != end)
+                    || ((msg.getShort(packetPos + (Short.SIZE / Byte.SIZE)) & 0xFF) != Protocol.MulticastPacket.ID)) {
+                return false;
+            }
+            m_groupId = Short.toUnsignedInt(msg.getShort(pos + Protocol.SequencedPacket.PREFIX_SIZE - (Short.SIZE / Byte.SIZE)));
+        } else if (messageId == Protocol.ChannelPacket.ID) {
+            final int payloadPos = (pos + Protocol.SequencedPacket.PREFIX_SIZE);
+            if (payloadPos > end) {
+                return false;
+            }
+            m_msg = msg;
+            m_prefixPos = pos;
+            m_groupId = Short.toUnsignedInt(msg.getShort(payloadPos - (Short.SIZE / Byte.SIZE)));
+            m_channel = true;
+            m_headerPos = payloadPos;
+            m_addressLength = 0;
+            m_payloadPos = payloadPos;
+            m_end = end;
+            return true;
+        } else if (messageId == Protocol.MulticastPacket.ID) {
+            m_groupId = -1;
+        } else {
+            return false;
+        }
+
+        final int headerPos = (packetPos + Protocol.HEADER_SIZE);
+        if ((end - headerPos) < (Short.SIZE / Byte.SIZE)) {
+            return false;
+        }
+        final int addressLength = Short.toUnsignedInt(msg.getShort(headerPos));
+        final int payloadPos = (headerPos + (Short.SIZE / Byte.SIZE) + addressLength + (Short.SIZE / Byte.SIZE));
+        if (payloadPos > end) {
+            return false;
+        }
+
+        m_msg = msg;
+        m_prefixPos = pos;
+        m_channel = false;
+        m_headerPos = headerPos;
+        m_addressLength = addressLength;
+        m_payloadPos = payloadPos;
+        m_end = end;
+        return true;
+    }
+
+    public boolean isSequenced() {
+        return (m_groupId >= 0);
+    }
+
+    /* ChannelPacket has no group header, the destination is looked up by the group id. */
+    public boolean isChannelPacket() {
+        return m_channel;
+    }
+
+    /* Server group id, -1 for the plain MulticastPacket. */
+    public int getGroupId() {
+        return m_groupId;
+    }
+
+    public long getSeq() {
+        return m_msg.getLong(m_prefixPos + Protocol.HEADER_SIZE);
+    }
+
+    public long getTimestamp() {
+        return m_msg.getLong(m_prefixPos + Protocol.HEADER_SIZE + (Long.SIZE / Byte.SIZE));
+    }
+
+    public RetainableByteBuffer getMessage() {
+        return m_msg;
+    }
+
+    /* Raw header is [address length:16][address][port:16], it identifies the group. */
+    public int getHeaderPosition() {
+        return m_headerPos;
+    }
+
+    public int getHeaderLength() {
+        return (m_payloadPos - m_headerPos);
+    }
+
+    public int getAddressLength() {
+        return m_addressLength;
+    }
+
+    public byte getAddressByte(int idx) {
+        return m_msg.get(m_headerPos + (Short.SIZE / Byte.SIZE) + idx);
+    }
+
+    public int getPort() {
+        return Short.toUnsignedInt(m_msg.getShort(m_payloadPos - (Short.SIZE / Byte.SIZE)));
+    }
+
+    public int getPayloadPosition() {
+        return m_payloadPos;
+    }
+
+    public int getPayloadLength() {
+        return (m_end - m_payloadPos);
+    }
+
+    /* Returns the payload slice to be released by the caller. */
+    public RetainableByteBuffer slicePayload() {
+        final int pos = m_msg.position();
+        final int limit = m_msg.limit();
+        m_msg.position(m_payloadPos);
+        m_msg.limit(m_end);
+        final RetainableByteBuffer payload = m_msg.slice();
+        m_msg.limit(limit);
+        m_msg.position(pos);
+        return payload;
+    }
+}
@@ -0,0 +1,170 @@
+package org.jsl.mtunnel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+public class MulticastReceiver implements Runnable {
+    public interface Listener {
+        void onDataReceived(ByteBuffer data, SocketAddress sourceAddr);
+    }
+
+    /* Gets all datagrams pending on the socket at once. */
+    public interface BatchListener {
+        void onDataReceived(DatagramBatch batch);
+    }
+
+    static final int MAX_DATAGRAM_SIZE = 65536;
+    /* Socket flooded with datagrams should not starve the other sockets of the receiver. */
+    private static final int MAX_BATCHES_PER_EVENT = 16;
+
+    private final Selector m_selector;
+    private final ConcurrentLinkedQueue<Runnable> m_tasks;
+    private final ByteBuffer m_buffer;
+    private DatagramBatch m_batch;
+    private final Consumer<SelectionKey> m_keyHandler;
+    private final Thread m_thread;
+    private volatile boolean m_stop;
+
+    public MulticastReceiver(String name) throws IOException {
+        m_selector = Selector.open();
+        m_tasks = new ConcurrentLinkedQueue<>();
+        m_buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        m_buffer.order(Protocol.BYTE_ORDER);
+        m_keyHandler = this::onReadable;
+        m_thread = new Thread(this, name);
+        m_thread.setDaemon(true);
+    }
+
+    public void start() {
+        m_thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        m_stop = true;
+        m_selector.wakeup();
+        m_thread.join();
+    }
+
+    /* Runs the task on the receiver thread. */
+    public void execute(Runnable task) {
+        m_tasks.add(task);
+        m_selector.wakeup();
+    }
+
+    public void register(DatagramChannel channel, Listener listener) {
+        register(channel, (Object) listener);
+    }
+
+    public void register(DatagramChannel channel, BatchListener listener) {
+        execute(() -> {
+            if (m_batch == null) {
+                m_batch = new DatagramBatch();
+            }
+        });
+        register(channel, (Object) listener);
+    }
+
+    private void register(DatagramChannel channel, Object listener) {
+        execute(() -> {
+            try {
+                channel.register(m_selector, SelectionKey.OP_READ, listener);
+            } catch (IOException ex) {
+                System.out.println("Failed to register datagram channel: " + ex);
+            }
+        });
+    }
+
+    public void unregister(DatagramChannel channel) {
+        execute(() -> {
+            final SelectionKey key = channel.keyFor(m_selector);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        });
+    }
+
+    /* Failure of one listener should not close the sockets of the other groups of the receiver. */
+    private void onReadable(SelectionKey key) {
+        try {
+            dispatch(key);
+        } catch (RuntimeException ex) {
+            System.out.println("Listener " + key.attachment() + " failed: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        final DatagramChannel channel = (DatagramChannel) key.channel();
+        if (key.attachment() instanceof BatchListener) {
+            onReadable(channel, (BatchListener) key.attachment());
+            return;
+        }
+        final Listener listener = (Listener) key.attachment();
+        try {
+            m_buffer.clear();
+            final SocketAddress sourceAddr = channel.receive(m_buffer);
+            if (sourceAddr != null) {
+                m_buffer.flip();
+                listener.onDataReceived(m_buffer, sourceAddr);
+            }
+        } catch (IOException ex) {
+            System.out.println("Failed to receive datagram: " + ex);
+        }
+    }
+
+    private void onReadable(DatagramChannel channel, BatchListener listener) {
+        final DatagramBatch batch = m_batch;
+        try {
+            for (int batches=0; batches<MAX_BATCHES_PER_EVENT; batches++) {
+                batch.clear();
+                final boolean full = batch.receive(channel);
+                if (batch.size() > 0) {
+                    listener.onDataReceived(batch);
+                }
+                if (!full) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Failed to receive datagram: " + ex);
+            if (batch.size() > 0) {
+                listener.onDataReceived(batch);
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            while (!m_stop) {
+                m_selector.select(m_keyHandler);
+                Runnable task;
+                while ((task = m_tasks.poll()) != null) {
+                    task.run();
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            System.out.println(ex.toString());
+        } finally {
+            try {
+                for (SelectionKey key: m_selector.keys()) {
+                    key.channel().close();
+                }
+                m_selector.close();
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+    }
+}
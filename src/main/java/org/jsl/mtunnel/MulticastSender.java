@@ -0,0 +1,110 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+public class MulticastSender {
+    public static class Config {
+        public int ttl;
+        public NetworkInterface networkInterface;
+        public boolean loopback;
+
+        public Config() {
+            ttl = 1;
+            networkInterface = null;
+            loopback = false;
+        }
+    }
+
+    private static final int INITIAL_BATCH_SIZE = 64;
+
+    private final DatagramChannel m_datagramChannel;
+    private final GroupTable m_groups;
+    private GroupTable.Destination [] m_batchGroup;
+    private RetainableByteBuffer [] m_batchData;
+    private int m_batchSize;
+    private long m_packetsSent;
+    private long m_packetsDropped;
+
+    public MulticastSender(Config config) throws IOException {
+        m_datagramChannel = DatagramChannel.open();
+        m_datagramChannel.configureBlocking(false);
+        m_datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, config.ttl);
+        m_datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, config.loopback);
+        if (config.networkInterface != null) {
+            m_datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, config.networkInterface);
+        }
+        m_groups = new GroupTable();
+        m_batchGroup = new GroupTable.Destination[INITIAL_BATCH_SIZE];
+        m_batchData = new RetainableByteBuffer[INITIAL_BATCH_SIZE];
+    }
+
+    public void setChannel(int groupId, InetSocketAddress addr) throws IOException {
+        m_groups.setChannel(groupId, addr);
+    }
+
+    /* Decoder should be positioned at a valid message. */
+    public GroupTable.Destination getDestination(MulticastPacketDecoder decoder) throws IOException {
+        return m_groups.get(decoder);
+    }
+
+    /* Payload of the decoded message is kept until flush(). */
+    public void add(GroupTable.Destination group, MulticastPacketDecoder decoder) {
+
+        if (m_batchSize == m_batchData.length) {
+            final int size = (m_batchSize * 2);
+            final GroupTable.Destination [] batchGroup = new GroupTable.Destination[size];
+            final RetainableByteBuffer [] batchData = new RetainableByteBuffer[size];
+            System.arraycopy(m_batchGroup, 0, batchGroup, 0, m_batchSize);
+            System.arraycopy(m_batchData, 0, batchData, 0, m_batchSize);
+            m_batchGroup = batchGroup;
+            m_batchData = batchData;
+        }
+
+        m_batchGroup[m_batchSize] = group;
+        m_batchData[m_batchSize] = decoder.slicePayload();
+        m_batchSize++;
+    }
+
+    public void flush() {
+        for (int idx=0; idx<m_batchSize; idx++) {
+            final RetainableByteBuffer data = m_batchData[idx];
+            try {
+                if (m_datagramChannel.send(data.getNioByteBuffer(), m_batchGroup[idx].addr) > 0) {
+                    m_packetsSent++;
+                } else {
+                    m_packetsDropped++;
+                }
+            } catch (IOException ex) {
+                System.out.println("Failed to send packet to " + m_batchGroup[idx].addr + ": " + ex.getMessage());
+                m_packetsDropped++;
+            }
+            data.release();
+            m_batchData[idx] = null;
+            m_batchGroup[idx] = null;
+        }
+        m_batchSize = 0;
+    }
+
+    public long getPacketsSent() {
+        return m_packetsSent;
+    }
+
+    public long getPacketsDropped() {
+        return m_packetsDropped;
+    }
+
+    public void close() {
+        flush();
+        try {
+            m_datagramChannel.close();
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+}
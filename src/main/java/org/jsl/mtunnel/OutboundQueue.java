@@ -0,0 +1,152 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+import java.util.Arrays;
+
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        CONFLATE,
+        DISCONNECT
+    }
+
+    private final OverflowPolicy m_policy;
+    private final RetainableByteBuffer [] m_messages;
+    private final int [] m_groups;
+    private int [] m_groupSlot;
+    private int m_head;
+    private int m_size;
+    private long m_bytes;
+    private long m_dropped;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        m_policy = policy;
+        m_messages = new RetainableByteBuffer[capacity];
+        m_groups = new int[capacity];
+        m_groupSlot = new int[16];
+        Arrays.fill(m_groupSlot, -1);
+    }
+
+    private int getGroupSlot(int groupId) {
+        return (groupId < m_groupSlot.length) ? m_groupSlot[groupId] : -1;
+    }
+
+    private void setGroupSlot(int groupId, int slot) {
+        if (groupId >= m_groupSlot.length) {
+            final int length = m_groupSlot.length;
+            m_groupSlot = Arrays.copyOf(m_groupSlot, Math.max(length * 2, groupId + 1));
+            Arrays.fill(m_groupSlot, length, m_groupSlot.length, -1);
+        }
+        m_groupSlot[groupId] = slot;
+    }
+
+    private void dropOldest() {
+        final RetainableByteBuffer msg = poll();
+        msg.release();
+        m_dropped++;
+    }
+
+    /* Queues a private slice of the message (message can be shared between channels),
+     * returns false if the message can not be queued and the connection should be closed.
+     */
+    public boolean offer(RetainableByteBuffer msg, int groupId) {
+        if (m_policy == OverflowPolicy.CONFLATE) {
+            final int slot = getGroupSlot(groupId);
+            if (slot >= 0) {
+                final RetainableByteBuffer prev = m_messages[slot];
+                m_bytes += (msg.remaining() - prev.remaining());
+                prev.release();
+                m_messages[slot] = msg.slice();
+                m_dropped++;
+                return true;
+            }
+        }
+
+        if (m_size == m_messages.length) {
+            switch (m_policy) {
+                case DROP_NEWEST:
+                    m_dropped++;
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    dropOldest();
+                    break;
+            }
+        }
+
+        final int slot = ((m_head + m_size) % m_messages.length);
+        m_messages[slot] = msg.slice();
+        m_groups[slot] = groupId;
+        m_bytes += msg.remaining();
+        m_size++;
+        if (m_policy == OverflowPolicy.CONFLATE) {
+            setGroupSlot(groupId, slot);
+        }
+        return true;
+    }
+
+    /* Group of the message to be polled next, -1 if the queue is empty. */
+    public int peekGroupId() {
+        return (m_size == 0) ? -1 : m_groups[m_head];
+    }
+
+    public RetainableByteBuffer poll() {
+        if (m_size == 0) {
+            return null;
+        }
+        final int slot = m_head;
+        final RetainableByteBuffer msg = m_messages[slot];
+        m_messages[slot] = null;
+        if (getGroupSlot(m_groups[slot]) == slot) {
+            m_groupSlot[m_groups[slot]] = -1;
+        }
+        m_head = ((m_head + 1) % m_messages.length);
+        m_size--;
+        m_bytes -= msg.remaining();
+        return msg;
+    }
+
+    /* Replaces the newest message, returns false if the queue is empty. */
+    public boolean replaceLast(RetainableByteBuffer msg) {
+        if (m_size == 0) {
+            return false;
+        }
+        final int slot = ((m_head + m_size - 1) % m_messages.length);
+        final RetainableByteBuffer prev = m_messages[slot];
+        m_bytes += (msg.remaining() - prev.remaining());
+        prev.release();
+        m_messages[slot] = msg.slice();
+        m_dropped++;
+        return true;
+    }
+
+    /* Size of the message to be polled next, 0 if the queue is empty. */
+    public int peekSize() {
+        return (m_size == 0) ? 0 : m_messages[m_head].remaining();
+    }
+
+    public boolean isEmpty() {
+        return (m_size == 0);
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public long getBytes() {
+        return m_bytes;
+    }
+
+    public long getDropped() {
+        return m_dropped;
+    }
+
+    public void clear() {
+        while (m_size > 0) {
+            poll().release();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.jsl.mtunnel;
 
 import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -13,85 +14,357 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Protocol {
     public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
     static final short HEADER_SIZE = ((Short.SIZE / Byte.SIZE) * 2);
 
+    /* Version 0 is a peer not sending the version at all,
+     * version 1 supports messages longer than 64 KiB,
+     * version 2 acknowledges received data (flow control),
+     * version 3 can receive multicast packets over UDP,
+     * version 4 receives packets stamped with the group sequence number,
+     * version 5 subscribes and unsubscribes groups on the fly,
+     * version 6 supports source-specific groups,
+     * version 7 can receive compressed batches,
+     * version 8 can replay recent packets of the group on join,
+     * version 9 receives packets addressed by the group id of the GroupStatus,
+     * version 10 requests the priority and the weight of the groups.
+     */
+    static final byte VERSION = 10;
+    static final byte VERSION_LARGE_MESSAGES = 1;
+    static final byte VERSION_FLOW_CONTROL = 2;
+    static final byte VERSION_UDP = 3;
+    static final byte VERSION_SEQUENCE = 4;
+    static final byte VERSION_SUBSCRIBE = 5;
+    static final byte VERSION_SSM = 6;
+    static final byte VERSION_COMPRESSION = 7;
+    static final byte VERSION_REPLAY = 8;
+    static final byte VERSION_CHANNEL_ID = 9;
+    static final byte VERSION_PRIORITY = 10;
+
+    /* Message header is [length:16][type:16], messages longer than 64 KiB
+     * keep bits 16..23 of the length in the high byte of the type.
+     */
+    static final int MAX_SHORT_MESSAGE_SIZE = 0xFFFF;
+    static final int MAX_MESSAGE_SIZE = 0xFFFFFF;
+
+    /* Allocator of the messages built by Message.create(), limit can be changed before start. */
+    static final MessageAllocator ALLOCATOR = new MessageAllocator(64 * 1024 * 1024);
+
+    /* Decoder is not thread safe, every thread gets its own one. */
+    private static final ThreadLocal<CharsetDecoder> TEXT_DECODER =
+            ThreadLocal.withInitial(() -> Charset.defaultCharset().newDecoder());
+
+    static String decodeText(RetainableByteBuffer msg, int offs, int length) throws CharacterCodingException {
+        final int pos = msg.position();
+        final int limit = msg.limit();
+        try {
+            msg.limit(offs + length);
+            msg.position(offs);
+            return TEXT_DECODER.get().decode(msg.getNioByteBuffer()).toString();
+        } finally {
+            msg.limit(limit);
+            msg.position(pos);
+        }
+    }
+
+    static int getMaxMessageSize(int version) {
+        return (version >= VERSION_LARGE_MESSAGES) ? MAX_MESSAGE_SIZE : MAX_SHORT_MESSAGE_SIZE;
+    }
+
+    /* Group address is encoded as [address length:8][address][port:16]. */
+    static int getAddressSize(InetSocketAddress addr) {
+        return 1 + addr.getAddress().getAddress().length + (Short.SIZE / Byte.SIZE);
+    }
+
+    static void putAddress(ByteBuffer msg, InetSocketAddress addr) {
+        final byte [] rawAddress = addr.getAddress().getAddress();
+        msg.put((byte) rawAddress.length);
+        msg.put(rawAddress);
+        msg.putShort((short)addr.getPort());
+    }
+
+    static InetSocketAddress getAddress(RetainableByteBuffer msg, int offs) throws UnknownHostException {
+        final int rawAddrLength = Byte.toUnsignedInt(msg.get(offs));
+        final byte [] rawAddr = new byte[rawAddrLength];
+        for (int idx=0; idx<rawAddrLength; idx++) {
+            rawAddr[idx] = msg.get(offs + 1 + idx);
+        }
+        final InetAddress addr = InetAddress.getByAddress(rawAddr);
+        final int portNumber = Short.toUnsignedInt(msg.getShort(offs + 1 + rawAddrLength));
+        return new InetSocketAddress(addr, portNumber);
+    }
+
+    /* Group source is encoded as [address length:8][address], zero length means any source. */
+    static int getSourceSize(InetAddress source) {
+        return 1 + ((source == null) ? 0 : source.getAddress().length);
+    }
+
+    static void putSource(ByteBuffer msg, InetAddress source) {
+        if (source == null) {
+            msg.put((byte) 0);
+        } else {
+            final byte [] rawAddress = source.getAddress();
+            msg.put((byte) rawAddress.length);
+            msg.put(rawAddress);
+        }
+    }
+
+    static InetAddress getSource(RetainableByteBuffer msg, int offs) throws UnknownHostException {
+        final int rawAddrLength = Byte.toUnsignedInt(msg.get(offs));
+        if (rawAddrLength == 0) {
+            return null;
+        }
+        final byte [] rawAddr = new byte[rawAddrLength];
+        for (int idx=0; idx<rawAddrLength; idx++) {
+            rawAddr[idx] = msg.get(offs + 1 + idx);
+        }
+        return InetAddress.getByAddress(rawAddr);
+    }
+
+    /* Group priority is encoded as [priority:8][weight:16]. */
+    static final int PRIORITY_SIZE = (1 + (Short.SIZE / Byte.SIZE));
+
+    static void putPriority(ByteBuffer msg, GroupPriority priority) {
+        msg.put((byte) priority.priority);
+        msg.putShort((short) priority.weight);
+    }
+
+    /* Returns the default priority if the value is out of range. */
+    static GroupPriority getPriority(RetainableByteBuffer msg, int offs) {
+        final int priority = Byte.toUnsignedInt(msg.get(offs));
+        final int weight = Short.toUnsignedInt(msg.getShort(offs + 1));
+        if ((priority > GroupPriority.MAX_PRIORITY) || (weight == 0)) {
+            return GroupPriority.DEFAULT;
+        }
+        return new GroupPriority(priority, weight);
+    }
+
+    /* Priority follows [group address][source] at the end of the message if present. */
+    static GroupPriority getPriority(RetainableByteBuffer msg, int offs, int end) {
+        offs += 1 + Byte.toUnsignedInt(msg.get(offs)) + (Short.SIZE / Byte.SIZE);
+        if (offs < end) {
+            offs += 1 + Byte.toUnsignedInt(msg.get(offs));
+        }
+        return ((offs + PRIORITY_SIZE) <= end) ? getPriority(msg, offs) : GroupPriority.DEFAULT;
+    }
+
+    /* Reads [group address][source], source is optional at the end of the message. */
+    static MulticastGroup getGroup(RetainableByteBuffer msg, int offs, int end) throws UnknownHostException {
+        final InetSocketAddress addr = getAddress(msg, offs);
+        offs += 1 + Byte.toUnsignedInt(msg.get(offs)) + (Short.SIZE / Byte.SIZE);
+        final InetAddress source = (offs < end) ? getSource(msg, offs) : null;
+        return new MulticastGroup(addr, source);
+    }
+
     static class Message {
+        /* Message is released to the allocator by TunnelChannel.sendMessage(). */
         static ByteBuffer create(short type, int dataSize) {
             final int messageSize = (HEADER_SIZE + dataSize);
-            assert(messageSize <= Short.toUnsignedInt((short)-1));
-            final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(messageSize);
+            assert(messageSize <= MAX_MESSAGE_SIZE);
+            final ByteBuffer byteBuffer = ALLOCATOR.alloc(messageSize);
             byteBuffer.order(BYTE_ORDER);
             byteBuffer.putShort((short)messageSize);
-            byteBuffer.putShort(type);
+            byteBuffer.putShort(getType(type, messageSize));
             return byteBuffer;
         }
 
+        /* Copy of the message kept to be sent more than once. */
+        static ByteBuffer copy(ByteBuffer msg) {
+            final ByteBuffer byteBuffer = ALLOCATOR.alloc(msg.remaining());
+            byteBuffer.order(BYTE_ORDER);
+            byteBuffer.put(msg.duplicate());
+            return byteBuffer.flip();
+        }
+
+        static void release(ByteBuffer msg) {
+            ALLOCATOR.release(msg);
+        }
+
+        static short getType(short id, int messageSize) {
+            return (short) (id | ((messageSize >>> 16) << 8));
+        }
+
+        static void putHeader(RetainableByteBuffer msg, short id, int messageSize) {
+            msg.putShort((short)messageSize);
+            msg.putShort(getType(id, messageSize));
+        }
+
+        static void setHeader(RetainableByteBuffer msg, int pos, short id, int messageSize) {
+            msg.putShort(pos, (short)messageSize);
+            msg.putShort(pos + (Short.SIZE / Byte.SIZE), getType(id, messageSize));
+        }
+
         static int getLength(ByteBuffer msg) {
-            return msg.getShort(msg.position());
+            final int pos = msg.position();
+            final int length = Short.toUnsignedInt(msg.getShort(pos));
+            final int type = Short.toUnsignedInt(msg.getShort(pos + (Short.SIZE / Byte.SIZE)));
+            return (length | ((type >>> 8) << 16));
+        }
+
+        static int getLength(RetainableByteBuffer msg) {
+            final int pos = msg.position();
+            final int length = Short.toUnsignedInt(msg.getShort(pos));
+            final int type = Short.toUnsignedInt(msg.getShort(pos + (Short.SIZE / Byte.SIZE)));
+            return (length | ((type >>> 8) << 16));
         }
 
         static short getMessageId(RetainableByteBuffer msg) {
-            return msg.getShort(msg.position() + 2);
+            return (short) (msg.getShort(msg.position() + 2) & 0xFF);
+        }
+
+        static short getMessageId(ByteBuffer msg) {
+            return (short) (msg.getShort(msg.position() + 2) & 0xFF);
         }
     }
 
     static class Ping {
         static final short ID = 1;
+        static final int DATA_SIZE = (Long.SIZE / Byte.SIZE) * 2;
 
-        static ByteBuffer create() {
-            final ByteBuffer msg = Message.create(ID, 0);
+        static ByteBuffer create(long seq, long timestamp) {
+            final ByteBuffer msg = Message.create(ID, DATA_SIZE);
+            msg.putLong(seq);
+            msg.putLong(timestamp);
             return msg.rewind();
         }
+
+        /* Ping and Pong received from the peer of version 0 have no data. */
+        static boolean hasData(RetainableByteBuffer msg) {
+            return (Message.getLength(msg) >= (HEADER_SIZE + DATA_SIZE));
+        }
+
+        static long getSeq(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE);
+        }
+
+        static long getTimestamp(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE + (Long.SIZE / Byte.SIZE));
+        }
     }
 
     static class Pong {
         static final short ID = 2;
 
-        static ByteBuffer create() {
-            final ByteBuffer msg = Message.create(ID, 0);
-            return msg.rewind();
+        static ByteBuffer create(RetainableByteBuffer ping) {
+            if (Ping.hasData(ping)) {
+                final ByteBuffer msg = Message.create(ID, Ping.DATA_SIZE);
+                msg.putLong(Ping.getSeq(ping));
+                msg.putLong(Ping.getTimestamp(ping));
+                return msg.rewind();
+            } else {
+                final ByteBuffer msg = Message.create(ID, 0);
+                return msg.rewind();
+            }
         }
     }
 
+    /* [count:8][group address]*count[version:8][source]*count[snapshot:32][priority]*count,
+     * everything after the version is ignored by the older servers,
+     * snapshot is the number of recent packets of every group the client wants to get first.
+     */
     static class JoinRequest {
         static final short ID = 5;
 
-        static ByteBuffer create(ArrayList<InetSocketAddress> groups) throws Exception {
+        static ByteBuffer create(ArrayList<MulticastGroup> groups) throws Exception {
+            return create(groups, 0);
+        }
+
+        static ByteBuffer create(ArrayList<MulticastGroup> groups, int snapshot) throws Exception {
+            return create(groups, snapshot, new HashMap<>());
+        }
+
+        static ByteBuffer create(ArrayList<MulticastGroup> groups, int snapshot,
+                Map<MulticastGroup, GroupPriority> priorities) throws Exception {
             if (groups.size() > Byte.toUnsignedInt((byte)-1)) {
                 throw new Exception("maximum number of groups exceeded");
             }
-            int dataSize = 1;
-            for (InetSocketAddress addr: groups) {
-                final byte [] rawAddress = addr.getAddress().getAddress();
-                dataSize += 1; // raw address length
-                dataSize += rawAddress.length;
-                dataSize += 2; // port number
+            int dataSize = 1 + 1 + (Integer.SIZE / Byte.SIZE); // groups count + version + snapshot
+            for (MulticastGroup group: groups) {
+                dataSize += getAddressSize(group.addr);
+                dataSize += getSourceSize(group.source);
+                dataSize += PRIORITY_SIZE;
             }
             final ByteBuffer msg = Message.create(ID, dataSize);
             msg.put((byte)groups.size());
-            for (InetSocketAddress addr: groups) {
-                final byte [] rawAddress = addr.getAddress().getAddress();
-                msg.put((byte) rawAddress.length);
-                msg.put(rawAddress);
-                msg.putShort((short)addr.getPort());
+            for (MulticastGroup group: groups) {
+                putAddress(msg, group.addr);
+            }
+            msg.put(VERSION);
+            for (MulticastGroup group: groups) {
+                putSource(msg, group.source);
+            }
+            msg.putInt(snapshot);
+            for (MulticastGroup group: groups) {
+                putPriority(msg, priorities.getOrDefault(group, GroupPriority.DEFAULT));
             }
             return msg.rewind();
         }
 
-        static InetSocketAddress [] getGroups(RetainableByteBuffer msg) throws UnknownHostException {
-            msg.position(msg.position() + HEADER_SIZE);
-            int count = Byte.toUnsignedInt(msg.get());
-            final InetSocketAddress [] ret = new InetSocketAddress[count];
+        private static int getSnapshotPos(RetainableByteBuffer msg, int end) {
+            int offs = (msg.position() + HEADER_SIZE);
+            final int count = Byte.toUnsignedInt(msg.get(offs++));
             for (int idx=0; idx<count; idx++) {
-                final int rawAddrLength = Byte.toUnsignedInt(msg.get());
-                final byte [] rawAddr = new byte[rawAddrLength];
-                msg.get(rawAddr);
-                final InetAddress addr = InetAddress.getByAddress(rawAddr);
-                final int portNumber = Short.toUnsignedInt(msg.getShort());
-                ret[idx] = new InetSocketAddress(addr, portNumber);
+                offs += 1 + Byte.toUnsignedInt(msg.get(offs)) + (Short.SIZE / Byte.SIZE);
+            }
+            offs++; // version
+            for (int idx=0; (idx<count) && (offs<end); idx++) {
+                offs += 1 + Byte.toUnsignedInt(msg.get(offs));
+            }
+            return offs;
+        }
+
+        static int getSnapshot(RetainableByteBuffer msg) {
+            final int end = (msg.position() + Message.getLength(msg));
+            final int offs = getSnapshotPos(msg, end);
+            return ((offs + (Integer.SIZE / Byte.SIZE)) <= end) ? Math.max(msg.getInt(offs), 0) : 0;
+        }
+
+        /* Priorities in the order of getGroups(), default ones if the client did not send them. */
+        static GroupPriority [] getPriorities(RetainableByteBuffer msg) {
+            final int end = (msg.position() + Message.getLength(msg));
+            final int count = Byte.toUnsignedInt(msg.get(msg.position() + HEADER_SIZE));
+            int offs = (getSnapshotPos(msg, end) + (Integer.SIZE / Byte.SIZE));
+            final GroupPriority [] ret = new GroupPriority[count];
+            for (int idx=0; idx<count; idx++, offs+=PRIORITY_SIZE) {
+                ret[idx] = ((offs + PRIORITY_SIZE) <= end) ? getPriority(msg, offs) : GroupPriority.DEFAULT;
+            }
+            return ret;
+        }
+
+        static int getVersion(RetainableByteBuffer msg) {
+            final int pos = msg.position();
+            final int end = (pos + Message.getLength(msg));
+            int offs = (pos + HEADER_SIZE);
+            int count = Byte.toUnsignedInt(msg.get(offs++));
+            for (; count>0; count--) {
+                offs += 1 + Byte.toUnsignedInt(msg.get(offs)) + (Short.SIZE / Byte.SIZE);
+            }
+            return (offs < end) ? msg.get(offs) : 0;
+        }
+
+        static MulticastGroup [] getGroups(RetainableByteBuffer msg) throws UnknownHostException {
+            final int pos = msg.position();
+            final int end = (pos + Message.getLength(msg));
+            int offs = (pos + HEADER_SIZE);
+            final int count = Byte.toUnsignedInt(msg.get(offs++));
+            final InetSocketAddress [] addrs = new InetSocketAddress[count];
+            for (int idx=0; idx<count; idx++) {
+                addrs[idx] = getAddress(msg, offs);
+                offs += 1 + Byte.toUnsignedInt(msg.get(offs)) + (Short.SIZE / Byte.SIZE);
+            }
+            offs++; // version
+            final MulticastGroup [] ret = new MulticastGroup[count];
+            for (int idx=0; idx<count; idx++) {
+                InetAddress source = null;
+                if (offs < end) {
+                    source = getSource(msg, offs);
+                    offs += getSourceSize(source);
+                }
+                ret[idx] = new MulticastGroup(addrs[idx], source);
             }
             return ret;
         }
@@ -100,47 +373,68 @@ public class Protocol {
     static class JoinResponse {
         static final short ID = 6;
 
-        static ByteBuffer create(String statusText) throws Exception {
+        static ByteBuffer create(String statusText, int version) throws Exception {
             ByteBuffer statusTextBB = null;
-            int dataSize = (Short.SIZE / Byte.SIZE);
+            int statusTextLength = 0;
             if (statusText != null) {
                 final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
                 statusTextBB = encoder.encode(CharBuffer.wrap(statusText));
-                dataSize += statusTextBB.remaining();
+                statusTextLength = statusTextBB.remaining();
             }
+            final int dataSize = (Short.SIZE / Byte.SIZE) + statusTextLength + 1;
             ByteBuffer msg = Message.create(ID, dataSize);
-            msg.putShort((short)dataSize);
+            msg.putShort((short)statusTextLength);
             if (statusTextBB != null) {
                 msg.put(statusTextBB);
             }
+            msg.put((byte)version);
             return msg.rewind();
         }
 
+        static int getVersion(RetainableByteBuffer msg) {
+            final int pos = msg.position();
+            final int end = (pos + Message.getLength(msg));
+            final int offs = (pos + HEADER_SIZE + (Short.SIZE / Byte.SIZE) + Short.toUnsignedInt(msg.getShort(pos + HEADER_SIZE)));
+            return (offs < end) ? msg.get(offs) : 0;
+        }
+
         static String getStatusText(RetainableByteBuffer msg) throws CharacterCodingException {
-            msg.position(msg.position() + HEADER_SIZE);
-            final int statusTextLength = Short.toUnsignedInt(msg.getShort());
+            final int offs = (msg.position() + HEADER_SIZE);
+            final int statusTextLength = Short.toUnsignedInt(msg.getShort(offs));
             if (statusTextLength == 0) {
                 return null;
-            } else {
-                final CharsetDecoder decoder = Charset.defaultCharset().newDecoder();
-                msg.limit(msg.position() + statusTextLength);
-                return decoder.decode(msg.getNioByteBuffer()).toString();
             }
+            return decodeText(msg, offs + (Short.SIZE / Byte.SIZE), statusTextLength);
         }
     }
 
     static class MulticastPacket {
         static final short ID = 7;
 
-        static ByteBuffer create(InetSocketAddress groupAddr, RetainableByteBuffer packet) {
+        static byte [] createHeader(InetSocketAddress groupAddr) {
             final byte [] rawAddr = groupAddr.getAddress().getAddress();
-            final int dataSize = (Short.SIZE / Byte.SIZE) + rawAddr.length + (Short.SIZE / Byte.SIZE) + packet.remaining();
-            final ByteBuffer msg = Message.create(ID, dataSize);
-            msg.putShort((short)rawAddr.length);
-            msg.put(rawAddr);
-            msg.putShort((short)groupAddr.getPort());
-            msg.put(packet.getNioByteBuffer());
-            return msg.rewind();
+            final ByteBuffer header = ByteBuffer.allocate((Short.SIZE / Byte.SIZE) + rawAddr.length + (Short.SIZE / Byte.SIZE));
+            header.order(BYTE_ORDER);
+            header.putShort((short)rawAddr.length);
+            header.put(rawAddr);
+            header.putShort((short)groupAddr.getPort());
+            return header.array();
+        }
+
+        static RetainableByteBuffer create(RetainableByteBufferPool pool, byte [] header, ByteBuffer packet) {
+            final int messageSize = (HEADER_SIZE + header.length + packet.remaining());
+            assert(messageSize <= MAX_MESSAGE_SIZE);
+            final RetainableByteBuffer msg = pool.alloc(messageSize);
+            Message.putHeader(msg, ID, messageSize);
+            msg.put(header);
+            msg.put(packet);
+            msg.flip();
+            return msg;
+        }
+
+        static int getHeaderLength(RetainableByteBuffer msg) {
+            final int rawAddrLength = Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE));
+            return (Short.SIZE / Byte.SIZE) + rawAddrLength + (Short.SIZE / Byte.SIZE);
         }
 
         static InetSocketAddress getAddress(RetainableByteBuffer msg) throws UnknownHostException {
@@ -158,4 +452,363 @@ public class Protocol {
             }
         }
     }
+
+    static class Batch {
+        static final short ID = 8;
+
+        static void close(RetainableByteBuffer batch) {
+            batch.flip();
+            Message.setHeader(batch, 0, ID, batch.limit());
+        }
+    }
+
+    static class Ack {
+        static final short ID = 9;
+        static final int INTERVAL = (64 * 1024);
+
+        static ByteBuffer create(long bytesReceived) {
+            final ByteBuffer msg = Message.create(ID, (Long.SIZE / Byte.SIZE));
+            msg.putLong(bytesReceived);
+            return msg.rewind();
+        }
+
+        static long getBytesReceived(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE);
+        }
+    }
+
+    /* Client asks the server to send multicast packets over UDP. */
+    static class UdpRequest {
+        static final short ID = 10;
+
+        static ByteBuffer create() {
+            return Message.create(ID, 0).rewind();
+        }
+    }
+
+    /* Server response to the UdpRequest: session token and the server UDP port,
+     * client is expected to send UdpHello with the token to the port.
+     */
+    static class UdpSession {
+        static final short ID = 11;
+
+        static ByteBuffer create(long token, int portNumber) {
+            final ByteBuffer msg = Message.create(ID, (Long.SIZE / Byte.SIZE) + (Short.SIZE / Byte.SIZE));
+            msg.putLong(token);
+            msg.putShort((short)portNumber);
+            return msg.rewind();
+        }
+
+        static long getToken(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE);
+        }
+
+        static int getPortNumber(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE + (Long.SIZE / Byte.SIZE)));
+        }
+    }
+
+    /* Datagram sent by the client to the server UDP port,
+     * binds the client address to the session and keeps NAT mapping alive.
+     */
+    static class UdpHello {
+        static final short ID = 12;
+        static final int SIZE = (HEADER_SIZE + (Long.SIZE / Byte.SIZE));
+
+        static ByteBuffer create(long token) {
+            final ByteBuffer msg = Message.create(ID, (Long.SIZE / Byte.SIZE));
+            msg.putLong(token);
+            return msg.rewind();
+        }
+
+        static long getToken(ByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE);
+        }
+    }
+
+    /* Datagram with the same layout as the SequencedPacket. */
+    static class UdpData {
+        static final short ID = 13;
+        static final int MAX_SIZE = 65507;
+
+        static RetainableByteBuffer create(RetainableByteBufferPool pool,
+                long seq, long timestamp, int groupId, RetainableByteBuffer packet) {
+            return SequencedPacket.create(pool, ID, seq, timestamp, groupId, packet);
+        }
+    }
+
+    /* Client requests retransmission of the UDP packets [seq, seq+count) of the group. */
+    static class Nack {
+        static final short ID = 14;
+
+        static ByteBuffer create(int groupId, long seq, int count) {
+            final ByteBuffer msg = Message.create(ID, (Short.SIZE / Byte.SIZE) + (Long.SIZE / Byte.SIZE) + (Short.SIZE / Byte.SIZE));
+            msg.putShort((short)groupId);
+            msg.putLong(seq);
+            msg.putShort((short)count);
+            return msg.rewind();
+        }
+
+        static int getGroupId(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE));
+        }
+
+        static long getSeq(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE + (Short.SIZE / Byte.SIZE));
+        }
+
+        static int getCount(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE + (Short.SIZE / Byte.SIZE) + (Long.SIZE / Byte.SIZE)));
+        }
+    }
+
+    /* [header][group sequence number:64][server receive time:64][group id:16][MulticastPacket message],
+     * sequence numbers start from 1 when the server joins the group,
+     * receive time is in nanoseconds since the epoch (WallClock).
+     */
+    static class SequencedPacket {
+        static final short ID = 15;
+        static final int PREFIX_SIZE = (HEADER_SIZE + (Long.SIZE / Byte.SIZE) * 2 + (Short.SIZE / Byte.SIZE));
+
+        static RetainableByteBuffer create(RetainableByteBufferPool pool,
+                long seq, long timestamp, int groupId, RetainableByteBuffer packet) {
+            return create(pool, ID, seq, timestamp, groupId, packet);
+        }
+
+        static RetainableByteBuffer create(RetainableByteBufferPool pool,
+                short id, long seq, long timestamp, int groupId, RetainableByteBuffer packet) {
+            final int messageSize = (PREFIX_SIZE + packet.remaining());
+            assert(messageSize <= MAX_MESSAGE_SIZE);
+            final RetainableByteBuffer msg = pool.alloc(messageSize);
+            Message.putHeader(msg, id, messageSize);
+            msg.putLong(seq);
+            msg.putLong(timestamp);
+            msg.putShort((short)groupId);
+            final int pos = packet.position();
+            msg.put(packet.getNioByteBuffer());
+            packet.position(pos);
+            msg.flip();
+            return msg;
+        }
+
+        static long getSeq(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE);
+        }
+
+        static long getTimestamp(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE + (Long.SIZE / Byte.SIZE));
+        }
+
+        static int getGroupId(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE + (Long.SIZE / Byte.SIZE) * 2));
+        }
+    }
+
+    /* [group address][source][priority] */
+    static class Subscribe {
+        static final short ID = 16;
+
+        static ByteBuffer create(MulticastGroup group, GroupPriority priority) {
+            final ByteBuffer msg = Message.create(ID, getAddressSize(group.addr) + getSourceSize(group.source) + PRIORITY_SIZE);
+            putAddress(msg, group.addr);
+            putSource(msg, group.source);
+            putPriority(msg, priority);
+            return msg.rewind();
+        }
+
+        static MulticastGroup getGroup(RetainableByteBuffer msg) throws UnknownHostException {
+            final int pos = msg.position();
+            return Protocol.getGroup(msg, pos + HEADER_SIZE, pos + Message.getLength(msg));
+        }
+
+        static GroupPriority getPriority(RetainableByteBuffer msg) {
+            final int pos = msg.position();
+            return Protocol.getPriority(msg, pos + HEADER_SIZE, pos + Message.getLength(msg));
+        }
+    }
+
+    static class Unsubscribe {
+        static final short ID = 17;
+
+        static ByteBuffer create(MulticastGroup group) {
+            final ByteBuffer msg = Message.create(ID, getAddressSize(group.addr) + getSourceSize(group.source));
+            putAddress(msg, group.addr);
+            putSource(msg, group.source);
+            return msg.rewind();
+        }
+
+        static MulticastGroup getGroup(RetainableByteBuffer msg) throws UnknownHostException {
+            final int pos = msg.position();
+            return Protocol.getGroup(msg, pos + HEADER_SIZE, pos + Message.getLength(msg));
+        }
+    }
+
+    /* Server response to the Subscribe or Unsubscribe:
+     * [request id:8][group id:16][group address][status text length:16][status text][source],
+     * empty status text means success.
+     */
+    static class GroupStatus {
+        static final short ID = 18;
+
+        static ByteBuffer create(short requestId, int groupId, MulticastGroup group, String statusText)
+                throws CharacterCodingException {
+            ByteBuffer statusTextBB = null;
+            int statusTextLength = 0;
+            if (statusText != null) {
+                final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+                statusTextBB = encoder.encode(CharBuffer.wrap(statusText));
+                statusTextLength = statusTextBB.remaining();
+            }
+            final int dataSize = 1 + (Short.SIZE / Byte.SIZE) + getAddressSize(group.addr)
+                    + (Short.SIZE / Byte.SIZE) + statusTextLength + getSourceSize(group.source);
+            final ByteBuffer msg = Message.create(ID, dataSize);
+            msg.put((byte)requestId);
+            msg.putShort((short)groupId);
+            putAddress(msg, group.addr);
+            msg.putShort((short)statusTextLength);
+            if (statusTextBB != null) {
+                msg.put(statusTextBB);
+            }
+            putSource(msg, group.source);
+            return msg.rewind();
+        }
+
+        static short getRequestId(RetainableByteBuffer msg) {
+            return (short) Byte.toUnsignedInt(msg.get(msg.position() + HEADER_SIZE));
+        }
+
+        static int getGroupId(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE + 1));
+        }
+
+        private static int getStatusTextPos(RetainableByteBuffer msg) {
+            final int addrPos = (msg.position() + HEADER_SIZE + 1 + (Short.SIZE / Byte.SIZE));
+            return (addrPos + 1 + Byte.toUnsignedInt(msg.get(addrPos)) + (Short.SIZE / Byte.SIZE));
+        }
+
+        static MulticastGroup getGroup(RetainableByteBuffer msg) throws UnknownHostException {
+            final int pos = msg.position();
+            final InetSocketAddress addr = getAddress(msg, pos + HEADER_SIZE + 1 + (Short.SIZE / Byte.SIZE));
+            final int textPos = getStatusTextPos(msg);
+            final int sourcePos = (textPos + (Short.SIZE / Byte.SIZE) + Short.toUnsignedInt(msg.getShort(textPos)));
+            final InetAddress source = (sourcePos < (pos + Message.getLength(msg))) ? getSource(msg, sourcePos) : null;
+            return new MulticastGroup(addr, source);
+        }
+
+        static String getStatusText(RetainableByteBuffer msg) throws CharacterCodingException {
+            final int textPos = getStatusTextPos(msg);
+            final int statusTextLength = Short.toUnsignedInt(msg.getShort(textPos));
+            if (statusTextLength == 0) {
+                return null;
+            }
+            return decodeText(msg, textPos + (Short.SIZE / Byte.SIZE), statusTextLength);
+        }
+    }
+
+    /* Client asks the server to compress batches, sent after the JoinResponse. */
+    static class CompressionRequest {
+        static final short ID = 19;
+
+        static ByteBuffer create() {
+            return Message.create(ID, 0).rewind();
+        }
+    }
+
+    /* [dictionary id:16][dictionary data], sent before the first batch compressed with it. */
+    static class Dictionary {
+        static final short ID = 20;
+        static final int DATA_OFFSET = (HEADER_SIZE + (Short.SIZE / Byte.SIZE));
+
+        static ByteBuffer create(int dictionaryId, byte [] data) {
+            final ByteBuffer msg = Message.create(ID, (Short.SIZE / Byte.SIZE) + data.length);
+            msg.putShort((short)dictionaryId);
+            msg.put(data);
+            return msg.rewind();
+        }
+
+        static int getDictionaryId(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE));
+        }
+    }
+
+    /* [dictionary id:16][uncompressed length:32][LZ4 block], uncompressed data
+     * is a Batch payload, dictionary id NO_DICTIONARY means no dictionary.
+     */
+    static class CompressedBatch {
+        static final short ID = 21;
+        static final int NO_DICTIONARY = 0xFFFF;
+        static final int DATA_OFFSET = (HEADER_SIZE + (Short.SIZE / Byte.SIZE) + (Integer.SIZE / Byte.SIZE));
+
+        static void setHeader(RetainableByteBuffer msg, int pos, int messageSize, int dictionaryId, int rawLength) {
+            Message.setHeader(msg, pos, ID, messageSize);
+            msg.putShort(pos + HEADER_SIZE, (short)dictionaryId);
+            msg.putInt(pos + HEADER_SIZE + (Short.SIZE / Byte.SIZE), rawLength);
+        }
+
+        static int getDictionaryId(RetainableByteBuffer msg) {
+            return Short.toUnsignedInt(msg.getShort(msg.position() + HEADER_SIZE));
+        }
+
+        static int getRawLength(RetainableByteBuffer msg) {
+            return msg.getInt(msg.position() + HEADER_SIZE + (Short.SIZE / Byte.SIZE));
+        }
+    }
+
+    /* Subscribe starting from the packet with the given sequence number if the server still has it:
+     * [seq:64][group address][source][priority].
+     */
+    static class Resume {
+        static final short ID = 22;
+
+        static ByteBuffer create(MulticastGroup group, long seq, GroupPriority priority) {
+            final ByteBuffer msg = Message.create(ID,
+                    (Long.SIZE / Byte.SIZE) + getAddressSize(group.addr) + getSourceSize(group.source) + PRIORITY_SIZE);
+            msg.putLong(seq);
+            putAddress(msg, group.addr);
+            putSource(msg, group.source);
+            putPriority(msg, priority);
+            return msg.rewind();
+        }
+
+        static GroupPriority getPriority(RetainableByteBuffer msg) {
+            final int pos = msg.position();
+            return Protocol.getPriority(msg, pos + HEADER_SIZE + (Long.SIZE / Byte.SIZE), pos + Message.getLength(msg));
+        }
+
+        static long getSeq(RetainableByteBuffer msg) {
+            return msg.getLong(msg.position() + HEADER_SIZE);
+        }
+
+        static MulticastGroup getGroup(RetainableByteBuffer msg) throws UnknownHostException {
+            final int pos = msg.position();
+            return Protocol.getGroup(msg, pos + HEADER_SIZE + (Long.SIZE / Byte.SIZE), pos + Message.getLength(msg));
+        }
+    }
+
+    /* [header][group sequence number:64][server receive time:64][group id:16][payload],
+     * SequencedPacket without the group address, the id is assigned by the GroupStatus
+     * of the subscription and stays valid until the GroupStatus of the unsubscription.
+     */
+    static class ChannelPacket {
+        static final short ID = 23;
+
+        /* Payload is taken from the MulticastPacket message with the given group header. */
+        static RetainableByteBuffer create(RetainableByteBufferPool pool,
+                long seq, long timestamp, int groupId, RetainableByteBuffer packet, int headerLength) {
+            final int payloadPos = (packet.position() + HEADER_SIZE + headerLength);
+            final int messageSize = (SequencedPacket.PREFIX_SIZE + packet.limit() - payloadPos);
+            assert(messageSize <= MAX_MESSAGE_SIZE);
+            final RetainableByteBuffer msg = pool.alloc(messageSize);
+            Message.putHeader(msg, ID, messageSize);
+            msg.putLong(seq);
+            msg.putLong(timestamp);
+            msg.putShort((short)groupId);
+            final int pos = packet.position();
+            packet.position(payloadPos);
+            msg.put(packet.getNioByteBuffer());
+            packet.position(pos);
+            msg.flip();
+            return msg;
+        }
+    }
 }
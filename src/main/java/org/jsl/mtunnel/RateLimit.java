@@ -0,0 +1,40 @@
+package org.jsl.mtunnel;
+
+/* Rate in bytes per second the client connection or the group may take,
+ * burst is the number of bytes which can be sent at once after an idle period.
+ */
+public class RateLimit {
+    /* What happens to the packet over the budget:
+     * QUEUE waits for the tokens in the client queue (overflow policy applies),
+     * DROP drops the packet, CONFLATE keeps only the latest queued packet of the group.
+     */
+    public enum Policy {
+        QUEUE,
+        DROP,
+        CONFLATE
+    }
+
+    public final long rate;
+    public final long burst;
+
+    public RateLimit(long rate, long burst) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate should be positive: " + rate);
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst should be positive: " + burst);
+        }
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /* Default burst lets 100 milliseconds of traffic through at once. */
+    public RateLimit(long rate) {
+        this(rate, Math.max(rate / 10, 64 * 1024));
+    }
+
+    @Override
+    public String toString() {
+        return rate + "/" + burst;
+    }
+}
@@ -0,0 +1,112 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Off-heap ring of the last SequencedPacket messages of the group.
+ * One thread writes, any number of threads read without locking:
+ * reader copies the record and then checks the writer did not reserve
+ * the space of the record while it was being copied.
+ */
+public class ReplayBuffer {
+    private final ByteBuffer m_buffer;
+    private final ByteBuffer m_writeBuffer;
+    private final int m_capacity;
+    /* Ring position of the packet with sequence number N is at N % length, -1 if the packet was too large. */
+    private final AtomicLongArray m_positions;
+    /* Positions are not wrapped, writer is going to overwrite everything below (m_reserved - m_capacity). */
+    private volatile long m_reserved;
+    private volatile long m_lastSeq;
+    private long m_writePos;
+
+    public ReplayBuffer(int packets, int bytes) {
+        m_buffer = ByteBuffer.allocateDirect(bytes).order(Protocol.BYTE_ORDER);
+        m_writeBuffer = m_buffer.duplicate().order(Protocol.BYTE_ORDER);
+        m_capacity = bytes;
+        m_positions = new AtomicLongArray(packets);
+    }
+
+    public int getPackets() {
+        return m_positions.length();
+    }
+
+    public long getLastSeq() {
+        return m_lastSeq;
+    }
+
+    /* Oldest sequence number could be still available. */
+    public long getFirstSeq() {
+        final long lastSeq = m_lastSeq;
+        return Math.max(1, lastSeq - m_positions.length() + 1);
+    }
+
+    /* Writer thread only, msg is the SequencedPacket with the sequence number seq. */
+    public void put(long seq, RetainableByteBuffer msg) {
+        final int idx = (int) (seq % m_positions.length());
+        final int length = msg.remaining();
+        if (length > m_capacity) {
+            m_positions.set(idx, -1);
+            m_lastSeq = seq;
+            return;
+        }
+
+        long pos = m_writePos;
+        int offs = (int) (pos % m_capacity);
+        if ((offs + length) > m_capacity) {
+            /* Records are not split, the tail of the ring is skipped. */
+            pos += (m_capacity - offs);
+            offs = 0;
+        }
+        m_reserved = (pos + length);
+        VarHandle.storeStoreFence();
+
+        final int msgPos = msg.position();
+        m_writeBuffer.clear();
+        m_writeBuffer.position(offs);
+        m_writeBuffer.put(msg.getNioByteBuffer());
+        msg.position(msgPos);
+
+        m_positions.set(idx, pos);
+        m_writePos = (pos + length);
+        m_lastSeq = seq;
+    }
+
+    /* Any thread, returns the copy of the packet to be released by the caller
+     * or null if the packet is not available any more.
+     */
+    public RetainableByteBuffer get(long seq, RetainableByteBufferPool pool) {
+        final long lastSeq = m_lastSeq;
+        if ((seq > lastSeq) || (seq <= (lastSeq - m_positions.length())) || (seq <= 0)) {
+            return null;
+        }
+        final long pos = m_positions.get((int) (seq % m_positions.length()));
+        if ((pos < 0) || (pos < (m_reserved - m_capacity))) {
+            return null;
+        }
+
+        final int offs = (int) (pos % m_capacity);
+        final int length = (Short.toUnsignedInt(m_buffer.getShort(offs))
+                | ((Short.toUnsignedInt(m_buffer.getShort(offs + (Short.SIZE / Byte.SIZE))) >>> 8) << 16));
+        if ((length < Protocol.SequencedPacket.PREFIX_SIZE) || (length > (m_capacity - offs))) {
+            return null;
+        }
+
+        final ByteBuffer src = m_buffer.duplicate();
+        src.limit(offs + length);
+        src.position(offs);
+        final RetainableByteBuffer msg = pool.alloc(length);
+        msg.put(src);
+        msg.flip();
+
+        VarHandle.loadLoadFence();
+        if ((pos < (m_reserved - m_capacity)) || (Protocol.SequencedPacket.getSeq(msg) != seq)) {
+            msg.release();
+            return null;
+        }
+        return msg;
+    }
+}
@@ -0,0 +1,51 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+
+public class RetransmitBuffer {
+    private final RetainableByteBuffer [] m_frames;
+    private final long [] m_seqs;
+    private boolean m_closed;
+
+    public RetransmitBuffer(int capacity) {
+        m_frames = new RetainableByteBuffer[capacity];
+        m_seqs = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return m_frames.length;
+    }
+
+    /* Keeps a private slice of the frame, replacing the oldest one. */
+    public synchronized void put(long seq, RetainableByteBuffer frame) {
+        if (m_closed) {
+            return;
+        }
+        final int idx = (int) Long.remainderUnsigned(seq, m_frames.length);
+        if (m_frames[idx] != null) {
+            m_frames[idx].release();
+        }
+        m_frames[idx] = frame.slice();
+        m_seqs[idx] = seq;
+    }
+
+    /* Returns a slice of the frame to be released by the caller, or null if it is gone already. */
+    public synchronized RetainableByteBuffer get(long seq) {
+        final int idx = (int) Long.remainderUnsigned(seq, m_frames.length);
+        final RetainableByteBuffer frame = m_frames[idx];
+        if ((frame == null) || (m_seqs[idx] != seq)) {
+            return null;
+        }
+        return frame.slice();
+    }
+
+    public synchronized void close() {
+        m_closed = true;
+        for (int idx=0; idx<m_frames.length; idx++) {
+            if (m_frames[idx] != null) {
+                m_frames[idx].release();
+                m_frames[idx] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jsl.mtunnel;
+
+import java.util.Arrays;
+
+/* Receive windows of the sequenced packets indexed by the group id,
+ * server allocates group ids starting from 0 so the table stays small.
+ * Shared by the TCP and UDP receive paths of the connection, so it is thread safe.
+ */
+public class SequenceTable {
+    private SequenceWindow [] m_windows;
+
+    public SequenceTable() {
+        m_windows = new SequenceWindow[16];
+    }
+
+    private SequenceWindow get(int groupId) {
+        if (groupId >= m_windows.length) {
+            m_windows = Arrays.copyOf(m_windows, Math.max(m_windows.length * 2, groupId + 1));
+        }
+        SequenceWindow window = m_windows[groupId];
+        if (window == null) {
+            window = new SequenceWindow();
+            m_windows[groupId] = window;
+        }
+        return window;
+    }
+
+    /* See SequenceWindow.accept(). */
+    public synchronized long accept(int groupId, long seq) {
+        return get(groupId).accept(seq);
+    }
+
+    /* Sequence number of the next packet expected, 0 if nothing was received yet. */
+    public synchronized long getNext(int groupId) {
+        final SequenceWindow window = (groupId < m_windows.length) ? m_windows[groupId] : null;
+        return (window == null) ? 0 : window.getNext();
+    }
+
+    /* Next packet of the group starts a new sequence. */
+    public synchronized void reset(int groupId) {
+        if (groupId < m_windows.length) {
+            m_windows[groupId] = null;
+        }
+    }
+}
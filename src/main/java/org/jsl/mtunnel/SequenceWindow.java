@@ -0,0 +1,44 @@
+package org.jsl.mtunnel;
+
+public class SequenceWindow {
+    public static final int SIZE = Long.SIZE;
+
+    private long m_next;
+    /* Bit N is set if packet (m_next - 1 - N) was not received yet. */
+    private long m_missing;
+
+    /* Returns the number of packets missed just before the packet,
+     * or -1 if the packet is a duplicate or too late to be accepted.
+     */
+    public long accept(long seq) {
+        /* Sequence restarts from 1 when the server group is re-created. */
+        if ((m_next == 0) || ((seq == 1) && (m_next > SIZE))) {
+            m_missing = 0;
+            m_next = (seq + 1);
+            return 0;
+        }
+
+        if (seq >= m_next) {
+            final long gap = (seq - m_next);
+            final long missing = (gap >= (SIZE - 1)) ? ~1L : (((1L << gap) - 1) << 1);
+            m_missing = ((gap >= (SIZE - 1)) ? 0 : (m_missing << (gap + 1))) | missing;
+            m_next = (seq + 1);
+            return gap;
+        }
+
+        final long offset = (m_next - 1 - seq);
+        if (offset >= SIZE) {
+            return -1;
+        }
+        final long bit = (1L << offset);
+        if ((m_missing & bit) == 0) {
+            return -1;
+        }
+        m_missing &= ~bit;
+        return 0;
+    }
+
+    public long getNext() {
+        return m_next;
+    }
+}
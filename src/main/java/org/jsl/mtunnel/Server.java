@@ -2,45 +2,155 @@ package org.jsl.mtunnel;
 
 import org.jsl.collider.*;
 import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Server {
-    private final Collider m_collider;
-    private final NetworkInterface m_networkInterface;
-
-    private final ReentrantLock m_lock;
-    private final HashMap<Channel, ClientInfo> m_clients;
-    private final HashMap<InetSocketAddress, MulticastListener> m_multicastListeners;
+    public static class Config {
+        public int portNumber;
+        public NetworkInterface networkInterface;
+        public int pingInterval;
+        public int maxMissedPongs;
+        public int batchSize;
+        public long batchDelay;
+        public int receiverThreads;
+        public long windowSize;
+        public int queueSize;
+        public OutboundQueue.OverflowPolicy overflowPolicy;
+        public boolean udpTransport;
+        public int retransmitBufferSize;
+        public boolean compression;
+        public int dictionarySize;
+        public int replayPackets;
+        public int replayBufferSize;
+        public long replayTime;
+        public boolean receiveBatch;
+        /* SO_RCVBUF of the group sockets, 0 keeps the system default. */
+        public int receiveBufferSize;
+        public HashMap<InetSocketAddress, Integer> groupReceiveBufferSize;
+        /* Limit of every client connection, null means no limit. */
+        public RateLimit clientRateLimit;
+        /* Limit of the group for every client. */
+        public HashMap<InetSocketAddress, RateLimit> groupRateLimit;
+        public RateLimit.Policy rateLimitPolicy;
+        /* Journal of the received packets, null disables recording. */
+        public Path recordDirectory;
+        public int recordSegmentSize;
+        /* Journal played to the clients instead of joining the groups. */
+        public Path playbackDirectory;
+        /* 1 keeps the original pacing, 0 plays as fast as possible. */
+        public double playbackSpeed;
+        /* Milliseconds before the playback starts, let the clients subscribe. */
+        public long playbackDelay;
+        /* Milliseconds since the epoch, 0 plays the whole journal. */
+        public long playbackFrom;
 
-    private static class ClientInfo {
-        public final ArrayList<InetSocketAddress> groups;
-
-        ClientInfo() {
-            groups = new ArrayList<>();
+        public Config() {
+            portNumber = 0;
+            networkInterface = null;
+            pingInterval = 5000;
+            maxMissedPongs = 3;
+            batchSize = (16 * 1024);
+            batchDelay = 200;
+            receiverThreads = 1;
+            windowSize = (4 * 1024 * 1024);
+            queueSize = 4096;
+            overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+            udpTransport = false;
+            retransmitBufferSize = 256;
+            compression = false;
+            dictionarySize = (32 * 1024);
+            replayPackets = 0;
+            replayBufferSize = (4 * 1024 * 1024);
+            replayTime = 10000;
+            receiveBatch = false;
+            receiveBufferSize = 0;
+            groupReceiveBufferSize = new HashMap<>();
+            clientRateLimit = null;
+            groupRateLimit = new HashMap<>();
+            rateLimitPolicy = RateLimit.Policy.QUEUE;
+            recordDirectory = null;
+            recordSegmentSize = Journal.DEFAULT_SEGMENT_SIZE;
+            playbackDirectory = null;
+            playbackSpeed = 1.0;
+            playbackDelay = 5000;
+            playbackFrom = 0;
         }
     }
 
+    private static final int BUFFER_POOL_CHUNK_SIZE = (256 * 1024);
+
+    private final TimerQueue m_timerQueue;
+    private final MetricsRegistry m_metricsRegistry;
+    private final MulticastReceiver [] m_receivers;
+    private final NetworkInterface m_networkInterface;
+    private final int m_batchSize;
+    private final long m_batchDelay;
+    private final long m_windowSize;
+    private final int m_queueSize;
+    private final OutboundQueue.OverflowPolicy m_overflowPolicy;
+    private final RetainableByteBufferPool m_bufferPool;
+    private final DatagramChannel m_udpChannel;
+    private final int m_udpPort;
+    private final int m_retransmitBufferSize;
+    private final boolean m_compression;
+    private final int m_dictionarySize;
+    private final int m_replayPackets;
+    private final int m_replayBufferSize;
+    private final long m_replayTime;
+    private final boolean m_receiveBatch;
+    private final int m_receiveBufferSize;
+    private final HashMap<InetSocketAddress, Integer> m_groupReceiveBufferSize;
+    private final RateLimit m_clientRateLimit;
+    private final HashMap<InetSocketAddress, RateLimit> m_groupRateLimit;
+    private final RateLimit.Policy m_rateLimitPolicy;
+    private final boolean m_shaping;
+    /* Journal stream of every receiver thread, null if not recording. */
+    private final JournalWriter [] m_journals;
+    private final boolean m_playback;
+    private final SecureRandom m_random;
+    private final ConcurrentHashMap<Long, ServerChannel> m_udpSessions;
+
+    private final BitSet m_groupIds;
+    private final ConcurrentHashMap<MulticastGroup, MulticastListener> m_multicastListeners;
+
     private class TunnelAcceptor extends Acceptor {
         private final TimerQueue m_timerQueue;
         private final int m_pingInterval;
+        private final int m_maxMissedPongs;
 
-        public TunnelAcceptor(int portNumber, TimerQueue timerQueue, int pingInterval) {
+        public TunnelAcceptor(int portNumber, TimerQueue timerQueue, int pingInterval, int maxMissedPongs) {
             super(portNumber);
             m_timerQueue = timerQueue;
             m_pingInterval = pingInterval;
+            m_maxMissedPongs = maxMissedPongs;
         }
 
         @Override
         public Channel.Listener createSessionListener(Channel channel) {
             System.out.println("Client " + channel.getRemoteAddress() + " connected.");
-            return new ServerChannel(channel, m_timerQueue, m_pingInterval);
+            return new ServerChannel(channel, m_timerQueue, m_pingInterval, m_maxMissedPongs);
         }
 
         @Override
@@ -49,172 +159,1422 @@ public class Server {
         }
     }
 
+    private class UdpListener implements MulticastReceiver.Listener {
+        @Override
+        public void onDataReceived(ByteBuffer data, SocketAddress sourceAddr) {
+            if ((data.remaining() == Protocol.UdpHello.SIZE)
+                    && (Protocol.Message.getLength(data) == Protocol.UdpHello.SIZE)
+                    && (Protocol.Message.getMessageId(data) == Protocol.UdpHello.ID)) {
+                final ServerChannel serverChannel = m_udpSessions.get(Protocol.UdpHello.getToken(data));
+                if (serverChannel != null) {
+                    serverChannel.setUdpAddress((InetSocketAddress) sourceAddr);
+                }
+            }
+        }
+    }
+
     private class ServerChannel extends TunnelChannel {
-        public ServerChannel(Channel channel, TimerQueue timerQueue, int pingInterval) {
-            super(channel, timerQueue, pingInterval);
+        private class FlushTask implements TimerQueue.Task {
+            public long run() {
+                m_lock.lock();
+                try {
+                    m_flushScheduled = false;
+                    flush();
+                } finally {
+                    m_lock.unlock();
+                }
+                return 0;
+            }
+        }
+
+        /* Sends the queued packets when the token buckets refill. */
+        private class ShapingTask implements TimerQueue.Task {
+            public long run() {
+                m_lock.lock();
+                try {
+                    m_shapingScheduled = false;
+                    if (!m_closed) {
+                        drain(System.nanoTime());
+                    }
+                } finally {
+                    m_lock.unlock();
+                }
+                return 0;
+            }
+        }
+
+        private final ReentrantLock m_lock;
+        private final FlushTask m_flushTask;
+        private final ShapingTask m_shapingTask;
+        private final GroupScheduler m_queue;
+        private final TokenBucket m_rateLimit;
+        /* Changed by the channel thread under m_lock, read by the channel thread only. */
+        private final ArrayList<MulticastListener> m_groups;
+        private final LongAdder m_datagramsDropped;
+        private int m_version;
+        private boolean m_sequenced;
+        private boolean m_channelIds;
+        /* Subscribed groups by id, ids of the groups left are reused by the server.
+         * Changed under m_lock, so the queue drain can find the group on any thread.
+         */
+        private MulticastListener [] m_channels;
+        private int m_maxMessageSize;
+        private int m_batchCapacity;
+        private long m_window;
+        private long m_bytesSent;
+        private long m_bytesAcked;
+        private RetainableByteBuffer m_batch;
+        private int m_batchMessages;
+        private boolean m_flushScheduled;
+        private boolean m_shapingScheduled;
+        private boolean m_closed;
+        private long m_udpToken;
+        private volatile InetSocketAddress m_udpAddr;
+        private BatchCompressor m_compressor;
+        /* Group of all messages in the current batch, null if they are from different groups. */
+        private MulticastListener m_batchGroup;
+        private CompressionDictionary [] m_dictionaries;
+
+        public ServerChannel(Channel channel, TimerQueue timerQueue, int pingInterval, int maxMissedPongs) {
+            super(channel, timerQueue, pingInterval, maxMissedPongs, m_metricsRegistry);
+            m_lock = new ReentrantLock();
+            m_flushTask = new FlushTask();
+            m_shapingTask = new ShapingTask();
+            m_queue = new GroupScheduler(m_queueSize, m_overflowPolicy);
+            m_rateLimit = (m_clientRateLimit == null) ? null : new TokenBucket(m_clientRateLimit, System.nanoTime());
+            m_groups = new ArrayList<>();
+            m_datagramsDropped = new LongAdder();
+            m_channels = new MulticastListener[16];
+            setVersion(0);
+        }
+
+        private void setVersion(int version) {
+            m_version = Math.min(version, Protocol.VERSION);
+            m_sequenced = (m_version >= Protocol.VERSION_SEQUENCE);
+            m_channelIds = (m_version >= Protocol.VERSION_CHANNEL_ID);
+            m_maxMessageSize = Protocol.getMaxMessageSize(m_version);
+            /* Peers without a version do not know the Batch message. */
+            m_batchCapacity = (m_version >= Protocol.VERSION_LARGE_MESSAGES) ? Math.min(m_batchSize, m_maxMessageSize) : 0;
+            m_window = (m_version >= Protocol.VERSION_FLOW_CONTROL) ? m_windowSize : Long.MAX_VALUE;
+        }
+
+        private MulticastListener getGroup(MulticastGroup group) {
+            for (MulticastListener multicastListener: m_groups) {
+                if (multicastListener.group.equals(group)) {
+                    return multicastListener;
+                }
+            }
+            return null;
+        }
+
+        boolean isSubscribed(MulticastGroup group) {
+            return (getGroup(group) != null);
+        }
+
+        private void sendGroupStatus(short requestId, int groupId, MulticastGroup group, String statusText) {
+            try {
+                sendMessage(Protocol.GroupStatus.create(requestId, groupId, group, statusText));
+            } catch (CharacterCodingException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+
+        /* Replays the packets starting from fromSeq, or the last snapshot packets, if any of them is positive.
+         * Group already subscribed is not replayed, client would drop the packets older than the ones it got.
+         */
+        private void subscribe(MulticastGroup group, GroupPriority priority, long fromSeq, int snapshot) {
+            final SocketAddress clientAddr = m_channel.getRemoteAddress();
+            MulticastListener multicastListener = getGroup(group);
+            if (multicastListener != null) {
+                setPriority(multicastListener, priority);
+                sendGroupStatus(Protocol.Subscribe.ID, multicastListener.id, group, null);
+                return;
+            }
+            if (!group.addr.getAddress().isMulticastAddress()) {
+                sendGroupStatus(Protocol.Subscribe.ID, 0, group, group + " is not a multicast address");
+                return;
+            }
+
+            /* Live packets of the group wait until the replayed ones are queued. */
+            m_lock.lock();
+            try {
+                try {
+                    multicastListener = addSubscriber(group, this);
+                    m_groups.add(multicastListener);
+                    setChannel(multicastListener.id, multicastListener);
+                    m_queue.setPriority(multicastListener.id, priority);
+                    final RateLimit rateLimit = m_groupRateLimit.get(group.addr);
+                    if (rateLimit != null) {
+                        m_queue.setRateLimit(multicastListener.id, new TokenBucket(rateLimit, System.nanoTime()));
+                    }
+                    System.out.println("Joined multicast group " + group + " for client " + clientAddr);
+                } catch (IOException ex) {
+                    System.out.println("Can't join multicast group " + group + " for client " + clientAddr + ": " + ex);
+                    sendGroupStatus(Protocol.Subscribe.ID, 0, group, ex.getMessage());
+                    return;
+                }
+                sendGroupStatus(Protocol.Subscribe.ID, multicastListener.id, group, null);
+                if (((fromSeq > 0) || (snapshot > 0)) && m_sequenced && (multicastListener.replayBuffer != null)) {
+                    replay(multicastListener, fromSeq, snapshot);
+                }
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        private void replay(MulticastListener multicastListener, long fromSeq, int snapshot) {
+            final ReplayBuffer replayBuffer = multicastListener.replayBuffer;
+            final long firstSeq = replayBuffer.getFirstSeq();
+            final long lastSeq = replayBuffer.getLastSeq();
+            long seq;
+            if (snapshot > 0) {
+                seq = Math.max(firstSeq, lastSeq - snapshot + 1);
+            } else if ((fromSeq < firstSeq) || (fromSeq > (lastSeq + 1))) {
+                /* Packets are gone already or the group was re-created since. */
+                seq = firstSeq;
+            } else {
+                seq = fromSeq;
+            }
+
+            final long minTimestamp = (m_replayTime > 0)
+                    ? (WallClock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(m_replayTime)) : Long.MIN_VALUE;
+            for (; (seq <= lastSeq) && !m_closed; seq++) {
+                final RetainableByteBuffer msg = replayBuffer.get(seq, m_bufferPool);
+                if (msg != null) {
+                    if (Protocol.SequencedPacket.getTimestamp(msg) >= minTimestamp) {
+                        enqueue(msg, multicastListener);
+                        multicastListener.metrics.packetsReplayed.increment();
+                    }
+                    msg.release();
+                }
+            }
+        }
+
+        private void unsubscribe(MulticastGroup group) {
+            final MulticastListener multicastListener = getGroup(group);
+            if (multicastListener == null) {
+                sendGroupStatus(Protocol.Unsubscribe.ID, 0, group, "not subscribed to " + group);
+            } else {
+                /* Packets of the group still queued would be taken by the client
+                 * for the packets of the group getting the id next.
+                 */
+                m_lock.lock();
+                try {
+                    m_groups.remove(multicastListener);
+                    removeSubscriber(multicastListener, this);
+                    System.out.println("Left multicast group " + group + " for client " + m_channel.getRemoteAddress());
+                    setChannel(multicastListener.id, null);
+                    m_queue.removeGroup(multicastListener.id);
+                    flush();
+                    sendGroupStatus(Protocol.Unsubscribe.ID, multicastListener.id, group, null);
+                } finally {
+                    m_lock.unlock();
+                }
+            }
+        }
+
+        private void setPriority(MulticastListener multicastListener, GroupPriority priority) {
+            m_lock.lock();
+            try {
+                m_queue.setPriority(multicastListener.id, priority);
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        /* Older clients may send anything after the group. */
+        private GroupPriority getPriority(GroupPriority priority) {
+            return (m_version >= Protocol.VERSION_PRIORITY) ? priority : GroupPriority.DEFAULT;
+        }
+
+        private void setChannel(int groupId, MulticastListener multicastListener) {
+            if (groupId >= m_channels.length) {
+                m_channels = Arrays.copyOf(m_channels, Math.max(m_channels.length * 2, groupId + 1));
+            }
+            m_channels[groupId] = multicastListener;
+        }
+
+        /* Receiver may still send the packets of the group just left. */
+        private boolean hasChannel(MulticastListener multicastListener) {
+            final int groupId = multicastListener.id;
+            return !m_channelIds || ((groupId < m_channels.length) && (m_channels[groupId] == multicastListener));
+        }
+
+        @Override
+        public int getQueueSize() {
+            m_lock.lock();
+            try {
+                return m_queue.size();
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        @Override
+        public long getDroppedPackets() {
+            m_lock.lock();
+            try {
+                return m_queue.getDropped() + m_datagramsDropped.sum();
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        void setUdpAddress(InetSocketAddress udpAddr) {
+            if (!udpAddr.equals(m_udpAddr)) {
+                m_lock.lock();
+                try {
+                    if (!m_closed) {
+                        System.out.println("Client " + m_channel.getRemoteAddress() + " receives packets over UDP at " + udpAddr);
+                        m_udpAddr = udpAddr;
+                    }
+                } finally {
+                    m_lock.unlock();
+                }
+            }
+        }
+
+        boolean isSequenced() {
+            return m_sequenced;
+        }
+
+        /* Client gets the ChannelPacket instead of the SequencedPacket over TCP. */
+        boolean hasChannelIds() {
+            return m_channelIds;
+        }
+
+        boolean hasUdpAddress() {
+            return (m_udpAddr != null);
+        }
+
+        void sendDatagram(RetainableByteBuffer frame) {
+            final InetSocketAddress udpAddr = m_udpAddr;
+            if (udpAddr == null) {
+                return;
+            }
+            final RetainableByteBuffer data = frame.slice();
+            try {
+                if (m_udpChannel.send(data.getNioByteBuffer(), udpAddr) > 0) {
+                    m_metrics.datagramsOut.increment();
+                } else {
+                    m_datagramsDropped.increment();
+                }
+            } catch (IOException ex) {
+                m_datagramsDropped.increment();
+            } finally {
+                data.release();
+            }
+        }
+
+        private void onUdpRequest() {
+            if ((m_udpChannel == null) || (m_version < Protocol.VERSION_UDP) || (m_udpToken != 0)) {
+                /* Client keeps receiving packets over TCP. */
+                return;
+            }
+            long token;
+            do {
+                token = m_random.nextLong();
+            } while ((token == 0) || (m_udpSessions.putIfAbsent(token, this) != null));
+            m_udpToken = token;
+            sendMessage(Protocol.UdpSession.create(token, m_udpPort));
+        }
+
+        private void onNack(RetainableByteBuffer msg) {
+            if (m_udpAddr == null) {
+                return;
+            }
+            final int groupId = Protocol.Nack.getGroupId(msg);
+            for (MulticastListener multicastListener: m_groups) {
+                final RetransmitBuffer retransmitBuffer = multicastListener.retransmitBuffer;
+                if ((retransmitBuffer != null) && (multicastListener.id == groupId)) {
+                    final long seq = Protocol.Nack.getSeq(msg);
+                    final int count = Math.min(Protocol.Nack.getCount(msg), retransmitBuffer.getCapacity());
+                    for (int idx=0; idx<count; idx++) {
+                        final RetainableByteBuffer frame = retransmitBuffer.get(seq + idx);
+                        if (frame != null) {
+                            sendDatagram(frame);
+                            m_metrics.retransmits.increment();
+                            frame.release();
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+
+        private void onCompressionRequest() {
+            if (!m_compression || (m_version < Protocol.VERSION_COMPRESSION)) {
+                return;
+            }
+            m_lock.lock();
+            try {
+                if (m_compressor == null) {
+                    System.out.println("Client " + m_channel.getRemoteAddress() + " receives compressed batches");
+                    m_compressor = new BatchCompressor();
+                    m_dictionaries = new CompressionDictionary[16];
+                }
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        /* Dictionary of the group is sent to the client once, before the first batch compressed with it. */
+        private RetainableByteBuffer compressBatch() {
+            final CompressionDictionary dictionary = (m_batchGroup == null) ? null : m_batchGroup.dictionary;
+            m_batch.position(Protocol.HEADER_SIZE);
+            final RetainableByteBuffer compressed = m_compressor.compress(m_batch, dictionary, m_bufferPool);
+            m_batch.position(0);
+            if (compressed != null) {
+                m_metrics.rawBytes.add(m_batch.remaining());
+                m_metrics.compressedBytes.add(compressed.remaining());
+                if (dictionary != null) {
+                    if (dictionary.id >= m_dictionaries.length) {
+                        m_dictionaries = Arrays.copyOf(m_dictionaries, Math.max(m_dictionaries.length * 2, dictionary.id + 1));
+                    }
+                    if (m_dictionaries[dictionary.id] != dictionary) {
+                        m_dictionaries[dictionary.id] = dictionary;
+                        sendMessage(Protocol.Dictionary.create(dictionary.id, dictionary.data));
+                    }
+                }
+            }
+            return compressed;
+        }
+
+        private boolean hasCredit() {
+            final long batchBytes = (m_batch == null) ? 0 : m_batch.position();
+            return ((m_bytesSent + batchBytes - m_bytesAcked) < m_window);
+        }
+
+        private void flush() {
+            if (m_batch != null) {
+                Protocol.Batch.close(m_batch);
+                final RetainableByteBuffer compressed = (m_compressor == null) ? null : compressBatch();
+                if (compressed != null) {
+                    m_bytesSent += compressed.remaining();
+                    sendMessage(compressed);
+                    compressed.release();
+                } else {
+                    if (m_batchMessages == 1) {
+                        m_batch.position(Protocol.HEADER_SIZE);
+                    }
+                    m_bytesSent += m_batch.remaining();
+                    sendMessage(m_batch);
+                }
+                m_batch.release();
+                m_batch = null;
+                m_batchMessages = 0;
+                m_batchGroup = null;
+            }
+        }
+
+        private void write(RetainableByteBuffer msg, MulticastListener multicastListener) {
+            final int messageSize = msg.remaining();
+            if ((m_batchCapacity == 0) || (messageSize + Protocol.HEADER_SIZE > m_batchCapacity)) {
+                flush();
+                m_bytesSent += messageSize;
+                sendMessage(msg);
+                return;
+            }
+
+            if ((m_batch != null) && (m_batch.remaining() < messageSize)) {
+                flush();
+            }
+
+            if (m_batch == null) {
+                m_batch = m_bufferPool.alloc(m_batchCapacity);
+                m_batch.position(Protocol.HEADER_SIZE);
+            }
+
+            final int pos = msg.position();
+            m_batch.put(msg.getNioByteBuffer());
+            msg.position(pos);
+            if (m_batchMessages++ == 0) {
+                m_batchGroup = multicastListener;
+            } else if (m_batchGroup != multicastListener) {
+                m_batchGroup = null;
+            }
+
+            if (m_batch.remaining() < Protocol.HEADER_SIZE) {
+                flush();
+            } else if (!m_flushScheduled) {
+                m_flushScheduled = true;
+                m_timerQueue.schedule(m_flushTask, m_batchDelay, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        private boolean isThrottled(MulticastListener multicastListener, long now) {
+            return ((m_rateLimit != null) && !m_rateLimit.hasTokens(now)) || m_queue.isThrottled(multicastListener.id, now);
+        }
+
+        private void enqueue(RetainableByteBuffer msg, MulticastListener multicastListener) {
+            final long now = m_shaping ? System.nanoTime() : 0;
+            final boolean throttled = (m_shaping && isThrottled(multicastListener, now));
+            if (!throttled && m_queue.isEmpty() && hasCredit()) {
+                if (m_rateLimit != null) {
+                    m_rateLimit.consume(msg.remaining());
+                }
+                m_queue.consume(multicastListener.id, msg.remaining());
+                write(msg, multicastListener);
+                return;
+            }
+
+            if (throttled) {
+                m_metrics.throttledBytes.add(msg.remaining());
+                multicastListener.metrics.bytesThrottled.add(msg.remaining());
+                if (m_rateLimitPolicy == RateLimit.Policy.DROP) {
+                    m_metrics.throttledDrops.increment();
+                    return;
+                }
+            }
+
+            final boolean conflate = (throttled && (m_rateLimitPolicy == RateLimit.Policy.CONFLATE));
+            if (!m_queue.offer(msg, multicastListener.id, conflate)) {
+                System.out.println("Client " + m_channel.getRemoteAddress()
+                        + " send queue overflow, close connection");
+                m_closed = true;
+                m_queue.clear();
+                m_channel.closeConnection();
+            } else if (m_shaping) {
+                /* Queue is not empty because of the rate limit of the other group, not the window. */
+                drain(now);
+            }
+        }
+
+        /* Writes the queued packets while the window and the rate limits allow. */
+        private void drain(long now) {
+            while (!m_queue.isEmpty() && hasCredit()) {
+                if ((m_rateLimit != null) && !m_rateLimit.hasTokens(now)) {
+                    scheduleShaping(m_rateLimit.getDelay(now));
+                    break;
+                }
+                final int groupId = m_queue.peekGroupId(now);
+                if (groupId < 0) {
+                    scheduleShaping(m_queue.getThrottleDelay(now));
+                    break;
+                }
+                /* Runs on the receiver and timer threads, m_groups belongs to the channel thread. */
+                final MulticastListener multicastListener = m_channels[groupId];
+                final RetainableByteBuffer msg = m_queue.poll(now);
+                if (m_rateLimit != null) {
+                    m_rateLimit.consume(msg.remaining());
+                }
+                write(msg, multicastListener);
+                msg.release();
+            }
+        }
+
+        private void scheduleShaping(long delay) {
+            if (!m_shapingScheduled && (delay != Long.MAX_VALUE)) {
+                m_shapingScheduled = true;
+                m_timerQueue.schedule(m_shapingTask, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /* Packets of the batch are queued under one lock. */
+        void sendPackets(RetainableByteBuffer [] msgs, int count, MulticastListener multicastListener) {
+            m_lock.lock();
+            try {
+                for (int idx=0; (idx < count) && !m_closed && hasChannel(multicastListener); idx++) {
+                    if (msgs[idx].remaining() <= m_maxMessageSize) {
+                        enqueue(msgs[idx], multicastListener);
+                    }
+                }
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        void sendPacket(RetainableByteBuffer msg, MulticastListener multicastListener) {
+            if (msg.remaining() > m_maxMessageSize) {
+                return;
+            }
+
+            m_lock.lock();
+            try {
+                if (!m_closed && hasChannel(multicastListener)) {
+                    enqueue(msg, multicastListener);
+                }
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        private void onAck(long bytesReceived) {
+            m_lock.lock();
+            try {
+                if (bytesReceived > m_bytesAcked) {
+                    m_bytesAcked = bytesReceived;
+                }
+
+                if (!m_closed && !m_queue.isEmpty()) {
+                    drain(m_shaping ? System.nanoTime() : 0);
+                    flush();
+                }
+            } finally {
+                m_lock.unlock();
+            }
         }
 
         @Override
         public void onConnectionClosed() {
             super.onConnectionClosed();
             System.out.println("Client " + m_channel.getRemoteAddress() + " disconnected");
-            onClientDisconnected(m_channel);
+            onClientDisconnected(this);
+            if (m_udpToken != 0) {
+                m_udpSessions.remove(m_udpToken, this);
+            }
+
+            boolean interrupted = false;
+            try {
+                m_timerQueue.cancel(m_flushTask);
+                m_timerQueue.cancel(m_shapingTask);
+            } catch (final InterruptedException ex) {
+                interrupted = true;
+            }
+
+            m_lock.lock();
+            try {
+                m_closed = true;
+                m_udpAddr = null;
+                m_queue.clear();
+                if (m_batch != null) {
+                    m_batch.release();
+                    m_batch = null;
+                }
+            } finally {
+                m_lock.unlock();
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         @Override
         public void onMessageReceived(RetainableByteBuffer msg) {
             final short messageId = Protocol.Message.getMessageId(msg);
-            if (messageId == Protocol.JoinRequest.ID) {
+            if (messageId == Protocol.Ack.ID) {
+                onAck(Protocol.Ack.getBytesReceived(msg));
+            }
+            else if (messageId == Protocol.Nack.ID) {
+                onNack(msg);
+            }
+            else if (messageId == Protocol.UdpRequest.ID) {
+                onUdpRequest();
+            }
+            else if (messageId == Protocol.CompressionRequest.ID) {
+                onCompressionRequest();
+            }
+            else if (messageId == Protocol.Subscribe.ID) {
+                try {
+                    subscribe(Protocol.Subscribe.getGroup(msg), getPriority(Protocol.Subscribe.getPriority(msg)), 0, 0);
+                } catch (UnknownHostException ex) {
+                    System.out.println("Invalid message received from "
+                            + m_channel.getRemoteAddress() + ", close connection");
+                    m_channel.closeConnection();
+                }
+            }
+            else if (messageId == Protocol.Resume.ID) {
+                try {
+                    subscribe(Protocol.Resume.getGroup(msg), getPriority(Protocol.Resume.getPriority(msg)),
+                            Protocol.Resume.getSeq(msg), 0);
+                } catch (UnknownHostException ex) {
+                    System.out.println("Invalid message received from "
+                            + m_channel.getRemoteAddress() + ", close connection");
+                    m_channel.closeConnection();
+                }
+            }
+            else if (messageId == Protocol.Unsubscribe.ID) {
                 try {
-                    final InetSocketAddress[] groups = Protocol.JoinRequest.getGroups(msg);
-                    joinGroups(m_channel, groups);
+                    unsubscribe(Protocol.Unsubscribe.getGroup(msg));
+                } catch (UnknownHostException ex) {
+                    System.out.println("Invalid message received from "
+                            + m_channel.getRemoteAddress() + ", close connection");
+                    m_channel.closeConnection();
+                }
+            }
+            else if (messageId == Protocol.JoinRequest.ID) {
+                try {
+                    setVersion(Protocol.JoinRequest.getVersion(msg));
+                    final MulticastGroup [] groups = Protocol.JoinRequest.getGroups(msg);
+                    if (m_version >= Protocol.VERSION_SUBSCRIBE) {
+                        /* Client gets the status of every group, failed ones do not break the session. */
+                        final int snapshot = (m_version >= Protocol.VERSION_REPLAY) ? Protocol.JoinRequest.getSnapshot(msg) : 0;
+                        final GroupPriority [] priorities = Protocol.JoinRequest.getPriorities(msg);
+                        sendMessage(Protocol.JoinResponse.create(null, m_version));
+                        for (int idx=0; idx<groups.length; idx++) {
+                            subscribe(groups[idx], getPriority(priorities[idx]), 0, snapshot);
+                        }
+                    } else if (joinGroups(this, groups)) {
+                        sendMessage(Protocol.JoinResponse.create(null, m_version));
+                    }
                 }
                 catch (UnknownHostException ex) {
                     System.out.println("Invalid message received from "
                             + m_channel.getRemoteAddress() + ", close connection");
                     m_channel.closeConnection();
                 }
+                catch (Exception ex) {
+                    System.out.println(ex.getMessage());
+                    m_channel.closeConnection();
+                }
+            }
+            else {
+                super.onMessageReceived(msg);
             }
         }
     }
 
-    private class MulticastListener extends DatagramListener {
-        public ArrayList<Channel> clients;
+    private class MulticastListener implements MulticastReceiver.Listener, MulticastReceiver.BatchListener {
+        public final MulticastGroup group;
+        public final InetSocketAddress addr;
+        public final InetAddress source;
+        public final int id;
+        public final byte [] header;
+        public final SubscriberList<ServerChannel> subscribers;
+        public final MulticastReceiver receiver;
+        public final GroupMetrics metrics;
+        public final RetransmitBuffer retransmitBuffer;
+        public final ReplayBuffer replayBuffer;
+        public final JournalWriter journal;
+        /* Raw address of the SSM source matched on the playback. */
+        private final byte [] m_sourceAddr;
+        public volatile DatagramChannel datagramChannel;
+        public volatile CompressionDictionary dictionary;
+        public long seq;
+        private byte [] m_sample;
+        private int m_sampleSize;
+        /* Messages of the received batch in every format, receiver thread only. */
+        private RetainableByteBuffer [] m_packets;
+        private RetainableByteBuffer [] m_sequenced;
+        private RetainableByteBuffer [] m_channelPackets;
+        private RetainableByteBuffer [] m_frames;
+        private InetAddress [] m_sources;
+        private long m_firstSeq;
+        private int m_batchSize;
+        /* Sender of the last packet journaled, the group usually has one. */
+        private InetAddress m_journalSource;
+        private byte [] m_journalSourceAddr;
+        /* Subscribers coming while the first one opens the socket wait for the result. */
+        private final CountDownLatch m_opened;
+        private volatile IOException m_openError;
+
+        public MulticastListener(MulticastGroup group, int id) {
+            this.group = group;
+            this.addr = group.addr;
+            this.source = group.source;
+            this.id = id;
+            header = Protocol.MulticastPacket.createHeader(addr);
+            subscribers = new SubscriberList<>(new ServerChannel[0]);
+            receiver = m_receivers[id % m_receivers.length];
+            metrics = new GroupMetrics(group.toString(), () -> subscribers.get().length, () -> UdpSocketStats.getDrops(addr));
+            retransmitBuffer = ((m_udpChannel != null) && (m_retransmitBufferSize > 0))
+                    ? new RetransmitBuffer(m_retransmitBufferSize) : null;
+            replayBuffer = (m_replayPackets > 0) ? new ReplayBuffer(m_replayPackets, m_replayBufferSize) : null;
+            journal = (m_journals == null) ? null : m_journals[id % m_receivers.length];
+            m_sourceAddr = (source == null) ? null : source.getAddress();
+            m_opened = new CountDownLatch(1);
+        }
 
-        public MulticastListener(InetSocketAddress addr, Channel channel) {
-            super(addr);
-            clients = new ArrayList<>();
-            clients.add(channel);
+        public MulticastGroup getGroup() {
+            return group;
         }
 
         @Override
-        public void onDataReceived(RetainableByteBuffer data, SocketAddress sourceAddr) {
-            Server.this.sendData(data, this);
+        public String toString() {
+            return group.toString();
+        }
+
+        public void open() throws IOException {
+            if (m_playback) {
+                /* Packets come from the journal. */
+                m_metricsRegistry.register(metrics);
+                return;
+            }
+            final InetAddress groupAddr = addr.getAddress();
+            final DatagramChannel datagramChannel = DatagramChannel.open(
+                    (groupAddr instanceof Inet6Address) ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+            try {
+                datagramChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                final int receiveBufferSize = m_groupReceiveBufferSize.getOrDefault(addr, m_receiveBufferSize);
+                if (receiveBufferSize > 0) {
+                    datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                    /* Linux doubles the value and caps it by net.core.rmem_max. */
+                    final int actualSize = datagramChannel.getOption(StandardSocketOptions.SO_RCVBUF);
+                    if (actualSize < receiveBufferSize) {
+                        System.out.println("Receive buffer of group " + group + " is " + actualSize
+                                + " bytes instead of " + receiveBufferSize + ", check net.core.rmem_max");
+                    }
+                }
+                datagramChannel.bind(addr);
+                datagramChannel.configureBlocking(false);
+                /* Source-specific join is an IGMPv3/MLDv2 (S,G) membership, kernel
+                 * filters the other sources of the group on this socket.
+                 */
+                if (source == null) {
+                    datagramChannel.join(groupAddr, m_networkInterface);
+                } else {
+                    datagramChannel.join(groupAddr, m_networkInterface, source);
+                }
+            } catch (IOException ex) {
+                datagramChannel.close();
+                throw ex;
+            }
+            this.datagramChannel = datagramChannel;
+            if (m_receiveBatch) {
+                receiver.register(datagramChannel, (MulticastReceiver.BatchListener) this);
+            } else {
+                receiver.register(datagramChannel, (MulticastReceiver.Listener) this);
+            }
+            m_metricsRegistry.register(metrics);
+        }
+
+        void setOpened(IOException error) {
+            m_openError = error;
+            m_opened.countDown();
+        }
+
+        void awaitOpened() throws IOException {
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    m_opened.await();
+                    break;
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            final IOException error = m_openError;
+            if (error != null) {
+                throw new IOException(error.getMessage(), error);
+            }
+        }
+
+        public void close() {
+            m_metricsRegistry.unregister(metrics);
+            if (datagramChannel != null) {
+                receiver.unregister(datagramChannel);
+                datagramChannel = null;
+            }
+            if (retransmitBuffer != null) {
+                retransmitBuffer.close();
+            }
+        }
+
+        /* First packets of the group make the dictionary,
+         * later packets of the group usually share much of the content with them.
+         */
+        void sample(RetainableByteBuffer msg) {
+            if (m_sample == null) {
+                m_sample = new byte[m_dictionarySize];
+            }
+            final int pos = msg.position();
+            final int length = Math.min(msg.remaining(), m_sample.length - m_sampleSize);
+            for (int idx=0; idx<length; idx++) {
+                m_sample[m_sampleSize + idx] = msg.get(pos + idx);
+            }
+            m_sampleSize += length;
+            if (m_sampleSize == m_sample.length) {
+                dictionary = new CompressionDictionary(id, m_sample);
+                m_sample = null;
+                System.out.println("Compression dictionary for group " + group + " is ready");
+            }
+        }
+
+        @Override
+        public void onDataReceived(ByteBuffer data, SocketAddress sourceAddr) {
+            /* Sockets of the other listeners bound to the same group and port
+             * may still get the datagrams of any source on some platforms.
+             */
+            if ((source != null) && !source.equals(((InetSocketAddress) sourceAddr).getAddress())) {
+                metrics.datagramsFiltered.increment();
+                return;
+            }
+            final long startTime = System.nanoTime();
+            metrics.datagramsIn.increment();
+            metrics.bytesIn.add(data.remaining());
+            Server.this.sendData(data, this, ((InetSocketAddress) sourceAddr).getAddress(), WallClock.fromNanoTime(startTime));
+            metrics.fanOutTime.record(System.nanoTime() - startTime);
+        }
+
+        /* Raw address of the packet sender for the journal, allocated only when the sender changes. */
+        byte [] getJournalSource(InetAddress sourceAddr) {
+            if (!sourceAddr.equals(m_journalSource)) {
+                m_journalSource = sourceAddr;
+                m_journalSourceAddr = sourceAddr.getAddress();
+            }
+            return m_journalSourceAddr;
+        }
+
+        /* Playback thread only. */
+        void onDataPlayed(ByteBuffer data) {
+            final long startTime = System.nanoTime();
+            metrics.datagramsIn.increment();
+            metrics.bytesIn.add(data.remaining());
+            Server.this.sendData(data, this, null, WallClock.fromNanoTime(startTime));
+            metrics.fanOutTime.record(System.nanoTime() - startTime);
+        }
+
+        /* Checks the group address and the source of the journal record,
+         * source-specific group gets only the packets of its source.
+         */
+        boolean accepts(JournalReader reader) {
+            if ((m_sourceAddr != null) && !reader.isSource(m_sourceAddr)) {
+                return false;
+            }
+            final ByteBuffer packet = reader.getPacket();
+            final int pos = (packet.position() + Protocol.HEADER_SIZE);
+            if ((pos + header.length) > packet.limit()) {
+                return false;
+            }
+            for (int idx=0; idx<header.length; idx++) {
+                if (packet.get(pos + idx) != header[idx]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onDataReceived(DatagramBatch batch) {
+            final long startTime = System.nanoTime();
+            final ServerChannel [] subscribers = this.subscribers.get();
+            final boolean deliver = ((subscribers.length > 0) || (replayBuffer != null) || (journal != null));
+            if (m_packets == null) {
+                m_packets = new RetainableByteBuffer[DatagramBatch.MAX_DATAGRAMS];
+                m_sequenced = new RetainableByteBuffer[DatagramBatch.MAX_DATAGRAMS];
+                m_channelPackets = new RetainableByteBuffer[DatagramBatch.MAX_DATAGRAMS];
+                m_frames = new RetainableByteBuffer[DatagramBatch.MAX_DATAGRAMS];
+                m_sources = new InetAddress[DatagramBatch.MAX_DATAGRAMS];
+            }
+
+            m_firstSeq = (seq + 1);
+            m_batchSize = 0;
+            for (int idx=0; idx<batch.size(); idx++) {
+                final ByteBuffer data = batch.get(idx);
+                final InetAddress sourceAddr = ((InetSocketAddress) batch.getSource(idx)).getAddress();
+                if ((source != null) && !source.equals(sourceAddr)) {
+                    metrics.datagramsFiltered.increment();
+                    continue;
+                }
+                metrics.datagramsIn.increment();
+                metrics.bytesIn.add(data.remaining());
+                if (!deliver) {
+                    continue;
+                }
+                seq++;
+                final RetainableByteBuffer msg = Protocol.MulticastPacket.create(m_bufferPool, header, data);
+                if (m_compression && (m_dictionarySize > 0) && (dictionary == null)) {
+                    sample(msg);
+                }
+                m_sources[m_batchSize] = sourceAddr;
+                m_packets[m_batchSize++] = msg;
+            }
+            metrics.receiveBatches.increment();
+
+            final long timestamp = WallClock.fromNanoTime(startTime);
+            try {
+                if (replayBuffer != null) {
+                    for (int idx=0; idx<m_batchSize; idx++) {
+                        replayBuffer.put(m_firstSeq + idx, getSequenced(idx, timestamp));
+                    }
+                }
+                for (ServerChannel serverChannel: subscribers) {
+                    if (serverChannel.hasUdpAddress()) {
+                        for (int idx=0; idx<m_batchSize; idx++) {
+                            if (isUdpSize(m_packets[idx])) {
+                                serverChannel.sendDatagram(getFrame(idx, timestamp));
+                            } else if (serverChannel.hasChannelIds()) {
+                                serverChannel.sendPacket(getChannelPacket(idx, timestamp), this);
+                            } else {
+                                serverChannel.sendPacket(getSequenced(idx, timestamp), this);
+                            }
+                        }
+                    } else if (serverChannel.hasChannelIds()) {
+                        for (int idx=0; idx<m_batchSize; idx++) {
+                            getChannelPacket(idx, timestamp);
+                        }
+                        serverChannel.sendPackets(m_channelPackets, m_batchSize, this);
+                    } else if (serverChannel.isSequenced()) {
+                        for (int idx=0; idx<m_batchSize; idx++) {
+                            getSequenced(idx, timestamp);
+                        }
+                        serverChannel.sendPackets(m_sequenced, m_batchSize, this);
+                    } else {
+                        serverChannel.sendPackets(m_packets, m_batchSize, this);
+                    }
+                }
+                /* Recorded after the fan-out, so the copy does not delay the clients. */
+                if (journal != null) {
+                    for (int idx=0; idx<m_batchSize; idx++) {
+                        journal.append(timestamp, getJournalSource(m_sources[idx]), m_packets[idx]);
+                    }
+                }
+            } finally {
+                for (int idx=0; idx<m_batchSize; idx++) {
+                    m_packets[idx].release();
+                    m_packets[idx] = null;
+                    m_sources[idx] = null;
+                    if (m_sequenced[idx] != null) {
+                        m_sequenced[idx].release();
+                        m_sequenced[idx] = null;
+                    }
+                    if (m_channelPackets[idx] != null) {
+                        m_channelPackets[idx].release();
+                        m_channelPackets[idx] = null;
+                    }
+                    if (m_frames[idx] != null) {
+                        m_frames[idx].release();
+                        m_frames[idx] = null;
+                    }
+                }
+            }
+            metrics.fanOutTime.record(System.nanoTime() - startTime);
+        }
+
+        private RetainableByteBuffer getSequenced(int idx, long timestamp) {
+            if (m_sequenced[idx] == null) {
+                m_sequenced[idx] = Protocol.SequencedPacket.create(m_bufferPool, m_firstSeq + idx, timestamp, id, m_packets[idx]);
+            }
+            return m_sequenced[idx];
+        }
+
+        private RetainableByteBuffer getChannelPacket(int idx, long timestamp) {
+            if (m_channelPackets[idx] == null) {
+                m_channelPackets[idx] = Protocol.ChannelPacket.create(
+                        m_bufferPool, m_firstSeq + idx, timestamp, id, m_packets[idx], header.length);
+            }
+            return m_channelPackets[idx];
+        }
+
+        private RetainableByteBuffer getFrame(int idx, long timestamp) {
+            if (m_frames[idx] == null) {
+                m_frames[idx] = Protocol.UdpData.create(m_bufferPool, m_firstSeq + idx, timestamp, id, m_packets[idx]);
+                if (retransmitBuffer != null) {
+                    retransmitBuffer.put(m_firstSeq + idx, m_frames[idx]);
+                }
+            }
+            return m_frames[idx];
         }
     }
 
-    private void sendData(RetainableByteBuffer data, MulticastListener multicastListener) {
-        ArrayList<Channel> clients;
-        m_lock.lock();
-        try {
-            clients = multicastListener.clients;
-        } finally {
-            m_lock.unlock();
+    /* Feeds the journal to the groups subscribed by the clients,
+     * streams of the receiver threads are merged by the timestamp,
+     * records of the groups nobody is subscribed to are skipped.
+     */
+    private class Playback implements Runnable {
+        private final JournalReader [] m_readers;
+        private final double m_speed;
+        private final long m_delay;
+        private final long m_from;
+
+        Playback(JournalReader [] readers, double speed, long delay, long from) {
+            m_readers = readers;
+            m_speed = speed;
+            m_delay = delay;
+            m_from = from;
+        }
+
+        private void play() throws IOException {
+            final boolean [] pending = new boolean[m_readers.length];
+            for (int idx=0; idx<m_readers.length; idx++) {
+                if (m_from > 0) {
+                    m_readers[idx].seek(TimeUnit.MILLISECONDS.toNanos(m_from));
+                }
+                pending[idx] = m_readers[idx].next();
+            }
+            long records = 0;
+            long firstTimestamp = 0;
+            long startTime = 0;
+            for (;;) {
+                JournalReader reader = null;
+                int readerIdx = -1;
+                for (int idx=0; idx<m_readers.length; idx++) {
+                    if (pending[idx] && ((reader == null) || (m_readers[idx].getTimestamp() < reader.getTimestamp()))) {
+                        reader = m_readers[idx];
+                        readerIdx = idx;
+                    }
+                }
+                if (reader == null) {
+                    break;
+                }
+                final long timestamp = reader.getTimestamp();
+                if (records++ == 0) {
+                    firstTimestamp = timestamp;
+                    startTime = System.nanoTime();
+                    System.out.println("Playback started");
+                } else if (m_speed > 0) {
+                    final long sendTime = (startTime + (long) ((timestamp - firstTimestamp) / m_speed));
+                    long delay;
+                    while ((delay = (sendTime - System.nanoTime())) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                }
+                final ByteBuffer packet = reader.getPacket();
+                for (MulticastListener multicastListener: m_multicastListeners.values()) {
+                    if (multicastListener.accepts(reader)) {
+                        final int pos = packet.position();
+                        packet.position(pos + Protocol.HEADER_SIZE + multicastListener.header.length);
+                        multicastListener.onDataPlayed(packet);
+                        packet.position(pos);
+                    }
+                }
+                pending[readerIdx] = reader.next();
+            }
+            System.out.println("Playback finished, " + records + " packets");
         }
 
-        final ByteBuffer msg = Protocol.MulticastPacket.create(multicastListener.getAddr(), data);
-        for (Channel clientChannel: clients) {
-            clientChannel.sendData(msg);
+        public void run() {
+            try {
+                Thread.sleep(m_delay);
+                play();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (final IOException ex) {
+                System.out.println("Playback failed: " + ex.getMessage());
+            }
         }
     }
 
-    private void onClientDisconnected(Channel clientChannel) {
-        final ArrayList<MulticastListener> groupsToLeave = new ArrayList<>();
-        m_lock.lock();
+    private boolean isUdpSize(RetainableByteBuffer msg) {
+        return (m_udpChannel != null) && (Protocol.SequencedPacket.PREFIX_SIZE + msg.remaining() <= Protocol.UdpData.MAX_SIZE);
+    }
+
+    /* Every packet takes the next group sequence number, the packet is encoded
+     * once for each format the subscribers need: plain MulticastPacket for the old clients,
+     * SequencedPacket or ChannelPacket for the TCP clients and UdpData for the UDP clients.
+     * Datagrams keep the group address, they may come before the GroupStatus assigning the id.
+     */
+    private void sendData(ByteBuffer data, MulticastListener multicastListener, InetAddress sourceAddr, long timestamp) {
+        final ServerChannel [] subscribers = multicastListener.subscribers.get();
+        if ((subscribers.length == 0) && (multicastListener.replayBuffer == null) && (multicastListener.journal == null)) {
+            return;
+        }
+
+        final long seq = ++multicastListener.seq;
+        final RetainableByteBuffer msg = Protocol.MulticastPacket.create(m_bufferPool, multicastListener.header, data);
+        if (m_compression && (m_dictionarySize > 0) && (multicastListener.dictionary == null)) {
+            multicastListener.sample(msg);
+        }
+        final boolean udp = isUdpSize(msg);
+        RetainableByteBuffer sequenced = null;
+        RetainableByteBuffer channelPacket = null;
+        RetainableByteBuffer frame = null;
         try {
-            final ClientInfo clientInfo = m_clients.remove(clientChannel);
-            if (clientInfo != null) {
-                for (InetSocketAddress groupAddr: clientInfo.groups) {
-                    final MulticastListener multicastListener = m_multicastListeners.get(groupAddr);
-                    final ArrayList<Channel> clients = new ArrayList<>(multicastListener.clients);
-                    clients.remove(clientChannel);
-                    if (clients.isEmpty()) {
-                        groupsToLeave.add(multicastListener);
-                    } else {
-                        multicastListener.clients = clients;
+            if (multicastListener.replayBuffer != null) {
+                sequenced = Protocol.SequencedPacket.create(m_bufferPool, seq, timestamp, multicastListener.id, msg);
+                multicastListener.replayBuffer.put(seq, sequenced);
+            }
+            for (ServerChannel serverChannel: subscribers) {
+                if (udp && serverChannel.hasUdpAddress()) {
+                    if (frame == null) {
+                        frame = Protocol.UdpData.create(m_bufferPool, seq, timestamp, multicastListener.id, msg);
+                        if (multicastListener.retransmitBuffer != null) {
+                            multicastListener.retransmitBuffer.put(seq, frame);
+                        }
                     }
+                    serverChannel.sendDatagram(frame);
+                } else if (serverChannel.hasChannelIds()) {
+                    if (channelPacket == null) {
+                        channelPacket = Protocol.ChannelPacket.create(
+                                m_bufferPool, seq, timestamp, multicastListener.id, msg, multicastListener.header.length);
+                    }
+                    serverChannel.sendPacket(channelPacket, multicastListener);
+                } else if (serverChannel.isSequenced()) {
+                    if (sequenced == null) {
+                        sequenced = Protocol.SequencedPacket.create(m_bufferPool, seq, timestamp, multicastListener.id, msg);
+                    }
+                    serverChannel.sendPacket(sequenced, multicastListener);
+                } else {
+                    serverChannel.sendPacket(msg, multicastListener);
                 }
             }
+            if (multicastListener.journal != null) {
+                multicastListener.journal.append(timestamp, multicastListener.getJournalSource(sourceAddr), msg);
+            }
+        } finally {
+            msg.release();
+            if (sequenced != null) {
+                sequenced.release();
+            }
+            if (channelPacket != null) {
+                channelPacket.release();
+            }
+            if (frame != null) {
+                frame.release();
+            }
         }
-        finally {
-            m_lock.unlock();
+    }
+
+    private int allocGroupId() {
+        synchronized (m_groupIds) {
+            final int id = m_groupIds.nextClearBit(0);
+            m_groupIds.set(id);
+            return id;
         }
+    }
 
-        boolean interrupted = false;
-        for (MulticastListener multicastListener: groupsToLeave) {
-            try {
-                System.out.println("Leave multicast group " + multicastListener.getAddr());
-                m_collider.removeDatagramListener(multicastListener);
-            } catch (InterruptedException ex){
-                System.out.println(ex.getMessage());
-                interrupted = true;
+    private void releaseGroupId(int id) {
+        synchronized (m_groupIds) {
+            m_groupIds.clear(id);
+        }
+    }
+
+    private void removeMulticastListener(MulticastListener multicastListener) {
+        m_multicastListeners.remove(multicastListener.getGroup(), multicastListener);
+        multicastListener.close();
+        releaseGroupId(multicastListener.id);
+    }
+
+    /* Group left by the last subscriber is closed unless it has no new subscribers since. */
+    private class LingerTask implements TimerQueue.Task {
+        private final MulticastListener m_multicastListener;
+        private final ServerChannel [] m_subscribers;
+
+        LingerTask(MulticastListener multicastListener, ServerChannel [] subscribers) {
+            m_multicastListener = multicastListener;
+            m_subscribers = subscribers;
+        }
+
+        public long run() {
+            if (m_multicastListener.subscribers.close(m_subscribers)) {
+                System.out.println("Leave multicast group " + m_multicastListener.getGroup());
+                removeMulticastListener(m_multicastListener);
+            }
+            return 0;
+        }
+    }
+
+    /* Group having the replay buffer stays joined for the replay time after the last subscriber left,
+     * so a client reconnecting in the meantime can resume without a gap.
+     */
+    private void removeSubscriber(MulticastListener multicastListener, ServerChannel serverChannel) {
+        final boolean linger = (multicastListener.replayBuffer != null) && (m_replayTime > 0);
+        if (multicastListener.subscribers.remove(serverChannel, !linger) == 0) {
+            if (linger) {
+                final ServerChannel [] subscribers = multicastListener.subscribers.get();
+                if (subscribers.length == 0) {
+                    m_timerQueue.schedule(new LingerTask(multicastListener, subscribers), m_replayTime, TimeUnit.MILLISECONDS);
+                }
+            } else {
+                System.out.println("Leave multicast group " + multicastListener.getGroup());
+                removeMulticastListener(multicastListener);
             }
         }
+    }
 
-        if (interrupted)
-            Thread.currentThread().interrupt();
+    private void onClientDisconnected(ServerChannel serverChannel) {
+        serverChannel.m_lock.lock();
+        try {
+            for (MulticastListener multicastListener: serverChannel.m_groups) {
+                removeSubscriber(multicastListener, serverChannel);
+            }
+            serverChannel.m_groups.clear();
+        } finally {
+            serverChannel.m_lock.unlock();
+        }
     }
 
     private void sendFailResponseAndCloseConnection(String msg, Channel clientChannel) {
         try {
-            final ByteBuffer response = Protocol.JoinResponse.create(msg);
+            final ByteBuffer response = Protocol.JoinResponse.create(msg, Protocol.VERSION);
             clientChannel.sendData(response);
+            Protocol.Message.release(response);
         } catch (Exception ex1) {
             System.out.println(ex1.getMessage());
         }
         clientChannel.closeConnection();
     }
 
-    private void joinGroups(Channel clientChannel, InetSocketAddress [] groups) {
-        final SocketAddress clientAddr = clientChannel.getRemoteAddress();
-        for (final InetSocketAddress groupAddr : groups) {
-            if (groupAddr.getAddress().isMulticastAddress()) {
-                MulticastListener multicastListener;
-
-                m_lock.lock();
-                try {
-                    multicastListener = m_multicastListeners.get(groupAddr);
-                    if (multicastListener == null) {
-                        multicastListener = new MulticastListener(groupAddr, clientChannel);
-                        m_multicastListeners.put(groupAddr, multicastListener);
-                    } else {
-                        final ArrayList<Channel> clients = new ArrayList<>(multicastListener.clients);
-                        clients.add(clientChannel);
-                        multicastListener.clients = clients;
-                        multicastListener = null;
-                    }
-                } finally {
-                    m_lock.unlock();
-                }
-
-                if (multicastListener != null) {
+    private MulticastListener addSubscriber(MulticastGroup group, ServerChannel serverChannel) throws IOException {
+        for (;;) {
+            MulticastListener multicastListener = m_multicastListeners.get(group);
+            if (multicastListener == null) {
+                final MulticastListener newListener = new MulticastListener(group, allocGroupId());
+                newListener.subscribers.add(serverChannel);
+                multicastListener = m_multicastListeners.putIfAbsent(group, newListener);
+                if (multicastListener == null) {
                     try {
-                        m_collider.addDatagramListener(multicastListener, m_networkInterface);
-                        System.out.println("Joined multicast group " + groupAddr + " for client " + clientAddr);
+                        newListener.open();
                     } catch (IOException ex) {
-                        System.out.println("Can't join multicast group " + groupAddr + " for client " + clientAddr + ": " + ex);
-                        sendFailResponseAndCloseConnection(ex.getMessage(), clientChannel);
-                        break;
+                        /* Subscribers waiting for the listener fail the same way, they are not subscribed yet. */
+                        m_multicastListeners.remove(group, newListener);
+                        newListener.subscribers.close();
+                        releaseGroupId(newListener.id);
+                        newListener.setOpened(ex);
+                        throw ex;
                     }
+                    newListener.setOpened(null);
+                    return newListener;
                 }
+                releaseGroupId(newListener.id);
+            }
 
-                m_lock.lock();
+            if (multicastListener.subscribers.add(serverChannel)) {
+                /* Listener is in the map before its socket is open,
+                 * throws if the subscriber opening it failed, the listener is gone then.
+                 */
+                multicastListener.awaitOpened();
+                return multicastListener;
+            }
+
+            /* Listener is being removed, drop it from the map and try again. */
+            m_multicastListeners.remove(group, multicastListener);
+        }
+    }
+
+    private boolean joinGroups(ServerChannel serverChannel, MulticastGroup [] groups) {
+        final Channel clientChannel = serverChannel.m_channel;
+        final SocketAddress clientAddr = clientChannel.getRemoteAddress();
+        for (final MulticastGroup group : groups) {
+            if (group.addr.getAddress().isMulticastAddress()) {
+                if (serverChannel.isSubscribed(group)) {
+                    continue;
+                }
+                serverChannel.m_lock.lock();
                 try {
-                    ClientInfo clientInfo = m_clients.get(clientChannel);
-                    if (clientInfo == null) {
-                        clientInfo = new ClientInfo();
-                        m_clients.put(clientChannel, clientInfo);
-                    }
-                    clientInfo.groups.add(groupAddr);
+                    final MulticastListener multicastListener = addSubscriber(group, serverChannel);
+                    serverChannel.m_groups.add(multicastListener);
+                    serverChannel.setChannel(multicastListener.id, multicastListener);
+                    System.out.println("Joined multicast group " + group + " for client " + clientAddr);
+                } catch (IOException ex) {
+                    System.out.println("Can't join multicast group " + group + " for client " + clientAddr + ": " + ex);
+                    sendFailResponseAndCloseConnection(ex.getMessage(), clientChannel);
+                    return false;
                 } finally {
-                    m_lock.unlock();
+                    serverChannel.m_lock.unlock();
                 }
             } else {
-                final String msg = groupAddr + "is not a multicast address";
+                final String msg = group + " is not a multicast address";
                 sendFailResponseAndCloseConnection(msg, clientChannel);
-                break;
+                return false;
             }
         }
+        return true;
     }
 
-    public Server(Collider collider, NetworkInterface networkInterface, int portNumber, TimerQueue timerQueue, int pingInterval) throws IOException {
-        m_collider = collider;
-        m_networkInterface = networkInterface;
-        m_lock = new ReentrantLock();
-        m_clients = new HashMap<>();
-        m_multicastListeners = new HashMap<>();
+    public Server(Collider collider, TimerQueue timerQueue, MetricsRegistry metricsRegistry, Config config) throws IOException {
+        if (config.batchSize > Protocol.MAX_MESSAGE_SIZE) {
+            throw new IOException("batch size exceeds maximum message size " + Protocol.MAX_MESSAGE_SIZE);
+        }
+        if (config.windowSize < (2 * Protocol.Ack.INTERVAL)) {
+            throw new IOException("window size is less than " + (2 * Protocol.Ack.INTERVAL));
+        }
+        if (config.queueSize <= 0) {
+            throw new IOException("invalid send queue size " + config.queueSize);
+        }
+        if (config.receiverThreads <= 0) {
+            throw new IOException("invalid number of receiver threads " + config.receiverThreads);
+        }
+        if (config.retransmitBufferSize < 0) {
+            throw new IOException("invalid retransmit buffer size " + config.retransmitBufferSize);
+        }
+        if ((config.dictionarySize < 0) || (config.dictionarySize > Lz4.MAX_OFFSET)) {
+            throw new IOException("invalid dictionary size " + config.dictionarySize);
+        }
+        if ((config.replayPackets < 0) || ((config.replayPackets > 0) && (config.replayBufferSize <= 0))) {
+            throw new IOException("invalid replay buffer size " + config.replayPackets + "/" + config.replayBufferSize);
+        }
+        if (config.replayTime < 0) {
+            throw new IOException("invalid replay time " + config.replayTime);
+        }
+        if ((config.receiveBufferSize < 0) || config.groupReceiveBufferSize.containsValue(0)) {
+            throw new IOException("invalid receive buffer size");
+        }
+        if ((config.recordDirectory != null) && (config.playbackDirectory != null)) {
+            throw new IOException("journal can not be recorded during the playback");
+        }
+        if ((config.playbackSpeed < 0) || (config.playbackDelay < 0) || (config.playbackFrom < 0)) {
+            throw new IOException("invalid playback parameters");
+        }
+        m_timerQueue = timerQueue;
+        m_metricsRegistry = metricsRegistry;
+        m_networkInterface = config.networkInterface;
+        m_batchSize = config.batchSize;
+        m_batchDelay = config.batchDelay;
+        m_windowSize = config.windowSize;
+        m_queueSize = config.queueSize;
+        m_overflowPolicy = config.overflowPolicy;
+        m_bufferPool = new RetainableByteBufferPool(BUFFER_POOL_CHUNK_SIZE, true, Protocol.BYTE_ORDER);
+        m_groupIds = new BitSet();
+        m_multicastListeners = new ConcurrentHashMap<>();
+        m_retransmitBufferSize = config.retransmitBufferSize;
+        m_compression = config.compression;
+        m_dictionarySize = config.dictionarySize;
+        m_replayPackets = config.replayPackets;
+        m_replayBufferSize = config.replayBufferSize;
+        m_replayTime = config.replayTime;
+        m_receiveBatch = config.receiveBatch;
+        m_receiveBufferSize = config.receiveBufferSize;
+        m_groupReceiveBufferSize = new HashMap<>(config.groupReceiveBufferSize);
+        m_clientRateLimit = config.clientRateLimit;
+        m_groupRateLimit = new HashMap<>(config.groupRateLimit);
+        m_rateLimitPolicy = config.rateLimitPolicy;
+        m_shaping = ((m_clientRateLimit != null) || !m_groupRateLimit.isEmpty());
+        m_playback = (config.playbackDirectory != null);
+        m_random = new SecureRandom();
+        m_udpSessions = new ConcurrentHashMap<>();
 
-        final Acceptor acceptor = new TunnelAcceptor(portNumber, timerQueue, pingInterval);
+        if (config.udpTransport) {
+            m_udpChannel = DatagramChannel.open();
+            try {
+                m_udpChannel.bind(new InetSocketAddress(config.portNumber));
+                m_udpChannel.configureBlocking(false);
+            } catch (IOException ex) {
+                m_udpChannel.close();
+                throw ex;
+            }
+            m_udpPort = ((InetSocketAddress) m_udpChannel.getLocalAddress()).getPort();
+            System.out.println("UDP transport at port " + m_udpPort);
+        } else {
+            m_udpChannel = null;
+            m_udpPort = 0;
+        }
+
+        m_receivers = new MulticastReceiver[config.receiverThreads];
+        for (int idx=0; idx<m_receivers.length; idx++) {
+            m_receivers[idx] = new MulticastReceiver("mtunnel-receiver-" + idx);
+        }
+        for (MulticastReceiver receiver: m_receivers) {
+            receiver.start();
+        }
+        if (m_udpChannel != null) {
+            m_receivers[0].register(m_udpChannel, new UdpListener());
+        }
+
+        if (config.recordDirectory != null) {
+            /* Stream per receiver thread, so the receivers do not share the writer. */
+            m_journals = new JournalWriter[m_receivers.length];
+            for (int idx=0; idx<m_journals.length; idx++) {
+                final Path dir = Journal.getStreamPath(config.recordDirectory, idx);
+                m_journals[idx] = new JournalWriter(dir, config.recordSegmentSize, "mtunnel-journal-" + idx);
+                metricsRegistry.register(new JournalMetrics(dir.toString(), m_journals[idx]));
+            }
+            System.out.println("Recording journal to " + config.recordDirectory);
+        } else {
+            m_journals = null;
+        }
+
+        final Acceptor acceptor = new TunnelAcceptor(config.portNumber, timerQueue, config.pingInterval, config.maxMissedPongs);
         collider.addAcceptor(acceptor);
+
+        if (m_playback) {
+            final Path [] streams = Journal.listStreams(config.playbackDirectory);
+            if (streams.length == 0) {
+                throw new IOException("no journal segments in " + config.playbackDirectory);
+            }
+            final JournalReader [] readers = new JournalReader[streams.length];
+            for (int idx=0; idx<streams.length; idx++) {
+                readers[idx] = new JournalReader(streams[idx]);
+            }
+            final Thread thread = new Thread(
+                    new Playback(readers, config.playbackSpeed, config.playbackDelay, config.playbackFrom), "mtunnel-playback");
+            thread.setDaemon(true);
+            thread.start();
+            System.out.println("Playing journal " + config.playbackDirectory + " in " + config.playbackDelay + " ms");
+        }
     }
 }
@@ -0,0 +1,93 @@
+package org.jsl.mtunnel;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+public class SubscriberList<T> {
+    private static final VarHandle SUBSCRIBERS;
+
+    static {
+        try {
+            SUBSCRIBERS = MethodHandles.lookup().findVarHandle(SubscriberList.class, "m_subscribers", Object[].class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final T [] m_closed;
+    private volatile T [] m_subscribers;
+
+    public SubscriberList(T [] empty) {
+        m_closed = Arrays.copyOf(empty, 0);
+        m_subscribers = Arrays.copyOf(empty, 0);
+    }
+
+    public T [] get() {
+        return m_subscribers;
+    }
+
+    public boolean isClosed() {
+        return (m_subscribers == m_closed);
+    }
+
+    /* Returns false if the list is already closed. */
+    public boolean add(T subscriber) {
+        for (;;) {
+            final T [] subscribers = m_subscribers;
+            if (subscribers == m_closed) {
+                return false;
+            }
+            final T [] newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+            newSubscribers[subscribers.length] = subscriber;
+            if (SUBSCRIBERS.compareAndSet(this, subscribers, newSubscribers)) {
+                return true;
+            }
+        }
+    }
+
+    /* Returns the number of subscribers left or -1 if the subscriber was not found,
+     * list having no subscribers left becomes closed.
+     */
+    public int remove(T subscriber) {
+        return remove(subscriber, true);
+    }
+
+    /* List having no subscribers left stays open if close is false. */
+    public int remove(T subscriber, boolean close) {
+        for (;;) {
+            final T [] subscribers = m_subscribers;
+            int idx = 0;
+            while ((idx < subscribers.length) && (subscribers[idx] != subscriber)) {
+                idx++;
+            }
+            if (idx == subscribers.length) {
+                return -1;
+            }
+
+            final T [] newSubscribers;
+            if ((subscribers.length == 1) && close) {
+                newSubscribers = m_closed;
+            } else {
+                newSubscribers = Arrays.copyOf(subscribers, subscribers.length - 1);
+                System.arraycopy(subscribers, idx + 1, newSubscribers, idx, subscribers.length - idx - 1);
+            }
+
+            if (SUBSCRIBERS.compareAndSet(this, subscribers, newSubscribers)) {
+                return newSubscribers.length;
+            }
+        }
+    }
+
+    /* Closes the list if it was not changed since get() returned the subscribers. */
+    public boolean close(T [] subscribers) {
+        return (subscribers != m_closed) && SUBSCRIBERS.compareAndSet(this, subscribers, m_closed);
+    }
+
+    /* Closes the list, returns subscribers were in the list. */
+    public T [] close() {
+        @SuppressWarnings("unchecked")
+        final T [] subscribers = (T[]) SUBSCRIBERS.getAndSet(this, m_closed);
+        return subscribers;
+    }
+}
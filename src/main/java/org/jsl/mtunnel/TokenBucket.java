@@ -0,0 +1,58 @@
+package org.jsl.mtunnel;
+
+import java.util.concurrent.TimeUnit;
+
+/* Refilled lazily from System.nanoTime() on every check, no timer involved.
+ * Packet is let through while any tokens are left and may take the bucket below zero,
+ * so a packet larger than the burst is delayed instead of being stuck forever.
+ * Not thread safe.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long m_rate;
+    private final long m_burst;
+    private long m_tokens;
+    private long m_lastRefill;
+
+    public TokenBucket(RateLimit limit, long now) {
+        m_rate = limit.rate;
+        m_burst = limit.burst;
+        m_tokens = m_burst;
+        m_lastRefill = now;
+    }
+
+    private void refill(long now) {
+        final long elapsed = (now - m_lastRefill);
+        if (elapsed <= 0) {
+            return;
+        }
+        final long tokens = (long) ((double) elapsed * m_rate / NANOS_PER_SECOND);
+        if (m_tokens + tokens >= m_burst) {
+            m_tokens = m_burst;
+            m_lastRefill = now;
+        } else if (tokens > 0) {
+            m_tokens += tokens;
+            /* Fraction of the token is kept for the next refill. */
+            m_lastRefill += (long) ((double) tokens * NANOS_PER_SECOND / m_rate);
+        }
+    }
+
+    public boolean hasTokens(long now) {
+        refill(now);
+        return (m_tokens > 0);
+    }
+
+    public void consume(int bytes) {
+        m_tokens -= bytes;
+    }
+
+    /* Nanoseconds until the bucket has tokens again. */
+    public long getDelay(long now) {
+        refill(now);
+        if (m_tokens > 0) {
+            return 0;
+        }
+        return Math.max(1, (long) ((double) (1 - m_tokens) * NANOS_PER_SECOND / m_rate) - (now - m_lastRefill));
+    }
+}
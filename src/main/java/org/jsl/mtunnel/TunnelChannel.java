@@ -14,44 +14,110 @@ public class TunnelChannel implements Channel.Listener {
         }
 
         public long run() {
+            if ((m_maxMissedPongs > 0) && ((m_pingSeq - m_lastPongSeq) >= m_maxMissedPongs)) {
+                System.out.println("No response from " + m_channel.getRemoteAddress()
+                        + " for " + (m_pingSeq - m_lastPongSeq) + " pings, close connection");
+                m_channel.closeConnection();
+                return 0;
+            }
             sendPing();
             return m_interval;
         }
     }
 
     private void sendPing() {
-        final ByteBuffer ping = m_ping.duplicate();
-        m_channel.sendData(ping);
+        final long pingTime = System.nanoTime();
+        m_pingTime = pingTime;
+        sendMessage(Protocol.Ping.create(++m_pingSeq, pingTime));
+    }
+
+    /* Pongs come in the order of the pings, the pings skipped never got the response,
+     * the pings just waiting for the response longer than the interval are not missed.
+     */
+    private void onPong(RetainableByteBuffer msg) {
+        final long now = System.nanoTime();
+        final long rtt;
+        if (Protocol.Ping.hasData(msg)) {
+            final long seq = Protocol.Ping.getSeq(msg);
+            if (seq > m_lastPongSeq) {
+                m_metrics.missedPongs.add(seq - m_lastPongSeq - 1);
+                m_lastPongSeq = seq;
+            }
+            rtt = (now - Protocol.Ping.getTimestamp(msg));
+        } else {
+            /* Peer of version 0 answers every ping without the sequence number. */
+            if (m_lastPongSeq < m_pingSeq) {
+                m_lastPongSeq++;
+            }
+            rtt = (now - m_pingTime);
+        }
+        m_metrics.onPingRtt(rtt);
     }
 
     protected final Channel m_channel;
+    protected final ChannelMetrics m_metrics;
+    private final MetricsRegistry m_metricsRegistry;
     private final StreamDefragger m_streamDefragger;
-    private ByteBuffer m_ping;
-    private ByteBuffer m_pong;
+    private final int m_maxMissedPongs;
+    private volatile long m_pingSeq;
+    private volatile long m_pingTime;
+    private volatile long m_lastPongSeq;
     private TimerQueue m_timerQueue;
     private TimerHandler m_timerHandler;
 
-    public TunnelChannel(Channel channel, TimerQueue timerQueue, int pingInterval) {
+    /* pingInterval is in milliseconds, connection is closed
+     * when maxMissedPongs pings in a row have no response (0 - never).
+     */
+    public TunnelChannel(Channel channel, TimerQueue timerQueue, int pingInterval, int maxMissedPongs,
+                         MetricsRegistry metricsRegistry) {
         m_channel = channel;
-        m_streamDefragger = new StreamDefragger(Short.SIZE/Byte.SIZE) {
+        m_metrics = new ChannelMetrics((channel == null) ? "" : channel.getRemoteAddress().toString(), this);
+        m_metricsRegistry = metricsRegistry;
+        m_streamDefragger = new StreamDefragger(Protocol.HEADER_SIZE) {
             @Override
             protected int validateHeader(ByteBuffer header) {
-                return Protocol.Message.getLength(header);
+                final int length = Protocol.Message.getLength(header);
+                return (length < Protocol.HEADER_SIZE) ? -1 : length;
             }
         };
+        m_maxMissedPongs = maxMissedPongs;
+
+        if (metricsRegistry != null) {
+            metricsRegistry.register(m_metrics);
+        }
 
         if (pingInterval > 0) {
-            m_ping = Protocol.Ping.create();
-            m_pong = Protocol.Pong.create();
             m_timerQueue = timerQueue;
-            m_timerHandler = new TimerHandler(TimeUnit.SECONDS.toMillis(pingInterval));
-            m_ping = Protocol.Ping.create();
-            timerQueue.schedule(m_timerHandler, pingInterval, TimeUnit.SECONDS);
+            m_timerHandler = new TimerHandler(pingInterval);
+            timerQueue.schedule(m_timerHandler, pingInterval, TimeUnit.MILLISECONDS);
         }
     }
 
+    /* Message created by Protocol is released, collider copies the data to the output queue. */
+    protected void sendMessage(ByteBuffer msg) {
+        m_metrics.framesOut.increment();
+        m_metrics.bytesOut.add(msg.remaining());
+        m_channel.sendData(msg);
+        Protocol.Message.release(msg);
+    }
+
+    protected void sendMessage(RetainableByteBuffer msg) {
+        m_metrics.framesOut.increment();
+        m_metrics.bytesOut.add(msg.remaining());
+        m_channel.sendData(msg);
+    }
+
+    public int getQueueSize() {
+        return 0;
+    }
+
+    public long getDroppedPackets() {
+        return 0;
+    }
+
     @Override
     public void onDataReceived(RetainableByteBuffer data) {
+        m_metrics.bytesIn.add(data.remaining());
         RetainableByteBuffer msg = m_streamDefragger.getNext(data);
         while (msg != null) {
             if (msg == StreamDefragger.INVALID_HEADER) {
@@ -60,6 +126,7 @@ public class TunnelChannel implements Channel.Listener {
                 m_channel.closeConnection();
                 break;
             } else {
+                m_metrics.framesIn.increment();
                 onMessageReceived(msg);
                 msg = m_streamDefragger.getNext();
             }
@@ -79,13 +146,22 @@ public class TunnelChannel implements Channel.Listener {
             if (interrupted) {
                 Thread.currentThread().interrupt();
             }
+            /* Pings still waiting for the response will not get it. */
+            m_metrics.missedPongs.add(m_pingSeq - m_lastPongSeq);
+        }
+
+        if (m_metricsRegistry != null) {
+            m_metricsRegistry.unregister(m_metrics);
         }
     }
 
     public void onMessageReceived(RetainableByteBuffer msg) {
         final short messageId = Protocol.Message.getMessageId(msg);
         if (messageId == Protocol.Ping.ID) {
-            m_channel.sendData(m_pong.duplicate());
+            sendMessage(Protocol.Pong.create(msg));
+        }
+        else if (messageId == Protocol.Pong.ID) {
+            onPong(msg);
         }
         else {
             System.out.println("Invalid message '" + messageId + "' received from "
@@ -0,0 +1,57 @@
+package org.jsl.mtunnel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/* Kernel statistics of the UDP sockets read from /proc/net/udp (Linux),
+ * drops counter is incremented by the kernel when the socket receive buffer is full.
+ * Socket is found by the local address and port, drops of all sockets bound
+ * to the same group and port (other processes as well) are summed.
+ */
+public class UdpSocketStats {
+    private static final Path UDP = Paths.get("/proc/net/udp");
+    private static final Path UDP6 = Paths.get("/proc/net/udp6");
+    private static final int LOCAL_ADDRESS_FIELD = 1;
+    private static final int DROPS_FIELD = 12;
+
+    /* Kernel prints the address as 32 bit words in the host byte order. */
+    private static String formatAddress(InetSocketAddress addr) {
+        final byte [] rawAddr = addr.getAddress().getAddress();
+        final ByteBuffer buf = ByteBuffer.wrap(rawAddr).order(ByteOrder.nativeOrder());
+        final StringBuilder sb = new StringBuilder();
+        while (buf.hasRemaining()) {
+            sb.append(String.format("%08X", buf.getInt()));
+        }
+        sb.append(String.format(":%04X", addr.getPort()));
+        return sb.toString();
+    }
+
+    /* Returns -1 if the statistics are not available. */
+    public static long getDrops(InetSocketAddress addr) {
+        final Path path = (addr.getAddress() instanceof Inet6Address) ? UDP6 : UDP;
+        final String localAddress = formatAddress(addr);
+        long drops = -1;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+            /* Skip the header line. */
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String [] fields = line.trim().split("\\s+");
+                if ((fields.length > DROPS_FIELD) && fields[LOCAL_ADDRESS_FIELD].equals(localAddress)) {
+                    drops = Math.max(drops, 0) + Long.parseLong(fields[DROPS_FIELD]);
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+        return drops;
+    }
+}
@@ -0,0 +1,16 @@
+package org.jsl.mtunnel;
+
+/* Nanoseconds since the epoch with the resolution of System.nanoTime(),
+ * the system clock is sampled once, so it does not follow clock adjustments.
+ */
+public class WallClock {
+    private static final long OFFSET = (System.currentTimeMillis() * 1000000L) - System.nanoTime();
+
+    public static long nanoTime() {
+        return OFFSET + System.nanoTime();
+    }
+
+    public static long fromNanoTime(long nanoTime) {
+        return OFFSET + nanoTime;
+    }
+}
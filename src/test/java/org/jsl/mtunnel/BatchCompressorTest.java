@@ -0,0 +1,183 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatchCompressorTest {
+    private final RetainableByteBufferPool m_pool = new RetainableByteBufferPool(64 * 1024, true, Protocol.BYTE_ORDER);
+
+    private RetainableByteBuffer wrap(byte [] data) {
+        final RetainableByteBuffer buf = m_pool.alloc(data.length);
+        buf.put(data);
+        buf.flip();
+        return buf;
+    }
+
+    private RetainableByteBuffer wrap(ByteBuffer data) {
+        final RetainableByteBuffer buf = m_pool.alloc(data.remaining());
+        buf.put(data);
+        buf.flip();
+        return buf;
+    }
+
+    /* Message of the given length, shorter than its fixed part. */
+    private RetainableByteBuffer truncated(short messageId, int length) {
+        final RetainableByteBuffer msg = m_pool.alloc(length);
+        Protocol.Message.putHeader(msg, messageId, length);
+        msg.position(0);
+        msg.limit(length);
+        return msg;
+    }
+
+    private static byte [] getPayload(RetainableByteBuffer batch) {
+        assertEquals(Protocol.Batch.ID, Protocol.Message.getMessageId(batch));
+        final byte [] payload = new byte[batch.remaining() - Protocol.HEADER_SIZE];
+        batch.position(batch.position() + Protocol.HEADER_SIZE);
+        batch.get(payload);
+        return payload;
+    }
+
+    private static byte [] text(String prefix, int length) {
+        final byte [] pattern = (prefix + " price=101.25 qty=300 side=BUY ").getBytes(StandardCharsets.US_ASCII);
+        final byte [] data = new byte[length];
+        for (int idx=0; idx<length; idx++) {
+            data[idx] = pattern[idx % pattern.length];
+        }
+        return data;
+    }
+
+    /* Returns the size of the CompressedBatch message. */
+    private int roundTrip(BatchCompressor compressor, BatchDecompressor decompressor,
+                          CompressionDictionary dictionary, byte [] payload) throws IOException {
+        final RetainableByteBuffer data = wrap(payload);
+        final RetainableByteBuffer compressed = compressor.compress(data, dictionary, m_pool);
+        data.release();
+        assertNotNull(compressed);
+        assertEquals(Protocol.CompressedBatch.ID, Protocol.Message.getMessageId(compressed));
+        final int compressedLength = compressed.remaining();
+        final RetainableByteBuffer batch = decompressor.decompress(compressed, m_pool);
+        compressed.release();
+        assertArrayEquals(payload, getPayload(batch));
+        batch.release();
+        return compressedLength;
+    }
+
+    @Test
+    public void roundTripWithoutDictionary() throws IOException {
+        final BatchCompressor compressor = new BatchCompressor();
+        final BatchDecompressor decompressor = new BatchDecompressor();
+        roundTrip(compressor, decompressor, null, text("a", 8 * 1024));
+        /* Buffers grow for the larger batch. */
+        roundTrip(compressor, decompressor, null, text("b", 32 * 1024));
+        roundTrip(compressor, decompressor, null, text("c", 1024));
+    }
+
+    @Test
+    public void roundTripWithDictionary() throws IOException {
+        final BatchCompressor compressor = new BatchCompressor();
+        final BatchDecompressor decompressor = new BatchDecompressor();
+        final byte [] sample = text("dict", 4096);
+        final CompressionDictionary dictionary = new CompressionDictionary(3, sample);
+        decompressor.setDictionary(wrap(Protocol.Dictionary.create(dictionary.id, dictionary.data)));
+
+        final byte [] payload = text("dict", 256);
+        final int withDictionary = roundTrip(compressor, decompressor, dictionary, payload);
+        final int withoutDictionary = roundTrip(compressor, decompressor, null, payload);
+        assertTrue(withDictionary < withoutDictionary);
+        /* Back to the dictionary after the batch without it. */
+        roundTrip(compressor, decompressor, dictionary, payload);
+    }
+
+    @Test
+    public void dictionaryReplacedForReusedId() throws IOException {
+        final BatchCompressor compressor = new BatchCompressor();
+        final BatchDecompressor decompressor = new BatchDecompressor();
+
+        final CompressionDictionary first = new CompressionDictionary(0, text("first", 4096));
+        decompressor.setDictionary(wrap(Protocol.Dictionary.create(first.id, first.data)));
+        roundTrip(compressor, decompressor, first, text("first", 512));
+
+        /* Group left and the id given to another group with the other sample,
+         * cached dictionary bytes of the same id should not be reused.
+         */
+        final CompressionDictionary second = new CompressionDictionary(0, text("second", 4096));
+        decompressor.setDictionary(wrap(Protocol.Dictionary.create(second.id, second.data)));
+        roundTrip(compressor, decompressor, second, text("second", 512));
+        roundTrip(compressor, decompressor, second, text("first", 512));
+    }
+
+    @Test
+    public void incompressibleBatchNotCompressed() {
+        final byte [] payload = new byte[4096];
+        new Random(1).nextBytes(payload);
+        final RetainableByteBuffer data = wrap(payload);
+        assertNull(new BatchCompressor().compress(data, null, m_pool));
+        assertEquals(payload.length, data.remaining());
+        data.release();
+    }
+
+    @Test
+    public void shortBatchNotCompressed() {
+        final RetainableByteBuffer data = wrap(text("a", 32));
+        assertNull(new BatchCompressor().compress(data, null, m_pool));
+        data.release();
+    }
+
+    @Test
+    public void rejectUnknownDictionary() {
+        final CompressionDictionary dictionary = new CompressionDictionary(5, text("dict", 4096));
+        final RetainableByteBuffer data = wrap(text("dict", 512));
+        final RetainableByteBuffer compressed = new BatchCompressor().compress(data, dictionary, m_pool);
+        data.release();
+        assertNotNull(compressed);
+        assertThrows(IOException.class, () -> new BatchDecompressor().decompress(compressed, m_pool));
+        compressed.release();
+    }
+
+    @Test
+    public void rejectWrongLength() {
+        final byte [] payload = text("a", 4096);
+        final RetainableByteBuffer data = wrap(payload);
+        final RetainableByteBuffer compressed = new BatchCompressor().compress(data, null, m_pool);
+        data.release();
+        assertNotNull(compressed);
+        final int messageSize = compressed.remaining();
+
+        Protocol.CompressedBatch.setHeader(compressed, compressed.position(), messageSize,
+                Protocol.CompressedBatch.NO_DICTIONARY, payload.length + 1);
+        assertThrows(IOException.class, () -> new BatchDecompressor().decompress(compressed, m_pool));
+
+        /* LZ4 block cut short. */
+        Protocol.CompressedBatch.setHeader(compressed, compressed.position(), messageSize - 8,
+                Protocol.CompressedBatch.NO_DICTIONARY, payload.length);
+        assertThrows(IOException.class, () -> new BatchDecompressor().decompress(compressed, m_pool));
+        compressed.release();
+    }
+
+    @Test
+    public void rejectShortMessages() {
+        for (int length=Protocol.HEADER_SIZE; length<Protocol.CompressedBatch.DATA_OFFSET; length++) {
+            final RetainableByteBuffer msg = truncated(Protocol.CompressedBatch.ID, length);
+            assertThrows(IOException.class, () -> new BatchDecompressor().decompress(msg, m_pool));
+            msg.release();
+        }
+        for (int length=Protocol.HEADER_SIZE; length<Protocol.Dictionary.DATA_OFFSET; length++) {
+            final RetainableByteBuffer msg = truncated(Protocol.Dictionary.ID, length);
+            assertThrows(IOException.class, () -> new BatchDecompressor().setDictionary(msg));
+            msg.release();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JournalTest {
+    private static final int SEGMENT_SIZE = (256 * 1024);
+    private static final int RECORDS = 4000;
+    private static final byte [] SOURCE_V4 = { 10, 0, 0, 1 };
+    private static final byte [] SOURCE_V6 = { (byte) 0xFE, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2 };
+
+    private final RetainableByteBufferPool m_pool = new RetainableByteBufferPool(64 * 1024, true, Protocol.BYTE_ORDER);
+    private final byte [] m_header = Protocol.MulticastPacket.createHeader(new InetSocketAddress("239.1.1.1", 5000));
+
+    /* Records are 10 ns apart, so there is a gap to seek into before every one. */
+    private static long getTimestamp(int record) {
+        return (1000 + record * 10L);
+    }
+
+    private static byte [] getSource(int record) {
+        return ((record % 3) == 0) ? SOURCE_V6 : SOURCE_V4;
+    }
+
+    private static int getPayloadLength(int record) {
+        return (100 + ((record * 37) % 400));
+    }
+
+    private RetainableByteBuffer packet(int record) {
+        final ByteBuffer data = ByteBuffer.allocate(getPayloadLength(record));
+        for (int idx=0; idx<data.capacity(); idx++) {
+            data.put(idx, (byte) (record * 7 + idx));
+        }
+        return Protocol.MulticastPacket.create(m_pool, m_header, data);
+    }
+
+    private void assertRecord(int record, JournalReader reader) {
+        assertEquals(getTimestamp(record), reader.getTimestamp());
+        assertTrue(reader.isSource(getSource(record)));
+        assertFalse(reader.isSource((getSource(record) == SOURCE_V4) ? SOURCE_V6 : SOURCE_V4));
+        final ByteBuffer packet = reader.getPacket();
+        final int dataPos = (packet.position() + Protocol.HEADER_SIZE + m_header.length);
+        assertEquals(Protocol.MulticastPacket.ID, Protocol.Message.getMessageId(packet));
+        assertEquals(packet.remaining(), Protocol.Message.getLength(packet));
+        assertEquals(getPayloadLength(record), packet.limit() - dataPos);
+        for (int idx=0; idx<getPayloadLength(record); idx++) {
+            assertEquals((byte) (record * 7 + idx), packet.get(dataPos + idx));
+        }
+    }
+
+    private void write(Path dir) throws IOException, InterruptedException {
+        final JournalWriter writer = new JournalWriter(dir, SEGMENT_SIZE, "journal-test");
+        for (int record=0; record<RECORDS; record++) {
+            final RetainableByteBuffer msg = packet(record);
+            final int pos = msg.position();
+            writer.append(getTimestamp(record), getSource(record), msg);
+            assertEquals(pos, msg.position());
+            msg.release();
+        }
+        writer.close();
+        assertEquals(RECORDS, writer.getRecords());
+        assertEquals(0, writer.getDropped());
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException, InterruptedException {
+        final Path dir = Files.createTempDirectory("mtunnel-journal");
+        try {
+            write(dir);
+            /* Records take about a megabyte, several segments with several index entries each. */
+            assertTrue(Journal.listSegments(dir).length > 3);
+
+            final JournalReader reader = new JournalReader(dir);
+            for (int record=0; record<RECORDS; record++) {
+                assertTrue(reader.next());
+                assertRecord(record, reader);
+            }
+            assertFalse(reader.next());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void seek() throws IOException, InterruptedException {
+        final Path dir = Files.createTempDirectory("mtunnel-journal");
+        try {
+            write(dir);
+            /* Even records are sought by their timestamp, odd ones by the timestamp in the gap before them.
+             * Every record is sought, so a timestamp after the last record of a segment lands in the next one.
+             */
+            for (int record=0; record<RECORDS; record++) {
+                final JournalReader reader = new JournalReader(dir);
+                reader.seek(getTimestamp(record) - ((record % 2) * 5));
+                assertTrue(reader.next());
+                assertRecord(record, reader);
+                if ((record + 1) < RECORDS) {
+                    assertTrue(reader.next());
+                    assertRecord(record + 1, reader);
+                }
+            }
+
+            final JournalReader first = new JournalReader(dir);
+            first.seek(0);
+            assertTrue(first.next());
+            assertRecord(0, first);
+
+            final JournalReader past = new JournalReader(dir);
+            past.seek(getTimestamp(RECORDS));
+            assertFalse(past.next());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void listStreams() throws IOException, InterruptedException {
+        final Path dir = Files.createTempDirectory("mtunnel-journal");
+        try {
+            write(Journal.getStreamPath(dir, 0));
+            write(Journal.getStreamPath(dir, 1));
+            assertEquals(2, Journal.listStreams(dir).length);
+        } finally {
+            delete(dir);
+        }
+    }
+}
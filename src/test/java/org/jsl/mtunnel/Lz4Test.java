@@ -0,0 +1,162 @@
+package org.jsl.mtunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Lz4Test {
+    private static byte [] compress(byte [] dictionary, byte [] data) {
+        final byte [] src = new byte[dictionary.length + data.length];
+        System.arraycopy(dictionary, 0, src, 0, dictionary.length);
+        System.arraycopy(data, 0, src, dictionary.length, data.length);
+        final int [] table = new int[Lz4.HASH_TABLE_SIZE];
+        Lz4.initHashTable(table, src, dictionary.length);
+        final byte [] dst = new byte[Lz4.maxCompressedLength(data.length)];
+        final int length = Lz4.compress(src, dictionary.length, src.length, dst, 0, table);
+        return Arrays.copyOf(dst, length);
+    }
+
+    private static byte [] decompress(byte [] dictionary, byte [] compressed, int rawLength) throws IOException {
+        final byte [] dst = new byte[dictionary.length + rawLength];
+        System.arraycopy(dictionary, 0, dst, 0, dictionary.length);
+        final int end = Lz4.decompress(compressed, 0, compressed.length, dst, dictionary.length, dst.length);
+        assertEquals(dst.length, end);
+        return Arrays.copyOfRange(dst, dictionary.length, end);
+    }
+
+    private static byte [] roundTrip(byte [] dictionary, byte [] data) throws IOException {
+        final byte [] compressed = compress(dictionary, data);
+        assertTrue(compressed.length <= Lz4.maxCompressedLength(data.length));
+        assertArrayEquals(data, decompress(dictionary, compressed, data.length));
+        return compressed;
+    }
+
+    private static byte [] text(int length) {
+        final byte [] pattern = "price=101.25 qty=300 side=BUY symbol=ABCD ".getBytes(StandardCharsets.US_ASCII);
+        final byte [] data = new byte[length];
+        for (int idx=0; idx<length; idx++) {
+            data[idx] = pattern[idx % pattern.length];
+        }
+        return data;
+    }
+
+    private static byte [] random(int length, long seed) {
+        final byte [] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void roundTripCompressible() throws IOException {
+        final byte [] data = text(16 * 1024);
+        final byte [] compressed = roundTrip(new byte[0], data);
+        assertTrue(compressed.length < (data.length / 10));
+    }
+
+    @Test
+    public void roundTripIncompressible() throws IOException {
+        final byte [] data = random(16 * 1024, 1);
+        final byte [] compressed = roundTrip(new byte[0], data);
+        assertTrue(compressed.length >= data.length);
+    }
+
+    @Test
+    public void roundTripShortInputs() throws IOException {
+        /* Inputs up to MF_LIMIT bytes are encoded as literals only. */
+        for (int length=0; length<=32; length++) {
+            roundTrip(new byte[0], text(length));
+            roundTrip(new byte[0], random(length, length));
+        }
+    }
+
+    @Test
+    public void roundTripOverlappingMatch() throws IOException {
+        /* Run of one byte is a match with offset 1, shorter than the match itself. */
+        final byte [] data = new byte[1000];
+        Arrays.fill(data, (byte) 'a');
+        data[999] = 'b';
+        final byte [] compressed = roundTrip(new byte[0], data);
+        assertTrue(compressed.length < 16);
+
+        /* Offset 3 with the match length over 15 + 255, extra length bytes. */
+        final byte [] pattern = new byte[2000];
+        for (int idx=0; idx<pattern.length; idx++) {
+            pattern[idx] = (byte) ("xyz".charAt(idx % 3));
+        }
+        roundTrip(new byte[0], pattern);
+    }
+
+    @Test
+    public void roundTripLongLiterals() throws IOException {
+        /* Literal run over 15 + 255 bytes followed by a match. */
+        final byte [] data = new byte[4000];
+        System.arraycopy(random(1000, 2), 0, data, 0, 1000);
+        System.arraycopy(text(3000), 0, data, 1000, 3000);
+        roundTrip(new byte[0], data);
+    }
+
+    @Test
+    public void roundTripWithDictionary() throws IOException {
+        final byte [] dictionary = text(4096);
+        final byte [] data = text(512);
+        final byte [] withDictionary = roundTrip(dictionary, data);
+        final byte [] withoutDictionary = roundTrip(new byte[0], data);
+        assertTrue(withDictionary.length < withoutDictionary.length);
+
+        roundTrip(dictionary, random(512, 3));
+        roundTrip(dictionary, new byte[0]);
+    }
+
+    @Test
+    public void rejectEmptyInput() {
+        assertThrows(IOException.class, () -> Lz4.decompress(new byte[0], 0, 0, new byte[16], 0, 16));
+    }
+
+    @Test
+    public void rejectTruncatedInput() {
+        final byte [] data = text(4096);
+        final byte [] compressed = compress(new byte[0], data);
+        for (int length=0; length<compressed.length; length++) {
+            final byte [] dst = new byte[data.length];
+            int end;
+            try {
+                end = Lz4.decompress(compressed, 0, length, dst, 0, dst.length);
+            } catch (IOException ex) {
+                continue;
+            }
+            /* Cut right after the literals looks like the last sequence, but the data is short. */
+            assertNotEquals(data.length, end);
+        }
+    }
+
+    @Test
+    public void rejectOffsetBeforeOutput() {
+        /* One literal and then a match 2 bytes back. */
+        final byte [] src = { (byte) 0x10, 'a', 2, 0, 0x00 };
+        assertThrows(IOException.class, () -> Lz4.decompress(src, 0, src.length, new byte[64], 0, 64));
+        /* Zero offset. */
+        final byte [] zero = { (byte) 0x10, 'a', 0, 0, 0x00 };
+        assertThrows(IOException.class, () -> Lz4.decompress(zero, 0, zero.length, new byte[64], 0, 64));
+    }
+
+    @Test
+    public void rejectOutputOverflow() {
+        final byte [] data = text(4096);
+        final byte [] compressed = compress(new byte[0], data);
+        final byte [] dst = new byte[data.length - 1];
+        assertThrows(IOException.class, () -> Lz4.decompress(compressed, 0, compressed.length, dst, 0, dst.length));
+
+        /* Literal length larger than the input left. */
+        final byte [] literals = { (byte) 0xF0, 10, 'a', 'b' };
+        assertThrows(IOException.class, () -> Lz4.decompress(literals, 0, literals.length, new byte[64], 0, 64));
+    }
+}
@@ -0,0 +1,185 @@
+package org.jsl.mtunnel;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplayBufferTest {
+    private final RetainableByteBufferPool m_pool = new RetainableByteBufferPool(64 * 1024, true, Protocol.BYTE_ORDER);
+
+    /* SequencedPacket of the given size with the content depending on the sequence number. */
+    private RetainableByteBuffer packet(long seq, int size) {
+        final int length = (size - Protocol.SequencedPacket.PREFIX_SIZE);
+        final RetainableByteBuffer data = m_pool.alloc(length);
+        for (int idx=0; idx<length; idx++) {
+            data.put((byte) (seq * 31 + idx));
+        }
+        data.flip();
+        final RetainableByteBuffer msg = Protocol.SequencedPacket.create(m_pool, seq, seq * 1000, 1, data);
+        data.release();
+        return msg;
+    }
+
+    private void put(ReplayBuffer replayBuffer, long seq, int size) {
+        final RetainableByteBuffer msg = packet(seq, size);
+        replayBuffer.put(seq, msg);
+        msg.release();
+    }
+
+    private static void assertPacket(long seq, int size, RetainableByteBuffer msg) {
+        assertEquals(size, msg.remaining());
+        assertEquals(size, Protocol.Message.getLength(msg));
+        assertEquals(seq, Protocol.SequencedPacket.getSeq(msg));
+        assertEquals(seq * 1000, Protocol.SequencedPacket.getTimestamp(msg));
+        final int pos = (msg.position() + Protocol.SequencedPacket.PREFIX_SIZE);
+        for (int idx=0; idx<(size - Protocol.SequencedPacket.PREFIX_SIZE); idx++) {
+            assertEquals((byte) (seq * 31 + idx), msg.get(pos + idx));
+        }
+    }
+
+    private void assertAvailable(ReplayBuffer replayBuffer, long seq, int size) {
+        final RetainableByteBuffer msg = replayBuffer.get(seq, m_pool);
+        assertNotNull(msg, "packet " + seq);
+        assertPacket(seq, size, msg);
+        msg.release();
+    }
+
+    private void assertGone(ReplayBuffer replayBuffer, long seq) {
+        assertNull(replayBuffer.get(seq, m_pool), "packet " + seq);
+    }
+
+    @Test
+    public void getStoredPackets() {
+        final ReplayBuffer replayBuffer = new ReplayBuffer(8, 4096);
+        for (long seq=1; seq<=5; seq++) {
+            put(replayBuffer, seq, 100 + (int) seq);
+        }
+        assertEquals(5, replayBuffer.getLastSeq());
+        assertEquals(1, replayBuffer.getFirstSeq());
+        for (long seq=1; seq<=5; seq++) {
+            assertAvailable(replayBuffer, seq, 100 + (int) seq);
+        }
+        assertGone(replayBuffer, 0);
+        assertGone(replayBuffer, 6);
+    }
+
+    @Test
+    public void evictedBySequence() {
+        /* Bytes are enough, positions are reused by the later packets. */
+        final ReplayBuffer replayBuffer = new ReplayBuffer(4, 64 * 1024);
+        for (long seq=1; seq<=10; seq++) {
+            put(replayBuffer, seq, 100);
+        }
+        assertEquals(7, replayBuffer.getFirstSeq());
+        for (long seq=1; seq<=6; seq++) {
+            assertGone(replayBuffer, seq);
+        }
+        for (long seq=7; seq<=10; seq++) {
+            assertAvailable(replayBuffer, seq, 100);
+        }
+    }
+
+    @Test
+    public void overwrittenByBytes() {
+        /* Positions are enough, 5 packets of 200 bytes fill the ring. */
+        final ReplayBuffer replayBuffer = new ReplayBuffer(64, 1000);
+        for (long seq=1; seq<=20; seq++) {
+            put(replayBuffer, seq, 200);
+        }
+        for (long seq=1; seq<=15; seq++) {
+            assertGone(replayBuffer, seq);
+        }
+        for (long seq=16; seq<=20; seq++) {
+            assertAvailable(replayBuffer, seq, 200);
+        }
+    }
+
+    @Test
+    public void wrapSkipsTail() {
+        /* Third packet ends at 900, the fourth does not fit the tail and goes to the start. */
+        final ReplayBuffer replayBuffer = new ReplayBuffer(16, 1000);
+        for (long seq=1; seq<=4; seq++) {
+            put(replayBuffer, seq, 300);
+        }
+        assertGone(replayBuffer, 1);
+        for (long seq=2; seq<=4; seq++) {
+            assertAvailable(replayBuffer, seq, 300);
+        }
+
+        /* Fifth packet takes the place of the second one. */
+        put(replayBuffer, 5, 300);
+        assertGone(replayBuffer, 2);
+        for (long seq=3; seq<=5; seq++) {
+            assertAvailable(replayBuffer, seq, 300);
+        }
+    }
+
+    @Test
+    public void oversizedPacket() {
+        final ReplayBuffer replayBuffer = new ReplayBuffer(16, 256);
+        put(replayBuffer, 1, 100);
+        put(replayBuffer, 2, 400);
+        assertEquals(2, replayBuffer.getLastSeq());
+        assertAvailable(replayBuffer, 1, 100);
+        assertGone(replayBuffer, 2);
+
+        put(replayBuffer, 3, 100);
+        assertAvailable(replayBuffer, 1, 100);
+        assertGone(replayBuffer, 2);
+        assertAvailable(replayBuffer, 3, 100);
+    }
+
+    @Test
+    public void concurrentReaders() throws InterruptedException {
+        /* Small ring, so the writer overwrites the packets being copied by the readers. */
+        final ReplayBuffer replayBuffer = new ReplayBuffer(64, 4096);
+        final long packets = 200000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicLong packetsRead = new AtomicLong();
+        final Thread [] readers = new Thread[3];
+        for (int idx=0; idx<readers.length; idx++) {
+            readers[idx] = new Thread(() -> {
+                try {
+                    long lastSeq;
+                    do {
+                        lastSeq = replayBuffer.getLastSeq();
+                        for (long seq=replayBuffer.getFirstSeq(); seq<=lastSeq; seq++) {
+                            final RetainableByteBuffer msg = replayBuffer.get(seq, m_pool);
+                            if (msg != null) {
+                                assertPacket(seq, getSize(seq), msg);
+                                msg.release();
+                                packetsRead.incrementAndGet();
+                            }
+                        }
+                    } while (lastSeq < packets);
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            });
+            readers[idx].start();
+        }
+
+        for (long seq=1; seq<=packets; seq++) {
+            put(replayBuffer, seq, getSize(seq));
+        }
+        for (Thread reader: readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(packetsRead.get() > 0);
+    }
+
+    private static int getSize(long seq) {
+        return (Protocol.SequencedPacket.PREFIX_SIZE + 8 + (int) (seq % 300));
+    }
+}